@@ -0,0 +1,243 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Queues of asynchronous deposits, withdrawals and transfers of a bank by buckets of account indices.
+ * <p>
+ * <p>The thread that finds a queue empty schedules it to be drained. A drain groups consecutive deposits and
+ * withdrawals of each account and passes each group and each transfer to the bank in the order of their
+ * submission, so the bank can apply a whole group with a single update of its account.
+ * This class is thread-safe.
+ *
+ * @author <Хорин>
+ */
+class AsyncQueues {
+    /**
+     * Stacks of operations by buckets of account indices. A stack is null when it is not drained,
+     * and it ends with {@link AsyncOp#DRAINING} while a drain runs, so each stack is drained by one task at a time.
+     */
+    private final AtomicReferenceArray<AsyncOp> queues;
+
+    /**
+     * Executor that drains {@link #queues}.
+     */
+    private final Executor executor;
+
+    /**
+     * Applies a transfer, or a group of deposits and withdrawals of the same account that are linked by
+     * {@link AsyncOp#group}, and sets the result or the error message of each operation.
+     */
+    private final Consumer<AsyncOp> applier;
+
+    /**
+     * Creates queues.
+     *
+     * @param queues the number of queues, a power of two.
+     * @param executor the executor that drains the queues.
+     * @param applier the step that applies a transfer or a group of operations on the same account.
+     */
+    AsyncQueues(int queues, Executor executor, Consumer<AsyncOp> applier) {
+        this.queues = new AtomicReferenceArray<>(queues);
+        this.executor = executor;
+        this.applier = applier;
+    }
+
+    /**
+     * Puts the operation to the queue of its account, which is the source account of a transfer.
+     *
+     * @return the future of the resulting amount, or of null for transfer.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> submit(AsyncOp op) {
+        int queue = (op.index * 0x9E3779B9 >>> 16) & (queues.length() - 1);
+        while (true) {
+            AsyncOp head = queues.get(queue);
+            op.next = head;
+            if (queues.compareAndSet(queue, head, op)) {
+                if (head == null) // a stack that is being drained is taken by the task that follows the drain
+                    executor.execute(() -> drain(queue));
+                return (CompletableFuture<T>) op.future;
+            }
+        }
+    }
+
+    /**
+     * Takes all operations from the queue and applies the operations on each account in the order of their
+     * submission. Consecutive deposits and withdrawals of an account are grouped, and transfers, which need
+     * two accounts, are performed one by one. Operations on different accounts might be applied out of order.
+     * Operations that are submitted after that are drained by another task, which is started when this one ends,
+     * so operations of the queue are applied in the order of their submission across drains as well.
+     * A transfer waits only in the queue of its source account, so it keeps its order only with the operations
+     * on that account. Operations on its target account wait in their own queue, and an operation that is
+     * submitted after the transfer might be applied before it.
+     * An operation that fails completes its future exceptionally, and the rest of operations are still applied.
+     */
+    private void drain(int queue) {
+        try {
+            applyAll(queues.getAndSet(queue, AsyncOp.DRAINING));
+        } finally {
+            // the operations that were submitted meanwhile wait for the next task, and later ones do not start a task
+            if (!queues.compareAndSet(queue, AsyncOp.DRAINING, null))
+                executor.execute(() -> drain(queue));
+        }
+    }
+
+    /**
+     * Applies the operations of a stack that ends with null or with {@link AsyncOp#DRAINING}, see
+     * {@link #drain(int)}.
+     */
+    private void applyAll(AsyncOp stack) {
+        AsyncOp ops = null;
+        int count = 0;
+        for (AsyncOp op = stack; op != null && op != AsyncOp.DRAINING; count++) {
+            AsyncOp next = op.next;
+            op.next = ops;
+            ops = op;
+            op = next;
+        }
+        /*
+         * A deposit or withdrawal joins the group of its account unless a transfer from or to the account was
+         * submitted after the group has started, then it starts a new group. Groups and transfers are linked by next
+         * in the order of their first operations.
+         */
+        OpenGroups groups = new OpenGroups(count);
+        AsyncOp first = null;
+        AsyncOp last = null;
+        for (AsyncOp op = ops; op != null; ) {
+            AsyncOp next = op.next;
+            op.next = null;
+            if (op.toIndex >= 0) {
+                groups.close(op.index);
+                groups.close(op.toIndex);
+            } else {
+                AsyncOp tail = groups.put(op.index, op);
+                if (tail != null) {
+                    tail.group = op;
+                    op = next;
+                    continue;
+                }
+            }
+            if (first == null)
+                first = last = op;
+            else
+                last = last.next = op;
+            op = next;
+        }
+        for (AsyncOp op = first; op != null; op = op.next) {
+            try {
+                applier.accept(op);
+                for (AsyncOp applied = op; applied != null; applied = applied.group) {
+                    if (applied.errorMessage != null)
+                        applied.future.completeExceptionally(new IllegalStateException(applied.errorMessage));
+                    else
+                        applied.future.complete(applied.toIndex >= 0 ? null : applied.result);
+                }
+            } catch (Throwable e) {
+                // operations that have already completed keep their results
+                for (AsyncOp failed = op; failed != null; failed = failed.group)
+                    failed.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous deposit, withdrawal or transfer that waits in a queue.
+     */
+    static class AsyncOp {
+        /**
+         * Marks the bottom of a stack that is being drained.
+         */
+        static final AsyncOp DRAINING = new AsyncOp(-1, 0);
+
+        final int index;
+
+        /**
+         * Account to transfer to, or -1 for deposit and withdrawal.
+         */
+        final int toIndex;
+
+        /**
+         * Amount to deposit or to transfer, or negated amount to withdraw.
+         */
+        final long delta;
+
+        /**
+         * Future of the resulting amount, or of null for transfer.
+         */
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        /**
+         * Next operation in the queue.
+         */
+        AsyncOp next;
+
+        /**
+         * Next operation on the same account in the group that is being applied.
+         */
+        AsyncOp group;
+
+        long result;
+        String errorMessage;
+
+        AsyncOp(int index, long delta) {
+            this(index, -1, delta);
+        }
+
+        AsyncOp(int fromIndex, int toIndex, long amount) {
+            this.index = fromIndex;
+            this.toIndex = toIndex;
+            this.delta = amount;
+        }
+    }
+
+    /**
+     * The last operations of open groups by accounts while a drain groups its operations. It is an open-addressing
+     * table of account indices, so that the drain does not box them. A closed group keeps its account with null.
+     */
+    private static class OpenGroups {
+        /**
+         * Account indices plus one, 0 in an empty slot.
+         */
+        private final int[] keys;
+        private final AsyncOp[] tails;
+
+        /**
+         * @param size the maximal number of accounts in the table.
+         */
+        OpenGroups(int size) {
+            // the table is at most half full
+            int capacity = Math.max(Integer.highestOneBit(size) << 2, 2);
+            keys = new int[capacity];
+            tails = new AsyncOp[capacity];
+        }
+
+        private int slot(int index) {
+            int mask = keys.length - 1;
+            int slot = index * 0x9E3779B9 >>> Integer.numberOfLeadingZeros(mask);
+            while (keys[slot] != 0 && keys[slot] != index + 1)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /**
+         * Makes the operation the last one of the group of its account.
+         *
+         * @return the previous last operation of the group, or null when the group was not open.
+         */
+        AsyncOp put(int index, AsyncOp op) {
+            int slot = slot(index);
+            AsyncOp tail = tails[slot];
+            keys[slot] = index + 1;
+            tails[slot] = op;
+            return tail;
+        }
+
+        void close(int index) {
+            tails[slot(index)] = null;
+        }
+    }
+}
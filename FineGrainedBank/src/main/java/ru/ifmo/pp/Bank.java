@@ -1,5 +1,8 @@
 package ru.ifmo.pp;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongUnaryOperator;
+
 /**
  * Bank interface.
  *
@@ -69,4 +72,57 @@ public interface Bank {
      * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
      */
     public void transfer(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Asynchronously deposits specified amount to account.
+     * Deposits and withdrawals that wait for the same account may be applied to it together.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @return future of the resulting amount in account. It completes exceptionally with IllegalStateException
+     *         when deposit will overflow account above {@link #MAX_AMOUNT}.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> depositAsync(int index, long amount);
+
+    /**
+     * Asynchronously withdraws specified amount from account.
+     * Deposits and withdrawals that wait for the same account may be applied to it together.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @return future of the resulting amount in account. It completes exceptionally with IllegalStateException
+     *         when account does not enough to withdraw.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> withdrawAsync(int index, long amount);
+
+    /**
+     * Asynchronously transfers specified amount from one account to another account.
+     * The transfer is applied in the order of submission only with asynchronous operations on the source account.
+     * An operation on the target account that is submitted after the transfer might be applied before it,
+     * so it has to wait for the returned future to see the transferred amount.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @return future that completes when the transfer is done. It completes exceptionally with IllegalStateException
+     *         when there is not enough funds in source account or too much in target one.
+     * @throws IllegalArgumentException when amount <= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     */
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Atomically replaces amounts in all accounts with the amounts computed by the function, for example to accrue
+     * interest. The function is invoked for each account, in parallel, so it must be thread-safe. It might be invoked
+     * more than once for an account when the thread that has started to compute the account does not finish it.
+     * When the function throws an exception, no account is changed and the exception is rethrown.
+     *
+     * @param update function that computes new amount of an account from its current amount.
+     * @throws IllegalStateException when some new amount is negative or above {@link #MAX_AMOUNT}.
+     */
+    public void applyToAll(LongUnaryOperator update);
 }
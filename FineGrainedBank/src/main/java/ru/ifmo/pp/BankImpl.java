@@ -1,21 +1,63 @@
 package ru.ifmo.pp;
 
-import java.lang.reflect.Array;
 import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongUnaryOperator;
 
 /**
  * Bank implementation.
  *
+ * <p>Each account has a {@link StampedLock}. Reads of accounts are optimistic: they read amounts without locking
+ * and validate the stamps afterwards, so they neither block writers nor write to the cache lines of locks.
+ * A read takes the read lock only when a writer has changed the account in the meantime.
+ *
+ * <p>{@link #getTotalAmount()} reads a snapshot of accounts without locking them all. It advances
+ * {@link #epoch}, and a writer that updates an account for the first time in the new epoch saves the amount
+ * that it had before. Each update is linearized where it reads the epoch under the lock of its accounts, so the
+ * snapshot has all updates that have read previous epochs, and none of the others. Snapshots are taken one at
+ * a time, so an account needs to keep only one amount from the past.
+ *
+ * <p>Asynchronous deposits, withdrawals and transfers wait in {@link AsyncQueues} by buckets of account indices.
+ * The thread that finds a queue empty schedules it to be drained, and the drain applies all deposits and withdrawals
+ * that wait for the same account under a single hold of its lock.
+ *
  * @author Хорин
  */
 public class BankImpl implements Bank {
+    /**
+     * The number of queues of asynchronous operations, a power of two.
+     */
+    private static final int ASYNC_QUEUES = 64;
+
+    /**
+     * The number of accounts that {@link #applyToAll(LongUnaryOperator)} updates in one parallel task.
+     */
+    private static final int APPLY_CHUNK_SIZE = 1 << 12;
+
     /**
      * An array of accounts by index.
      */
     private final Account[] accounts;
 
+    /**
+     * The epoch of the last snapshot of accounts, see {@link #getTotalAmount()}.
+     */
+    private volatile long epoch;
+
+    /**
+     * Guards snapshots, so that they are taken one at a time.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Queues of asynchronous operations, see {@link #applyAsync(AsyncQueues.AsyncOp)}.
+     */
+    private final AsyncQueues asyncQueues = new AsyncQueues(ASYNC_QUEUES, ForkJoinPool.commonPool(), this::applyAsync);
+
     /**
      * Creates new bank instance.
      * @param n the number of accounts (numbered from 0 to n-1).
@@ -41,9 +83,14 @@ public class BankImpl implements Bank {
     @Override
     public long getAmount(int index) {
         Account account = accounts[index];
-        account.lock.lock();
+        StampedLock lock = account.lock;
+        long stamp = lock.tryOptimisticRead();
         long amount = account.amount;
-        account.lock.unlock();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            amount = account.amount;
+            lock.unlockRead(stamp);
+        }
         return amount;
     }
 
@@ -52,15 +99,23 @@ public class BankImpl implements Bank {
      */
     @Override
     public long getTotalAmount() {
-        long sum = 0;
-        for (Account account : accounts) {
-            account.lock.lock();
-            sum += account.amount;
+        synchronized (snapshotLock) {
+            long snapshot = epoch + 1;
+            epoch = snapshot;
+            long sum = 0;
+            for (Account account : accounts) {
+                StampedLock lock = account.lock;
+                long stamp = lock.tryOptimisticRead();
+                long amount = account.amountAt(snapshot);
+                if (!lock.validate(stamp)) {
+                    stamp = lock.readLock();
+                    amount = account.amountAt(snapshot);
+                    lock.unlockRead(stamp);
+                }
+                sum += amount;
+            }
+            return sum;
         }
-        for (int i = accounts.length - 1; i >= 0; i--) {
-            accounts[i].lock.unlock();
-        }
-        return sum;
     }
 
     /**
@@ -71,14 +126,14 @@ public class BankImpl implements Bank {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
-        account.lock.lock();
+        long stamp = account.lock.writeLock();
         try {
             if (amount > MAX_AMOUNT || account.amount + amount > MAX_AMOUNT)
                 throw new IllegalStateException("Overflow");
-            account.amount += amount;
+            account.set(account.amount + amount, epoch);
             return account.amount;
         } finally {
-            account.lock.unlock();
+            account.lock.unlockWrite(stamp);
         }
     }
 
@@ -90,14 +145,14 @@ public class BankImpl implements Bank {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
-        account.lock.lock();
+        long stamp = account.lock.writeLock();
         try {
             if (account.amount - amount < 0)
                 throw new IllegalStateException("Underflow");
-            account.amount -= amount;
+            account.set(account.amount - amount, epoch);
             return account.amount;
         } finally {
-            account.lock.unlock();
+            account.lock.unlockWrite(stamp);
         }
     }
 
@@ -112,30 +167,234 @@ public class BankImpl implements Bank {
             throw new IllegalArgumentException("fromIndex == toIndex");
         Account from = accounts[fromIndex];
         Account to = accounts[toIndex];
-        Lock firstLock = accounts[Math.min(fromIndex, toIndex)].lock;
-        Lock secondLock = accounts[Math.max(fromIndex, toIndex)].lock;
-        firstLock.lock();
-        secondLock.lock();
+        /*
+         * A transfer that fails is only a read. Both amounts are read optimistically, and when both stamps are
+         * still valid, neither account has changed since the second amount was read, so the transfer fails
+         * at that moment without locks.
+         */
+        long fromStamp = from.lock.tryOptimisticRead();
+        long toStamp = to.lock.tryOptimisticRead();
+        String errorMessage = errorMessage(from.amount, to.amount, amount);
+        if (errorMessage != null && from.lock.validate(fromStamp) && to.lock.validate(toStamp))
+            throw new IllegalStateException(errorMessage);
+        StampedLock firstLock = accounts[Math.min(fromIndex, toIndex)].lock;
+        StampedLock secondLock = accounts[Math.max(fromIndex, toIndex)].lock;
+        long firstStamp = firstLock.writeLock();
+        long secondStamp = secondLock.writeLock();
         try {
-            if (amount > from.amount)
-                throw new IllegalStateException("Underflow");
-            else if (amount > MAX_AMOUNT || to.amount + amount > MAX_AMOUNT)
-                throw new IllegalStateException("Overflow");
-            from.amount -= amount;
-            to.amount += amount;
+            errorMessage = errorMessage(from.amount, to.amount, amount);
+            if (errorMessage != null)
+                throw new IllegalStateException(errorMessage);
+            long epoch = this.epoch;
+            from.set(from.amount - amount, epoch);
+            to.set(to.amount + amount, epoch);
+        } finally {
+            secondLock.unlockWrite(secondStamp);
+            firstLock.unlockWrite(firstStamp);
+        }
+    }
+
+    /**
+     * Returns the message of the failure of transfer between accounts with these amounts, or null.
+     */
+    private static String errorMessage(long from, long to, long amount) {
+        if (amount > from)
+            return "Underflow";
+        if (amount > MAX_AMOUNT || to + amount > MAX_AMOUNT)
+            return "Overflow";
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void applyToAll(LongUnaryOperator update) {
+        if (update == null)
+            throw new NullPointerException();
+        /*
+         * Locks are taken in the order of indices like in getTotalAmount, and the thread that holds them
+         * unlocks them, so in between parallel tasks compute new amounts and then write them.
+         */
+        int n = accounts.length;
+        long[] stamps = new long[n];
+        for (int i = 0; i < n; i++)
+            stamps[i] = accounts[i].lock.writeLock();
+        try {
+            int chunks = (n + APPLY_CHUNK_SIZE - 1) / APPLY_CHUNK_SIZE;
+            long[] results = new long[n];
+            RuntimeException[] failures = new RuntimeException[chunks];
+            forEachChunk(chunks, c -> {
+                for (int i = c * APPLY_CHUNK_SIZE; i < Math.min(n, (c + 1) * APPLY_CHUNK_SIZE); i++) {
+                    long amount;
+                    try {
+                        amount = update.applyAsLong(accounts[i].amount);
+                    } catch (RuntimeException e) {
+                        failures[c] = e;
+                        return;
+                    }
+                    if (amount < 0 || amount > MAX_AMOUNT) {
+                        failures[c] = new IllegalStateException(amount < 0 ? "Underflow" : "Overflow");
+                        return;
+                    }
+                    results[i] = amount;
+                }
+            });
+            for (RuntimeException failure : failures) {
+                if (failure != null)
+                    throw failure;
+            }
+            long epoch = this.epoch;
+            forEachChunk(chunks, c -> {
+                for (int i = c * APPLY_CHUNK_SIZE; i < Math.min(n, (c + 1) * APPLY_CHUNK_SIZE); i++)
+                    accounts[i].set(results[i], epoch);
+            });
         } finally {
-            secondLock.unlock();
-            firstLock.unlock();
+            for (int i = n - 1; i >= 0; i--) {
+                accounts[i].lock.unlockWrite(stamps[i]);
+            }
         }
     }
+
+    /**
+     * Performs the action for chunks from 0 to chunks-1 in parallel tasks.
+     */
+    private static void forEachChunk(int chunks, IntConsumer action) {
+        if (chunks == 1)
+            action.accept(0);
+        else if (chunks > 1)
+            new ChunkTask(action, 0, chunks).invoke();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (index < 0 || index >= accounts.length)
+            throw new IndexOutOfBoundsException("index " + index);
+        // larger amount would overflow the delta, this one still fails with "Overflow"
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(index, Math.min(amount, MAX_AMOUNT + 1)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (index < 0 || index >= accounts.length)
+            throw new IndexOutOfBoundsException("index " + index);
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(index, -amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (fromIndex < 0 || fromIndex >= accounts.length || toIndex < 0 || toIndex >= accounts.length)
+            throw new IndexOutOfBoundsException("indices " + fromIndex + ", " + toIndex);
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(fromIndex, toIndex, amount));
+    }
+
+    /**
+     * Applies a transfer that was drained from {@link #asyncQueues}, or a group of operations on the same account
+     * one after another under a single hold of its lock.
+     */
+    private void applyAsync(AsyncQueues.AsyncOp group) {
+        if (group.toIndex >= 0) {
+            transfer(group.index, group.toIndex, group.delta);
+            return;
+        }
+        Account account = accounts[group.index];
+        long stamp = account.lock.writeLock();
+        try {
+            long epoch = this.epoch;
+            for (AsyncQueues.AsyncOp op = group; op != null; op = op.group) {
+                long result = account.amount + op.delta;
+                op.errorMessage = result < 0 ? "Underflow" : result > MAX_AMOUNT ? "Overflow" : null;
+                if (op.errorMessage == null)
+                    account.set(result, epoch);
+                op.result = account.amount;
+            }
+        } finally {
+            account.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Task that performs an action for a range of chunks, splitting the range in halves down to single chunks.
+     */
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveAction {
+        final IntConsumer action;
+        final int fromChunk;
+        final int toChunk;
+
+        ChunkTask(IntConsumer action, int fromChunk, int toChunk) {
+            this.action = action;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                action.accept(fromChunk);
+                return;
+            }
+            int middle = (fromChunk + toChunk) >>> 1;
+            invokeAll(new ChunkTask(action, fromChunk, middle), new ChunkTask(action, middle, toChunk));
+        }
+    }
+
     /**
      * Private account data structure.
      */
     private static class Account {
         /**
-         * Amount of funds in this account.
+         * Amount of funds in this account. It is written under the write lock, and read optimistically.
          */
         long amount;
-        Lock lock = new ReentrantLock();
+
+        /**
+         * The epoch of the last update of this account.
+         */
+        long epoch;
+
+        /**
+         * The amount of this account before its first update in {@link #epoch}.
+         */
+        long previousAmount;
+
+        final StampedLock lock = new StampedLock();
+
+        /**
+         * Updates the amount under the write lock.
+         *
+         * @param epoch the epoch that the update has read under the lock.
+         */
+        void set(long amount, long epoch) {
+            if (this.epoch != epoch) {
+                previousAmount = this.amount;
+                this.epoch = epoch;
+            }
+            this.amount = amount;
+        }
+
+        /**
+         * Returns the amount of this account in the snapshot, which is the last one.
+         */
+        long amountAt(long snapshot) {
+            return epoch == snapshot ? previousAmount : amount;
+        }
     }
 }
\ No newline at end of file
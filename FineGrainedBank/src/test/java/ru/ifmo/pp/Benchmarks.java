@@ -0,0 +1,34 @@
+package ru.ifmo.pp;
+
+/**
+ * Harness shared by benchmarks that are run by their main methods.
+ *
+ * @author <Хорин>
+ */
+class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * Runs the body in the specified number of threads and returns the elapsed time in nanoseconds.
+     */
+    static long time(int threads, Runnable body) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+            workers[t] = new Thread(body);
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Throws an error when the condition does not hold, so that the results of a broken run are not printed.
+     */
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
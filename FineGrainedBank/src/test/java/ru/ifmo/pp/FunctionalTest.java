@@ -3,6 +3,9 @@ package ru.ifmo.pp;
 import junit.framework.TestCase;
 import ru.ifmo.pp.BankImpl;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 /**
  * Functional single-threaded test-suite for bank implementation.
  *
@@ -65,4 +68,89 @@ public class FunctionalTest extends TestCase {
         assertEquals(transferAmount, bank.getAmount(2));
         assertEquals(depositAmount, bank.getTotalAmount());
     }
+
+    public void testAsync() throws Exception {
+        assertEquals(1000, (long) bank.depositAsync(1, 1000).get());
+        assertEquals(600, (long) bank.withdrawAsync(1, 400).get());
+        bank.transferAsync(1, 2, 100).get();
+        assertEquals(500, bank.getAmount(1));
+        assertEquals(100, bank.getAmount(2));
+        try {
+            bank.withdrawAsync(2, 101).get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            bank.transferAsync(2, 1, 101).get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            bank.depositAsync(N, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(600, bank.getTotalAmount());
+    }
+
+    /**
+     * A withdrawal from the target account that is submitted right after a transfer might be applied before it,
+     * and a withdrawal that waits for the transfer always sees the transferred amount.
+     */
+    public void testAsyncTransferOrder() throws Exception {
+        long expected = 0;
+        for (int round = 0; round < 100; round++) {
+            bank.deposit(1, 20);
+            CompletableFuture<Void> transfer = bank.transferAsync(1, 2, 20);
+            CompletableFuture<Long> racing = bank.withdrawAsync(2, 10);
+            CompletableFuture<Long> waiting = transfer.thenCompose(v -> bank.withdrawAsync(2, 10));
+            transfer.get();
+            waiting.get();
+            try {
+                racing.get();
+            } catch (ExecutionException e) {
+                assertEquals("Underflow", e.getCause().getMessage());
+                expected += 10;
+            }
+            assertEquals(0, bank.getAmount(1));
+            assertEquals(expected, bank.getAmount(2));
+        }
+    }
+
+    public void testApplyToAll() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 50);
+        bank.applyToAll(amount -> amount + amount / 100);
+        assertEquals(1010, bank.getAmount(1));
+        assertEquals(50, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(1060, bank.getTotalAmount());
+    }
+
+    public void testApplyToAllFailure() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 50);
+        try {
+            bank.applyToAll(amount -> amount - 100);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.applyToAll(amount -> {
+                if (amount == 50)
+                    throw new ArithmeticException();
+                return amount + 1;
+            });
+            fail("ArithmeticException expected");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getAmount(1));
+        assertEquals(50, bank.getAmount(2));
+        assertEquals(1050, bank.getTotalAmount());
+    }
 }
@@ -0,0 +1,33 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures throughput of a read-mostly mix of operations by different numbers of threads.
+ * Reads of amounts are optimistic, so they should scale with threads.
+ *
+ * <p>It measures only throughput, so it is not a part of the tests and is run by its main method.
+ * {@link ReadMostlyTest} checks the results of the same mix.
+ *
+ * @author <Хорин>
+ */
+public class ReadMostlyBenchmark {
+    private static final int N = 1000;
+    private static final long MEAN = 1_000_000_000;
+    private static final int OPS_PER_THREAD = 2_000_000;
+
+    private static volatile long dummy; // will prevent code elimination
+
+    public static void main(String[] args) throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long elapsed = Benchmarks.time(threads, () -> dummy = ReadMostlyTest.mix(bank, N, OPS_PER_THREAD));
+            System.out.printf(Locale.US, "Read-mostly ops per second by %d threads: %,d%n",
+                    threads, threads * OPS_PER_THREAD * 1_000_000_000L / elapsed);
+        }
+        Benchmarks.check(bank.getTotalAmount() == N * MEAN, "Total amount " + bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,96 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests a read-mostly mix of operations. Reads of amounts are optimistic, so they must never see an amount
+ * that a concurrent transfer has not completed. {@link ReadMostlyBenchmark} measures the throughput of the same mix.
+ *
+ * @author <Хорин>
+ */
+public class ReadMostlyTest extends TestCase {
+    private static final int N = 1000;
+    private static final long MEAN = 1_000_000_000;
+    private static final int READS_PERCENT = 95;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+
+    private volatile String failure;
+
+    /**
+     * Transfers of 1 keep every amount within the number of transfers from the mean.
+     */
+    public void testMix() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                long min = mix(bank, N, OPS_PER_THREAD);
+                if (min < MEAN - THREADS * OPS_PER_THREAD)
+                    failure = "Amount " + min;
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure);
+        long sum = 0;
+        for (int i = 0; i < N; i++) {
+            long amount = bank.getAmount(i);
+            assertTrue("Amount " + amount, Math.abs(amount - MEAN) <= THREADS * OPS_PER_THREAD);
+            sum += amount;
+        }
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Transfers that fail are reads too, and they must not change any account.
+     */
+    public void testFailedTransfers() throws InterruptedException {
+        final BankImpl bank = new BankImpl(2);
+        bank.deposit(0, 100);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < 100_000; i++) {
+                    int from = rnd.nextInt(2);
+                    try {
+                        bank.transfer(from, 1 - from, rnd.nextInt(150) + 1);
+                    } catch (IllegalStateException e) {
+                        if (!"Underflow".equals(e.getMessage()))
+                            failure = e.getMessage();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure);
+        assertEquals(100, bank.getAmount(0) + bank.getAmount(1));
+        assertEquals(100, bank.getTotalAmount());
+    }
+
+    /**
+     * Performs the read-mostly mix of reads of amounts and transfers of 1 between the first n accounts,
+     * and returns the minimal amount that was read.
+     */
+    static long mix(Bank bank, int n, int ops) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long min = Long.MAX_VALUE;
+        for (int k = 0; k < ops; k++) {
+            int i = rnd.nextInt(n);
+            if (rnd.nextInt(100) < READS_PERCENT)
+                min = Math.min(min, bank.getAmount(i));
+            else
+                bank.transfer(i, (i + 1 + rnd.nextInt(n - 1)) % n, 1);
+        }
+        return min;
+    }
+}
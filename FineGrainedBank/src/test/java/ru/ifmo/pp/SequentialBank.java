@@ -2,6 +2,9 @@ package ru.ifmo.pp;
 
 import ru.ifmo.pp.Bank;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongUnaryOperator;
+
 /**
  * Bank implementation.
  * This implementation is not thread-safe.
@@ -100,6 +103,67 @@ class SequentialBank implements Bank {
         to.amount += amount;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            future.complete(deposit(index, amount));
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            future.complete(withdraw(index, amount));
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            transfer(fromIndex, toIndex, amount);
+            future.complete(null);
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void applyToAll(LongUnaryOperator update) {
+        long[] results = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            long amount = update.applyAsLong(accounts[i].amount);
+            if (amount < 0)
+                throw new IllegalStateException("Underflow");
+            if (amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            results[i] = amount;
+        }
+        for (int i = 0; i < accounts.length; i++)
+            accounts[i].amount = results[i];
+    }
+
     /**
      * Private account data structure.
      */
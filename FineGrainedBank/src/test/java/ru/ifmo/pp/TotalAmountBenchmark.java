@@ -0,0 +1,50 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the latency of deposits alone and during audits of a large bank by {@link BankImpl#getTotalAmount()}.
+ *
+ * <p>It measures only latency, so it is not a part of the tests and is run by its main method.
+ * {@link TotalAmountTest} checks the snapshots themselves.
+ *
+ * @author <Хорин>
+ */
+public class TotalAmountBenchmark {
+    private static final int N = 1_000_000;
+    private static final int DEPOSITS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        long alone = Benchmarks.time(1, () -> deposits(bank));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong audits = new AtomicLong();
+        Thread auditor = new Thread(() -> {
+            while (!done.get()) {
+                bank.getTotalAmount();
+                audits.incrementAndGet();
+            }
+        });
+        auditor.start();
+        long during;
+        try {
+            during = Benchmarks.time(1, () -> deposits(bank));
+        } finally {
+            done.set(true);
+            auditor.join();
+        }
+        Benchmarks.check(bank.getTotalAmount() == 2L * DEPOSITS, "Total amount " + bank.getTotalAmount());
+        System.out.printf(Locale.US, "Nanoseconds per deposit: alone %d, during audits %d; audits: %d, " +
+                        "nanoseconds per audit of %d accounts: %d%n", alone / DEPOSITS, during / DEPOSITS,
+                audits.get(), N, audits.get() == 0 ? 0 : during / audits.get());
+    }
+
+    private static void deposits(Bank bank) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = 0; i < DEPOSITS; i++)
+            bank.deposit(rnd.nextInt(N), 1);
+    }
+}
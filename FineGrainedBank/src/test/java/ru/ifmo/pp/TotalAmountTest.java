@@ -0,0 +1,99 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests snapshots of accounts that {@link BankImpl#getTotalAmount()} reads while other operations keep running.
+ *
+ * @author <Хорин>
+ */
+public class TotalAmountTest extends TestCase {
+    private static final int N = 1000;
+    private static final int LARGE_N = 1_000_000;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final int SNAPSHOTS = 20;
+
+    /**
+     * Transfers keep the total, and a total that is read during deposits of 1 has all deposits that have
+     * completed before it started and none of those that have started after it ended.
+     */
+    public void testConsistentWithConcurrentUpdates() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final boolean depositor = t == 0;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    int from = rnd.nextInt(N);
+                    int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                    if (depositor) {
+                        started.incrementAndGet();
+                        bank.deposit(to, 1);
+                        completed.incrementAndGet();
+                    } else if (rnd.nextInt(1000) == 0) {
+                        bank.applyToAll(amount -> amount);
+                    } else {
+                        bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        boolean running = true;
+        while (running) {
+            long before = completed.get();
+            long total = bank.getTotalAmount() - N * MEAN;
+            long after = started.get();
+            assertTrue(before + " <= " + total + " <= " + after, before <= total && total <= after);
+            running = false;
+            for (Thread thread : threads)
+                running |= thread.isAlive();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(N * MEAN + OPS_PER_THREAD, bank.getTotalAmount());
+    }
+
+    /**
+     * A transfer keeps the total, so a snapshot that is read during transfers of a large bank never differs from it,
+     * even though it reads the accounts of a transfer at different times.
+     */
+    public void testNoTornTransfers() throws InterruptedException {
+        final BankImpl bank = new BankImpl(LARGE_N);
+        for (int i = 0; i < LARGE_N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (!done.get()) {
+                    // transfers between the ends of the bank are read by a snapshot at the most different times
+                    int from = rnd.nextInt(LARGE_N);
+                    bank.transfer(from, LARGE_N - 1 - from, rnd.nextInt(1000) + 1); // LARGE_N is even
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for (int k = 0; k < SNAPSHOTS; k++)
+                assertEquals(LARGE_N * MEAN, bank.getTotalAmount());
+        } finally {
+            done.set(true);
+            for (Thread thread : threads)
+                thread.join();
+        }
+        assertEquals(LARGE_N * MEAN, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,265 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free open-addressing table that maps 64-bit account IDs to indices of accounts, see {@link SparseBank}.
+ * Like IntIntHashMap, it keeps keys and values in a primitive array with linear probing, and ID {@link #EMPTY},
+ * which marks free slots, is kept aside. Mappings are never removed or changed, so reads need no synchronization
+ * beyond volatile reads of slots.
+ * <p>
+ * <p>An insert claims a free slot by compareAndSet of its key, and then publishes the index by compareAndSet of the
+ * value from {@link #PENDING}. A thread that inserts the same ID in the meantime publishes its own index instead,
+ * and the insert that has published its index wins.
+ * <p>
+ * <p>When a table is half full, it is replaced with a twice as large one. Threads that find it full migrate it
+ * chunk by chunk: each slot is frozen by compareAndSet of its value, so that it cannot be changed anymore, and
+ * mappings of frozen slots are copied to the new table. Frozen mappings are still valid, so readers keep using
+ * the old table until it is migrated, and inserts go to the new table only after that.
+ *
+ * @author <Хорин>
+ */
+final class AccountTable {
+    private static final AtomicReferenceFieldUpdater<AccountTable, Table> TABLE =
+            AtomicReferenceFieldUpdater.newUpdater(AccountTable.class, Table.class, "table");
+    private static final AtomicReferenceFieldUpdater<Table, Table> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Table.class, Table.class, "next");
+
+    /**
+     * Key of a free slot.
+     */
+    static final long EMPTY = 0;
+
+    /**
+     * Value of a claimed slot whose index is not published yet, and the result of lookups that find nothing.
+     */
+    static final int ABSENT = -1;
+    private static final long PENDING = ABSENT;
+
+    /**
+     * Value of a free or pending slot of a migrated table. Frozen mapping to index i has value FROZEN - 1 - i.
+     */
+    private static final long FROZEN = -2;
+
+    /**
+     * Returned by {@link Table#putIfAbsent(long, int, boolean)} when the ID has to be inserted into the next table.
+     */
+    private static final long RETRY = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The number of slots that a thread migrates at once.
+     */
+    private static final int MIGRATION_CHUNK = 1024;
+
+    /**
+     * The number of checks whether other threads have migrated their chunks before this thread migrates them again.
+     */
+    private static final int MIGRATION_SPINS = 1024;
+
+    /**
+     * The current table. It is replaced only when it is migrated to the next one.
+     */
+    private volatile Table table;
+
+    /**
+     * The index of account with ID {@link #EMPTY}, or {@link #ABSENT}.
+     */
+    private final AtomicLong emptyKeyIndex = new AtomicLong(ABSENT);
+
+    /**
+     * Creates table.
+     *
+     * @param expectedSize the number of mappings that fit into the table without migrations.
+     */
+    AccountTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expectedSize && capacity < 1 << 29)
+            capacity <<= 1;
+        table = new Table(capacity);
+    }
+
+    /**
+     * Returns the index that the ID is mapped to, or {@link #ABSENT}.
+     */
+    int get(long id) {
+        if (id == EMPTY)
+            return (int) emptyKeyIndex.get();
+        for (Table t = table; ; t = t.next) {
+            int index = t.get(id);
+            /*
+             * Nothing is inserted into the next table until this one is migrated, so the ID was not mapped
+             * when the probe ended unless this table is migrated now.
+             */
+            if (index != ABSENT || !t.migrated)
+                return index;
+        }
+    }
+
+    /**
+     * Maps the ID to the index unless the ID is already mapped.
+     *
+     * @return the index that the ID is mapped to, which is not the specified one when some other insert has won.
+     */
+    int putIfAbsent(long id, int index) {
+        if (id == EMPTY) {
+            return emptyKeyIndex.compareAndSet(ABSENT, index) ? index : (int) emptyKeyIndex.get();
+        }
+        Table t = table;
+        while (true) {
+            if (!t.migrated) {
+                long result = t.putIfAbsent(id, index, false);
+                if (result != RETRY)
+                    return (int) result;
+            }
+            t = migrate(t);
+        }
+    }
+
+    /**
+     * Creates the next table when it does not exist yet, helps to migrate the table to it and returns it.
+     */
+    private Table migrate(Table t) {
+        Table next = t.next;
+        if (next == null) {
+            NEXT.compareAndSet(t, null, new Table(2 * (t.mask + 1)));
+            next = t.next;
+        }
+        int chunks = (t.mask + MIGRATION_CHUNK) / MIGRATION_CHUNK;
+        if (!t.migrated) {
+            for (int c; (c = t.claimedChunks.getAndIncrement()) < chunks; ) {
+                t.migrate(c, next);
+                t.migratedChunks.incrementAndGet();
+            }
+            /*
+             * Other threads that have claimed the rest of chunks are given a chance to migrate them, and then
+             * this thread migrates all chunks again by itself, which is harmless, because migration is idempotent.
+             */
+            for (int spins = 0; !t.migrated && t.migratedChunks.get() < chunks; spins++) {
+                if (spins < MIGRATION_SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                for (int c = 0; c < chunks; c++)
+                    t.migrate(c, next);
+                break;
+            }
+            t.migrated = true;
+        }
+        TABLE.compareAndSet(this, t, next);
+        return next;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Array of slots. The key of slot i is kept at 2i, and its value at 2i+1, so that a lookup reads one cache line.
+     */
+    private static final class Table {
+        final AtomicLongArray entries;
+        final int mask;
+
+        /**
+         * The number of claimed slots. The table is full when half of its slots are claimed.
+         */
+        final AtomicInteger size = new AtomicInteger();
+
+        final AtomicInteger claimedChunks = new AtomicInteger();
+        final AtomicInteger migratedChunks = new AtomicInteger();
+        volatile Table next;
+
+        /**
+         * True when all mappings of this table are frozen and copied to {@link #next}.
+         */
+        volatile boolean migrated;
+
+        Table(int capacity) {
+            entries = new AtomicLongArray(2 * capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                entries.lazySet(2 * i + 1, PENDING);
+        }
+
+        int get(long id) {
+            int slot = hash(id) & mask;
+            for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+                long key = entries.get(2 * slot);
+                if (key == EMPTY)
+                    return ABSENT;
+                if (key == id) {
+                    long value = entries.get(2 * slot + 1);
+                    return value >= 0 ? (int) value : value < FROZEN ? (int) (FROZEN - 1 - value) : ABSENT;
+                }
+            }
+            return ABSENT;
+        }
+
+        /**
+         * Maps the ID to the index unless it is already mapped.
+         *
+         * @param copy true when the mapping is copied from the previous table, so this table is never full.
+         * @return the index that the ID is mapped to, or {@link #RETRY} when this table is full or frozen.
+         */
+        long putIfAbsent(long id, int index, boolean copy) {
+            int slot = hash(id) & mask;
+            for (int probes = 0; probes <= mask; ) {
+                long key = entries.get(2 * slot);
+                if (key == EMPTY) {
+                    if (!copy && size.get() >= (mask + 1) / 2)
+                        return RETRY;
+                    if (!entries.compareAndSet(2 * slot, EMPTY, id))
+                        continue; // read the key that was inserted into this slot
+                    size.incrementAndGet();
+                    key = id;
+                }
+                if (key != id) {
+                    probes++;
+                    slot = (slot + 1) & mask;
+                    continue;
+                }
+                while (true) {
+                    long value = entries.get(2 * slot + 1);
+                    if (value >= 0)
+                        return value;
+                    if (value < FROZEN)
+                        return FROZEN - 1 - value;
+                    if (value == FROZEN)
+                        return RETRY;
+                    if (entries.compareAndSet(2 * slot + 1, PENDING, index))
+                        return index;
+                }
+            }
+            return RETRY;
+        }
+
+        /**
+         * Freezes slots of the chunk and copies their mappings to the next table.
+         */
+        void migrate(int chunk, Table next) {
+            int to = Math.min(mask + 1, (chunk + 1) * MIGRATION_CHUNK);
+            for (int slot = chunk * MIGRATION_CHUNK; slot < to; slot++) {
+                long value;
+                while (true) {
+                    value = entries.get(2 * slot + 1);
+                    if (value <= FROZEN)
+                        break;
+                    long frozen = value == PENDING ? FROZEN : FROZEN - 1 - value;
+                    if (entries.compareAndSet(2 * slot + 1, value, frozen)) {
+                        value = frozen;
+                        break;
+                    }
+                }
+                // a pending insert finds its slot frozen and inserts into the next table
+                if (value < FROZEN)
+                    next.putIfAbsent(entries.get(2 * slot), (int) (FROZEN - 1 - value), true);
+            }
+        }
+    }
+}
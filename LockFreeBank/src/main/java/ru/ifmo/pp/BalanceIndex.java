@@ -0,0 +1,396 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+
+/**
+ * Index of the richest accounts and histogram of balances of a {@link BankImpl}, which is maintained incrementally
+ * from a {@link Subscription} to its updates.
+ * <p>
+ * <p>The index keeps a copy of amounts and keeps each account with a positive amount in the heap of its bucket,
+ * with the richest account of the bucket on top. Buckets split each power of two into {@link #SUB_BUCKETS} parts,
+ * so an update moves an account between heaps in O(log B) for buckets of B accounts. The richest accounts are found
+ * by walking non-empty buckets from the top and taking accounts from their heaps in the order of amounts without
+ * looking at the rest of a heap, so a query of K accounts costs O(K log K) however large the buckets are.
+ * The bank pays only for the publication of its updates, the index applies them in the thread of the subscription.
+ * <p>
+ * <p>Amounts of accounts are read after the subscription has started, and each update carries the resulting amount
+ * of its account, so the index is exact once it has applied all updates that were published so far.
+ * Queries lock the index against the subscription, so they see the amounts as of some moment of the stream.
+ * The subscription overwrites updates that it has not taken yet instead of blocking the bank, so slow queries never
+ * stall updates of the bank. When updates are lost the index reads all amounts again, which costs a read of each of
+ * the N accounts of the bank and O(N log B) to rebuild the heaps, so an index whose {@link #getReloads()} grows
+ * as fast as its {@link #getUpdates()} falls behind the bank and needs a faster handler thread or fewer updates.
+ *
+ * @author <Хорин>
+ */
+public final class BalanceIndex implements AutoCloseable {
+    /**
+     * The number of buckets of {@link #getHistogram()}. Bucket 0 counts accounts with zero amounts, and bucket b > 0
+     * counts accounts with amounts from 2^(b-1) inclusive to 2^b exclusive.
+     */
+    public static final int HISTOGRAM_BUCKETS = 65 - Long.numberOfLeadingZeros(Bank.MAX_AMOUNT);
+
+    /**
+     * Binary logarithm of the number of buckets of the index in each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucket(Bank.MAX_AMOUNT) + 1;
+
+    /**
+     * The initial capacity of the heap of a bucket.
+     */
+    private static final int MIN_HEAP_CAPACITY = 4;
+
+    private final BankImpl bank;
+    private final Subscription subscription;
+
+    /*
+     * The fields below are guarded by this.
+     */
+    private long[] amounts;
+
+    /**
+     * Position of each account with a positive amount in the heap of its bucket.
+     */
+    private int[] positions;
+
+    /**
+     * Heaps of indices of accounts by buckets, the richest account of a bucket is at position 0.
+     */
+    private final int[][] heaps = new int[BUCKETS][];
+    private final int[] counts = new int[BUCKETS];
+    private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+    /**
+     * Bit b of word b / 64 is set when bucket b is not empty, so that queries skip empty buckets.
+     */
+    private final long[] occupied = new long[(BUCKETS + 63) / 64];
+
+    /**
+     * The number of accounts that the index knows of.
+     */
+    private int size;
+
+    /**
+     * Flags of accounts that were updated before the initial amounts were read, or null after that.
+     */
+    private boolean[] updated;
+
+    /**
+     * The number of updates that the index has applied, and the number of times it has read all amounts again.
+     */
+    private long updates;
+    private long reloads;
+
+    /**
+     * Creates index and subscribes it to the updates of the bank.
+     *
+     * @param bank the bank.
+     */
+    public BalanceIndex(BankImpl bank) {
+        this.bank = bank;
+        int n = bank.getNumberOfAccounts();
+        amounts = new long[Math.max(n, 16)];
+        positions = new int[amounts.length];
+        updated = new boolean[amounts.length];
+        subscription = bank.subscribe(new Subscription.Handler() {
+            @Override
+            public void onUpdate(Subscription.Update update, long sequence, boolean endOfBatch) {
+                BalanceIndex.this.onUpdate(update);
+            }
+
+            @Override
+            public void onOverrun(long lost) {
+                reload();
+            }
+        }, Subscription.Backpressure.OVERWRITE);
+        /*
+         * Every update that has not taken effect before the subscription is in the stream. An account that was
+         * updated in the meantime has its last amount in the stream, and the others still have the amounts
+         * that are read here.
+         */
+        long[] initial = new long[n];
+        for (int i = 0; i < n; i++)
+            initial[i] = bank.getAmount(i);
+        synchronized (this) {
+            for (int i = 0; i < n; i++) {
+                if (i >= size || !updated[i])
+                    set(i, initial[i]);
+            }
+            updated = null;
+        }
+    }
+
+    /**
+     * Unsubscribes this index from the bank. The index keeps the amounts that it has applied so far.
+     */
+    @Override
+    public void close() {
+        subscription.close();
+    }
+
+    /**
+     * Finds the richest accounts.
+     *
+     * @param indices array where the indices of the richest accounts are stored in the order of decreasing amounts.
+     * @param amounts array where their amounts are stored.
+     * @return the number of found accounts, which is less than the length of arrays when fewer accounts have
+     * positive amounts.
+     * @throws IllegalArgumentException when arrays have different lengths.
+     */
+    public synchronized int getTop(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different lengths");
+        int k = indices.length;
+        int found = 0;
+        /*
+         * The next richest account of a bucket is either the top of its heap or a child of an account that is
+         * already taken, so the candidates are kept in a heap of their positions, which has at most k + 1 of them.
+         */
+        int[] candidates = new int[k + 1];
+        for (int bucket = lower(BUCKETS); bucket > 0 && found < k; bucket = lower(bucket)) {
+            int[] heap = heaps[bucket];
+            int count = counts[bucket];
+            int size = 1;
+            candidates[0] = 0;
+            for (int taken = Math.min(k - found, count); taken > 0; taken--) {
+                int position = candidates[0];
+                indices[found] = heap[position];
+                amounts[found++] = this.amounts[heap[position]];
+                candidates[0] = candidates[--size];
+                siftDownCandidate(heap, candidates, 0, size);
+                for (int child = 2 * position + 1; child <= 2 * position + 2 && child < count; child++) {
+                    candidates[size] = child;
+                    siftUpCandidate(heap, candidates, size++);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of updates that this index has applied.
+     */
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Returns the number of times this index has read all amounts again after its subscription has lost updates.
+     */
+    public synchronized long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Returns the numbers of accounts by buckets of their amounts, see {@link #HISTOGRAM_BUCKETS}.
+     */
+    public long[] getHistogram() {
+        int n = bank.getNumberOfAccounts();
+        long[] histogram;
+        synchronized (this) {
+            histogram = this.histogram.clone();
+            n = Math.max(n, size);
+        }
+        histogram[0] = n;
+        for (int bucket = 1; bucket < HISTOGRAM_BUCKETS; bucket++)
+            histogram[0] -= histogram[bucket];
+        return histogram;
+    }
+
+    /**
+     * Called in the thread of the subscription.
+     */
+    private synchronized void onUpdate(Subscription.Update update) {
+        int index = update.getIndex();
+        set(index, update.getAmount());
+        updates++;
+        if (updated != null)
+            updated[index] = true;
+    }
+
+    /**
+     * Reads all amounts again in the thread of the subscription, after it has lost updates. The lost updates have
+     * taken effect, and the updates that follow in the stream are applied after the amounts that are read here.
+     */
+    private void reload() {
+        int n = bank.getNumberOfAccounts();
+        long[] amounts = new long[n];
+        for (int i = 0; i < n; i++)
+            amounts[i] = bank.getAmount(i);
+        synchronized (this) {
+            for (int i = 0; i < n; i++)
+                set(i, amounts[i]);
+            reloads++;
+            if (updated != null)
+                Arrays.fill(updated, 0, n, true); // these amounts are newer than the initial ones
+        }
+    }
+
+    private void set(int index, long amount) {
+        if (index >= amounts.length) {
+            int length = Math.max(index + 1, 2 * amounts.length);
+            amounts = Arrays.copyOf(amounts, length);
+            positions = Arrays.copyOf(positions, length);
+            if (updated != null)
+                updated = Arrays.copyOf(updated, length);
+        }
+        size = Math.max(size, index + 1);
+        long old = amounts[index];
+        amounts[index] = amount;
+        int from = bucket(old);
+        int to = bucket(amount);
+        if (from == to) {
+            if (to != 0)
+                restore(to, positions[index]);
+            return;
+        }
+        if (from != 0) {
+            // the last account of the heap takes the place of the removed one
+            int count = --counts[from];
+            int position = positions[index];
+            if (position != count) {
+                int last = heaps[from][count];
+                heaps[from][position] = last;
+                positions[last] = position;
+                restore(from, position);
+            }
+            if (count == 0)
+                occupied[from >>> 6] &= ~(1L << from);
+            histogram[histogramBucket(from)]--;
+        }
+        if (to != 0) {
+            int[] heap = heaps[to];
+            int count = counts[to]++;
+            if (heap == null || count == heap.length)
+                heaps[to] = heap = heap == null ? new int[MIN_HEAP_CAPACITY] : Arrays.copyOf(heap, 2 * count);
+            heap[count] = index;
+            positions[index] = count;
+            siftUp(heap, count);
+            if (count == 0)
+                occupied[to >>> 6] |= 1L << to;
+            histogram[histogramBucket(to)]++;
+        }
+    }
+
+    /**
+     * Returns the greatest non-empty bucket below the specified one, or -1.
+     */
+    private int lower(int bucket) {
+        int word = (bucket - 1) >> 6;
+        if (word < 0)
+            return -1;
+        long bits = occupied[word] & (-1L >>> (63 - ((bucket - 1) & 63)));
+        while (bits == 0) {
+            if (--word < 0)
+                return -1;
+            bits = occupied[word];
+        }
+        return word * 64 + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * Returns the bucket of the index for the amount. Bucket 0 is for zero, and amounts below {@link #SUB_BUCKETS}
+     * have buckets of their own.
+     */
+    private static int bucket(long amount) {
+        if (amount < SUB_BUCKETS)
+            return (int) amount;
+        int exponent = 63 - Long.numberOfLeadingZeros(amount);
+        int mantissa = (int) (amount >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * Returns the bucket of the histogram for the bucket of the index.
+     */
+    private static int histogramBucket(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return 64 - Long.numberOfLeadingZeros(bucket);
+        return bucket / SUB_BUCKETS + SUB_BUCKET_BITS;
+    }
+
+    /**
+     * Moves the account at the position of the heap of the bucket up or down after its amount has changed.
+     */
+    private void restore(int bucket, int position) {
+        int[] heap = heaps[bucket];
+        siftDown(heap, siftUp(heap, position), counts[bucket]);
+    }
+
+    /**
+     * Moves the account at the position towards the top of the heap while it is richer than its parent.
+     *
+     * @return the new position of the account.
+     */
+    private int siftUp(int[] heap, int position) {
+        int index = heap[position];
+        long amount = amounts[index];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (amounts[heap[parent]] >= amount)
+                break;
+            heap[position] = heap[parent];
+            positions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = index;
+        positions[index] = position;
+        return position;
+    }
+
+    private void siftDown(int[] heap, int position, int count) {
+        int index = heap[position];
+        long amount = amounts[index];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= count)
+                break;
+            if (child + 1 < count && amounts[heap[child + 1]] > amounts[heap[child]])
+                child++;
+            if (amounts[heap[child]] <= amount)
+                break;
+            heap[position] = heap[child];
+            positions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = index;
+        positions[index] = position;
+    }
+
+    /**
+     * Sifts up a candidate of {@link #getTop(int[], long[])}, which is a position in the heap of a bucket.
+     */
+    private void siftUpCandidate(int[] heap, int[] candidates, int i) {
+        int candidate = candidates[i];
+        long amount = amounts[heap[candidate]];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (amounts[heap[candidates[parent]]] >= amount)
+                break;
+            candidates[i] = candidates[parent];
+            i = parent;
+        }
+        candidates[i] = candidate;
+    }
+
+    private void siftDownCandidate(int[] heap, int[] candidates, int i, int size) {
+        if (size == 0)
+            return;
+        int candidate = candidates[i];
+        long amount = amounts[heap[candidate]];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && amounts[heap[candidates[child + 1]]] > amounts[heap[candidates[child]]])
+                child++;
+            if (amounts[heap[candidates[child]]] <= amount)
+                break;
+            candidates[i] = candidates[child];
+            i = child;
+        }
+        candidates[i] = candidate;
+    }
+}
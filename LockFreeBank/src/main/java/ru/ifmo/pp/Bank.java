@@ -1,5 +1,9 @@
 package ru.ifmo.pp;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+
 /**
  * Bank interface.
  *
@@ -18,6 +22,13 @@ public interface Bank {
      */
     public int getNumberOfAccounts();
 
+    /**
+     * Opens new account with zero amount.
+     *
+     * @return index of the new account, which is the number of accounts in this bank before this call.
+     */
+    public int openAccount();
+
     /**
      * Returns current amount in the specified account.
      *
@@ -27,6 +38,27 @@ public interface Bank {
      */
     public long getAmount(int index);
 
+    /**
+     * Returns total amount in the specified range of accounts.
+     *
+     * @param fromIndex the first account index in the range, inclusive.
+     * @param toIndex the last account index in the range, exclusive.
+     * @return total amount in accounts from fromIndex to toIndex-1.
+     * @throws IllegalArgumentException when fromIndex > toIndex.
+     * @throws IndexOutOfBoundsException when fromIndex < 0 or toIndex > {@link #getNumberOfAccounts() n}.
+     */
+    public long getAmount(int fromIndex, int toIndex);
+
+    /**
+     * Atomically reads amounts in the specified accounts.
+     *
+     * @param indices account indices, they may repeat.
+     * @param out array where amounts are stored in the order of indices.
+     * @throws IllegalArgumentException when arrays have different lengths.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     */
+    public void getAmounts(int[] indices, long[] out);
+
     /**
      * Returns total amount deposited in this bank.
      *
@@ -69,4 +101,90 @@ public interface Bank {
      * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
      */
     public void transfer(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Asynchronously deposits specified amount to account.
+     * Deposits and withdrawals that wait for the same account may be applied to it together.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @return future of the resulting amount in account. It completes exceptionally with IllegalStateException
+     *         when deposit will overflow account above {@link #MAX_AMOUNT}.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> depositAsync(int index, long amount);
+
+    /**
+     * Asynchronously withdraws specified amount from account.
+     * Deposits and withdrawals that wait for the same account may be applied to it together.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @return future of the resulting amount in account. It completes exceptionally with IllegalStateException
+     *         when account does not enough to withdraw.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> withdrawAsync(int index, long amount);
+
+    /**
+     * Asynchronously transfers specified amount from one account to another account.
+     * The transfer is applied in the order of submission only with asynchronous operations on the source account.
+     * An operation on the target account that is submitted after the transfer might be applied before it,
+     * so it has to wait for the returned future to see the transferred amount.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @return future that completes when the transfer is done. It completes exceptionally with IllegalStateException
+     *         when there is not enough funds in source account or too much in target one.
+     * @throws IllegalArgumentException when amount <= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     */
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Atomically performs a batch of transfers one after another.
+     * Either all transfers in the batch are performed or none of them.
+     *
+     * @param fromIndices account indices to withdraw from.
+     * @param toIndices account indices to deposit to.
+     * @param amounts positive amounts to transfer.
+     * @throws IllegalArgumentException when arrays have different lengths, some amount <= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     * @throws IllegalStateException when some transfer in the batch does not find enough funds in source account
+     *         or finds too much in target one.
+     */
+    public void transferAll(int[] fromIndices, int[] toIndices, long[] amounts);
+
+    /**
+     * Atomically reads amounts in the specified accounts and replaces them with the amounts computed by the function.
+     * The function receives current amounts in the order of indices and returns new amounts in the same order.
+     * It is invoked only in the calling thread, but the accounts are not held while it runs, so it might be invoked
+     * several times: when another operation changes the accounts meanwhile, its result is discarded and it is invoked
+     * again with the new amounts. An invocation whose result is discarded might receive amounts that were read
+     * at different times.
+     * When the function throws an exception for the current amounts, no account is changed and the exception
+     * is rethrown.
+     *
+     * @param indices distinct account indices.
+     * @param update function that computes new amounts from current ones.
+     * @return amounts in accounts before the update.
+     * @throws IllegalArgumentException when indices are not distinct or function returns array of different length.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     * @throws IllegalStateException when some new amount is negative or above {@link #MAX_AMOUNT}.
+     */
+    public long[] atomically(int[] indices, Function<long[], long[]> update);
+
+    /**
+     * Atomically replaces amounts in all accounts with the amounts computed by the function, for example to accrue
+     * interest. The function is invoked for each account, in parallel, so it must be thread-safe. It might be invoked
+     * more than once for an account when the thread that has started to compute the account does not finish it.
+     * When the function throws an exception, no account is changed and the exception is rethrown.
+     *
+     * @param update function that computes new amount of an account from its current amount.
+     * @throws IllegalStateException when some new amount is negative or above {@link #MAX_AMOUNT}.
+     */
+    public void applyToAll(LongUnaryOperator update);
 }
@@ -1,26 +1,340 @@
 package ru.ifmo.pp;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongUnaryOperator;
 
 /**
  * Bank implementation.
  * This class is thread-safe and lock-free using operation objects.
  * <p>
  * <p>This implementation is based on "A Practical Multi-Word Compare-and-Swap Operation"  by T. L. Harris et al.
- * It uses a simplified and faster version of DCSS operation that relies for its correctness on the fact that
- * Account instances in {@link #accounts} array never suffer from ABA problem.
+ * Amounts are kept as primitive longs in {@link #accounts} array, so single-account operations never allocate.
+ * An account that takes part in an operation that spans multiple accounts holds a negative tag of the
+ * operation descriptor instead of its amount. Unlike Account instances, long amounts do suffer from ABA problem,
+ * so accounts are acquired with a full RDCSS operation that installs a unique tag of {@link AcquireDescriptor}
+ * first and only then checks that operation is not completed yet.
  * See also "Practical lock-freedom" by Keir Fraser.
- * See {@link #acquire(int, Op)} method.
+ * See {@link #acquire(int, Op, int)} method.
+ * <p>
+ * <p>Transfer and acquire descriptors are reused by the threads that have created them. A thread reads descriptors
+ * of other threads only inside of a critical section of epoch-based reclamation, and a descriptor is reused only when
+ * all threads have left the critical sections that might have seen it. Reused descriptors get new tags, so there is
+ * still no ABA on tags. See {@link Limbo} class.
+ * <p>
+ * <p>Total amount is not read from accounts. Each thread keeps a versioned {@link ThreadTotal} of its own deposits
+ * and withdrawals, and {@link #getTotalAmount()} reads a consistent snapshot of them. Totals belong to thread
+ * contexts rather than to threads, and a new thread inherits the total of a terminated one together with its
+ * context, so the number of totals is bounded by the number of threads that run at the same time.
+ * <p>
+ * <p>Accounts that are not opened yet keep {@link #CLOSED} marker. When {@link #openAccount()} runs out of them,
+ * the array of accounts is replaced with a twice as large one. Accounts are moved to the new array one by one
+ * by {@link MoveOp} that leaves {@link #MOVED} marker behind, and operations follow this marker to the new
+ * array only while the growth is in progress. See {@link #grow(LongSlots)} method.
+ * <p>
+ * <p>Accounts are kept in {@link LongSlots}, either in a long array on heap or in direct memory off heap.
+ * A bank of many millions of accounts off heap has no heap objects per account, so garbage collector
+ * neither copies nor scans its accounts.
+ * <p>
+ * <p>Neighbouring accounts share cache lines, so threads that update them invalidate each other's caches.
+ * A bank that is created with a stride keeps each account in the first long of its own group of stride longs.
+ * <p>
+ * <p>Deposits to a hot account, the one whose compareAndSet keeps failing, are combined. Each deposit publishes
+ * itself in one of the padded slots of {@link HotAccount}, and a single {@link BatchDepositOp} applies all published
+ * deposits with one update of the account. Deposit has to return the resulting amount, so deposits cannot
+ * be simply added to striped sub-amounts; a deposit takes effect only when its batch updates the account,
+ * and other operations never need to merge pending deposits into the amount.
+ * <p>
+ * <p>Asynchronous deposits, withdrawals and transfers wait in {@link #asyncQueues} by buckets of account indices.
+ * The thread that finds a queue empty schedules it to be drained, and the drain applies all deposits and withdrawals
+ * that wait for the same account with a single compareAndSet. See {@link AsyncQueues}.
+ * <p>
+ * <p>A bank with a {@link Journal} appends a record of each update to it, and replays the journal when it is created.
+ * Single-account updates read the epoch of the journal right before their compareAndSet, and operation descriptors
+ * fix their epoch when they complete, while the writer stays announced in its {@link ThreadTotal}.
+ * <p>
+ * <p>Updates are published to subscriptions through {@link UpdateRing}. An update claims its sequence like it reads
+ * the epoch of the journal, so updates of an account are published in the order in which they take effect.
+ * <p>
+ * <p>Transfers with request IDs are kept in {@link DedupCache} after they complete, and their descriptors serve
+ * as records of their outcomes, so retries neither touch accounts nor execute transfers twice.
  *
  * @author <Хорин>
  */
 public class BankImpl implements Bank {
     /**
-     * An array of accounts by index.
-     * Account instances here are never reused (there is no ABA).
+     * This bit is set in all tags, so tags are negative and can be told apart from non-negative amounts.
+     */
+    private static final long TAG_BIT = Long.MIN_VALUE;
+
+    /**
+     * This bit is set in tags of {@link AcquireDescriptor} and is clear in tags of {@link Op}.
+     */
+    private static final long ACQUIRE_BIT = 1L << 62;
+
+    /**
+     * Number of low bits in a tag that keep sequence number of the descriptor in its {@link ThreadContext}.
+     * The bits above them up to {@link #ACQUIRE_BIT} keep the slot of the context.
+     */
+    private static final int SEQ_BITS = 46;
+    private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+
+    /**
+     * The maximal number of concurrently alive threads that can work with banks. A thread beyond them waits
+     * in its first operation until one of them terminates, see {@link ThreadContext#claim(Thread)}.
+     */
+    private static final int MAX_CONTEXTS = 1 << (62 - SEQ_BITS);
+
+    /**
+     * Tags with lower sequence numbers are never created, they are reserved for the markers below.
+     */
+    private static final long FIRST_SEQ = 3;
+
+    /**
+     * Kept in the account that was moved to the new array of accounts.
+     */
+    private static final long MOVED = TAG_BIT;
+
+    /**
+     * Kept in the account that is not opened yet.
+     */
+    private static final long CLOSED = TAG_BIT | 1;
+
+    /**
+     * Kept in the account of the new array of accounts until the account is moved to it.
+     */
+    private static final long UNMOVED = TAG_BIT | 2;
+
+    /**
+     * The number of accounts in the first array of a bank that was created without accounts.
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The stride that keeps accounts in separate 128-byte blocks, so that adjacent-line prefetch does not
+     * make neighbouring accounts to share cache lines either.
+     */
+    public static final int PADDED = 16;
+
+    /**
+     * The number of descriptors of one kind that a thread keeps for reuse, a power of two.
+     */
+    private static final int LIMBO_SIZE = 64;
+
+    /**
+     * Epoch of a thread that is not in a critical section.
+     */
+    private static final long QUIESCENT = 0;
+
+    /**
+     * Returned by {@link #acquire(int, Op, int)} when operation is already completed.
+     */
+    private static final long NOT_ACQUIRED = -1;
+
+    /**
+     * The number of attempts to read a consistent snapshot of {@link #totals} before requesting writers
+     * to pause, and then before falling back to {@link TotalAmountOp} that acquires all accounts.
+     */
+    private static final int SNAPSHOT_ATTEMPTS = 16;
+
+    /**
+     * The number of spins for which a snapshot of {@link #totals} waits for a thread total that is being updated,
+     * and for which a writer waits before its update while a snapshot is requested.
+     */
+    private static final int SNAPSHOT_SPINS = 1 << 10;
+
+    /**
+     * Returned by {@link #snapshotTotals()} when it has not read a consistent snapshot.
+     */
+    private static final long NO_SNAPSHOT = Long.MIN_VALUE;
+
+    /**
+     * The number of buckets in {@link #heat} and {@link #hotAccounts}, a power of two.
+     */
+    private static final int HOT_BUCKETS = 64;
+
+    /**
+     * The number of slots in the ring buffer of updates for subscriptions.
+     */
+    private static final int RING_CAPACITY = 1 << 16;
+
+    /**
+     * The number of buckets of {@link #dedupCache}, a power of two, and the number of transfers that a bucket keeps.
+     */
+    private static final int DEDUP_BUCKETS = 1 << 14;
+    private static final int DEDUP_WAYS = 8;
+
+    /**
+     * The number of accounts that {@link #applyToAll(LongUnaryOperator)} updates in one parallel task.
+     */
+    private static final int APPLY_CHUNK_SIZE = 1 << 12;
+
+    /**
+     * The number of slots for all accounts that {@link #scratch} keeps, applyToAll takes two of them.
+     */
+    private static final int SCRATCH_SLOTS = 2;
+
+    /**
+     * The number of failed compareAndSet in deposits to accounts of the same bucket after which
+     * the account becomes hot.
+     */
+    private static final int HOT_THRESHOLD = 32;
+
+    /**
+     * The number of successive batches with a single deposit after which a hot account cools down.
+     */
+    private static final int COOL_DOWN_BATCHES = 64;
+
+    /**
+     * The number of slots for concurrent deposits to a hot account, a power of two.
+     * Slots are {@link #SLOT_STRIDE} references apart, so that they do not share cache lines.
+     */
+    private static final int DEPOSIT_SLOTS = 16;
+    private static final int SLOT_STRIDE = 16;
+
+    /**
+     * The number of checks whether some other thread has taken a published deposit into its batch,
+     * before the depositor creates a batch by itself.
+     */
+    private static final int COMBINE_SPINS = 32;
+
+    /**
+     * Returned by {@link #depositCombined(HotAccount, long)} when there is no free slot,
+     * and kept in the results of {@link BatchDepositOp} for deposits that were taken by other batches.
+     */
+    private static final long NOT_COMBINED = -1;
+
+    /**
+     * Value of {@link Op#sequence} before the operation has claimed sequences in {@link #ring}.
+     */
+    private static final long NO_SEQUENCE = -1;
+
+    /**
+     * Kept in the results of {@link BatchDepositOp} for deposits that would overflow the account.
+     */
+    private static final long OVERFLOW = -2;
+
+    private static final AtomicIntegerFieldUpdater<BankImpl> SIZE =
+            AtomicIntegerFieldUpdater.newUpdater(BankImpl.class, "size");
+    private static final AtomicReferenceFieldUpdater<BankImpl, LongSlots> ACCOUNTS =
+            AtomicReferenceFieldUpdater.newUpdater(BankImpl.class, LongSlots.class, "accounts");
+    private static final AtomicReferenceFieldUpdater<BankImpl, Growth> GROWTH =
+            AtomicReferenceFieldUpdater.newUpdater(BankImpl.class, Growth.class, "growth");
+    private static final AtomicReferenceFieldUpdater<BankImpl, UpdateRing> RING =
+            AtomicReferenceFieldUpdater.newUpdater(BankImpl.class, UpdateRing.class, "ring");
+    private static final AtomicReferenceFieldUpdater<BankImpl, DedupCache> DEDUP_CACHE =
+            AtomicReferenceFieldUpdater.newUpdater(BankImpl.class, DedupCache.class, "dedupCache");
+
+    private static final AtomicLongFieldUpdater<Op> SEQUENCE = AtomicLongFieldUpdater.newUpdater(Op.class, "sequence");
+    private static final AtomicLongFieldUpdater<Op> JOURNAL_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(Op.class, "journalEpoch");
+    private static final AtomicIntegerFieldUpdater<Op> DECIDED = AtomicIntegerFieldUpdater.newUpdater(Op.class, "decided");
+    private static final AtomicIntegerFieldUpdater<ApplyOp> OUTCOME =
+            AtomicIntegerFieldUpdater.newUpdater(ApplyOp.class, "outcome");
+    private static final AtomicReferenceFieldUpdater<ApplyOp, RuntimeException> FAILURE =
+            AtomicReferenceFieldUpdater.newUpdater(ApplyOp.class, RuntimeException.class, "failure");
+
+    private static final AtomicReferenceFieldUpdater<DepositNode, BatchDepositOp> BATCH =
+            AtomicReferenceFieldUpdater.newUpdater(DepositNode.class, BatchDepositOp.class, "batch");
+
+    /**
+     * An array of account amounts by index.
+     * A negative value is a tag of {@link Op} or {@link AcquireDescriptor} that is in progress on this account,
+     * or one of {@link #MOVED} and {@link #CLOSED} markers. Tags are never reused (there is no ABA on tags).
+     * It is replaced only when {@link #growth} completes.
+     */
+    private volatile LongSlots accounts;
+
+    /**
+     * The last growth of {@link #accounts}.
+     */
+    private volatile Growth growth;
+
+    /**
+     * The number of opened accounts. It might be one less than the actual number while the account is being opened.
+     */
+    private volatile int size;
+
+    /**
+     * Decides whether to wait for or to help operations that have acquired accounts.
+     */
+    private final ContentionManager contentionManager;
+
+    /**
+     * Journal of updates, or null when the bank is not durable.
+     */
+    private final Journal journal;
+
+    /**
+     * Checkpoint of accounts, or null.
+     */
+    private final Checkpoint checkpoint;
+
+    /**
+     * Ring buffer of updates for subscriptions, it is created by the first subscription.
+     */
+    private volatile UpdateRing ring;
+
+    /**
+     * Recent transfers with request IDs, it is created by the first of them.
+     */
+    private volatile DedupCache dedupCache;
+
+    /**
+     * True while {@link #checkpoint()} is running. Single-account updates read it after they have read the epoch
+     * of the journal, so the ones that do not see it have epochs that the checkpoint waits for before it reads
+     * any chunk.
+     */
+    private volatile boolean checkpointing;
+
+    /**
+     * Binary logarithm of the stride between accounts in {@link #accounts}.
+     */
+    private final int shift;
+
+    /**
+     * Numbers of failed compareAndSet in deposits by buckets of account indices.
+     */
+    private final AtomicIntegerArray heat = new AtomicIntegerArray(HOT_BUCKETS);
+
+    /**
+     * Hot accounts by buckets of their indices. There is at most one hot account in a bucket.
+     */
+    private final AtomicReferenceArray<HotAccount> hotAccounts = new AtomicReferenceArray<>(HOT_BUCKETS);
+
+    /**
+     * Queues of asynchronous operations, see {@link #applyAsync(AsyncQueues.AsyncOp)}.
+     */
+    private final AsyncQueues asyncQueues = new AsyncQueues(HOT_BUCKETS, ForkJoinPool.commonPool(), this::applyAsync);
+
+    /**
+     * Head of the list of totals of all thread contexts that have ever updated this bank.
      */
-    private final AtomicReferenceArray<Account> accounts;
+    private final AtomicReference<ThreadTotal> totals = new AtomicReference<>();
+
+    /**
+     * The number of threads that request writers to pause before updating their {@link #totals},
+     * see {@link #getTotalAmount()}.
+     */
+    private final AtomicInteger snapshotRequests = new AtomicInteger();
+
+    /**
+     * Slots for all accounts that were used by finished operations and can be reused by
+     * {@link #getTotalAmount()} and {@link #applyToAll(LongUnaryOperator)}, or nulls.
+     */
+    private final AtomicReferenceArray<Scratch> scratch = new AtomicReferenceArray<>(SCRATCH_SLOTS);
 
     /**
      * Creates new bank instance.
@@ -28,10 +342,124 @@ public class BankImpl implements Bank {
      * @param n the number of accounts (numbered from 0 to n-1).
      */
     public BankImpl(int n) {
-        accounts = new AtomicReferenceArray<>(n);
-        for (int i = 0; i < n; i++) {
-            accounts.set(i, new Account(0));
+        this(n, new ContentionManager());
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param contentionManager decides whether to wait for or to help operations on acquired accounts.
+     */
+    public BankImpl(int n, ContentionManager contentionManager) {
+        this(n, contentionManager, 1);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param contentionManager decides whether to wait for or to help operations on acquired accounts.
+     * @param stride the number of longs per account, a power of two up to 64, 1 to keep accounts in adjacent longs
+     *        or {@link #PADDED} to keep them in separate cache lines.
+     * @throws IllegalArgumentException when stride is invalid.
+     */
+    public BankImpl(int n, ContentionManager contentionManager, int stride) {
+        this(n, contentionManager, stride, false);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param contentionManager decides whether to wait for or to help operations on acquired accounts.
+     * @param stride the number of longs per account, a power of two up to 64, 1 to keep accounts in adjacent longs
+     *        or {@link #PADDED} to keep them in separate cache lines.
+     * @param offHeap true to keep accounts in direct memory, which is limited by -XX:MaxDirectMemorySize,
+     *        false to keep them in a long array on heap.
+     * @throws IllegalArgumentException when stride is invalid.
+     */
+    public BankImpl(int n, ContentionManager contentionManager, int stride, boolean offHeap) {
+        this(n, contentionManager, stride, offHeap, null);
+    }
+
+    /**
+     * Creates new bank instance that restores accounts from the journal and appends all its updates to it.
+     *
+     * @param n the minimal number of accounts (numbered from 0 to n-1), accounts opened in the journal are added.
+     * @param journal journal of updates.
+     * @throws IllegalStateException when the journal is used by other bank or its records are inconsistent.
+     */
+    public BankImpl(int n, Journal journal) {
+        this(n, new ContentionManager(), 1, false, journal, null);
+    }
+
+    /**
+     * Creates new bank instance that restores accounts from the checkpoint and the records of the journal after it,
+     * and appends all its updates to the journal. See {@link #checkpoint()}.
+     *
+     * @param n the minimal number of accounts (numbered from 0 to n-1), accounts opened in the journal are added.
+     * @param journal journal of updates.
+     * @param checkpoint checkpoint of accounts that was written with the same journal.
+     * @throws IllegalStateException when the journal is used by other bank or its records are inconsistent.
+     */
+    public BankImpl(int n, Journal journal, Checkpoint checkpoint) {
+        this(n, new ContentionManager(), 1, false, journal, checkpoint);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1), accounts opened in the journal are added.
+     * @param contentionManager decides whether to wait for or to help operations on acquired accounts.
+     * @param stride the number of longs per account, a power of two up to 64, 1 to keep accounts in adjacent longs
+     *        or {@link #PADDED} to keep them in separate cache lines.
+     * @param offHeap true to keep accounts in direct memory, which is limited by -XX:MaxDirectMemorySize,
+     *        false to keep them in a long array on heap.
+     * @param journal journal of updates, or null when the bank is not durable.
+     * @throws IllegalArgumentException when stride is invalid, or n accounts with this stride do not fit into int.
+     * @throws IllegalStateException when the journal is used by other bank or its records are inconsistent.
+     */
+    public BankImpl(int n, ContentionManager contentionManager, int stride, boolean offHeap, Journal journal) {
+        this(n, contentionManager, stride, offHeap, journal, null);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1), accounts opened in the journal are added.
+     * @param contentionManager decides whether to wait for or to help operations on acquired accounts.
+     * @param stride the number of longs per account, a power of two up to 64, 1 to keep accounts in adjacent longs
+     *        or {@link #PADDED} to keep them in separate cache lines.
+     * @param offHeap true to keep accounts in direct memory, which is limited by -XX:MaxDirectMemorySize,
+     *        false to keep them in a long array on heap.
+     * @param journal journal of updates, or null when the bank is not durable.
+     * @param checkpoint checkpoint of accounts that was written with the same journal, or null.
+     * @throws IllegalArgumentException when stride is invalid, n accounts with this stride do not fit into int,
+     *         or there is a checkpoint without journal.
+     * @throws IllegalStateException when the journal is used by other bank or its records are inconsistent.
+     */
+    public BankImpl(int n, ContentionManager contentionManager, int stride, boolean offHeap, Journal journal,
+                    Checkpoint checkpoint) {
+        if (checkpoint != null && journal == null)
+            throw new IllegalArgumentException("Checkpoint requires journal");
+        if (stride <= 0 || stride > 64 || (stride & (stride - 1)) != 0)
+            throw new IllegalArgumentException("Invalid stride: " + stride);
+        shift = Integer.numberOfTrailingZeros(stride);
+        if (n < 0 || (n << shift) >>> shift != n)
+            throw new IllegalArgumentException("Invalid number of accounts: " + n);
+        accounts = offHeap ? LongSlots.offHeap(n << shift) : LongSlots.onHeap(n << shift);
+        growth = new Growth(null, accounts);
+        growth.done = true;
+        size = n;
+        this.contentionManager = contentionManager;
+        if (journal != null) {
+            journal.attach(this::awaitJournalWriters, checkpoint);
+            // this.journal is still null, so the replay is not written to the journal again
+            replay(journal, checkpoint);
         }
+        this.journal = journal;
+        this.checkpoint = checkpoint;
     }
 
     /**
@@ -39,7 +467,128 @@ public class BankImpl implements Bank {
      */
     @Override
     public int getNumberOfAccounts() {
-        return accounts.length();
+        while (true) {
+            int n = size;
+            LongSlots words = accounts;
+            // help to complete openAccount that has already opened the next account
+            if (n == capacity(words) || words.get(slot(n)) < 0)
+                return n;
+            SIZE.compareAndSet(this, n, n + 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int openAccount() {
+        while (true) {
+            int n = size;
+            LongSlots words = accounts;
+            if (n == capacity(words)) {
+                grow(words);
+                continue;
+            }
+            long word = words.get(slot(n));
+            if (word == CLOSED) {
+                Journal journal = this.journal;
+                if (journal == null) {
+                    if (!words.compareAndSet(slot(n), CLOSED, 0))
+                        continue;
+                } else {
+                    ThreadTotal total = threadTotal();
+                    long epoch = enterJournal(journal, total);
+                    if (!words.compareAndSet(slot(n), CLOSED, 0)) {
+                        total.journalEpoch = 0;
+                        continue;
+                    }
+                    journal.append(epoch, Journal.OPEN, n + 1, 0, 0);
+                    leaveJournal(journal, total, epoch);
+                }
+                SIZE.compareAndSet(this, n, n + 1);
+                return n;
+            }
+            if (word == MOVED)
+                grow(words);
+            else if (word < 0)
+                help(n, word);
+            else
+                SIZE.compareAndSet(this, n, n + 1); // other thread has opened this account
+        }
+    }
+
+    /**
+     * Replaces the array of accounts with a twice as large one, or helps to complete its growth in progress.
+     * Each account is moved by {@link MoveOp} that waits for operations on this account to complete, so that
+     * accounts are never moved while they are acquired. Operations that find {@link #MOVED} marker look for
+     * the account in {@link Growth#to} array, so this method never blocks other operations.
+     */
+    private void grow(LongSlots words) {
+        Growth growth = this.growth;
+        if (growth.done) {
+            if (growth.to != words)
+                return; // other thread has already grown the array
+            int n = capacity(words);
+            LongSlots to = words.create(Math.max(2 * n, MIN_CAPACITY) << shift);
+            for (int i = 0; i < capacity(to); i++)
+                to.lazySet(slot(i), i < n ? UNMOVED : CLOSED);
+            Growth next = new Growth(words, to);
+            if (!GROWTH.compareAndSet(this, growth, next))
+                return;
+            growth = next;
+        }
+        for (int i = 0; i < capacity(growth.from); i++) {
+            if (growth.from.get(slot(i)) != MOVED)
+                execute(new MoveOp(growth, i));
+        }
+        ACCOUNTS.compareAndSet(this, growth.from, growth.to);
+        growth.done = true;
+    }
+
+    /**
+     * Returns the array of accounts where the accounts that have {@link #MOVED} marker in the specified array are.
+     */
+    private LongSlots successor(LongSlots words) {
+        Growth growth = this.growth;
+        // the growth from words is already done when it is not the last growth
+        return growth.from == words ? growth.to : accounts;
+    }
+
+    /**
+     * Returns the array of accounts where the account at index is.
+     */
+    private LongSlots table(int index) {
+        LongSlots words = accounts;
+        while (words.get(slot(index)) == MOVED)
+            words = successor(words);
+        return words;
+    }
+
+    /**
+     * Returns the number of accounts in the array of accounts.
+     */
+    private int capacity(LongSlots words) {
+        return words.length >> shift;
+    }
+
+    /**
+     * Returns the position of the account in the array of accounts.
+     *
+     * @throws IndexOutOfBoundsException when the position does not fit into int.
+     */
+    int slot(int index) {
+        int slot = index << shift;
+        if (slot >>> shift != index)
+            throw new IndexOutOfBoundsException("index " + index);
+        return slot;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException when index is not an index of opened account.
+     */
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size && index >= getNumberOfAccounts())
+            throw new IndexOutOfBoundsException("index " + index);
     }
 
     /**
@@ -47,303 +596,2897 @@ public class BankImpl implements Bank {
      */
     @Override
     public long getAmount(int index) {
+        int slot = slot(index);
+        LongSlots words = accounts;
         while (true) {
-            Account account = accounts.get(index);
+            long word = words.get(slot);
             /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account amount can be safely returned.
+             * If there is a pending operation on this account, then help to complete it first.
+             * Otherwise, the word is the account amount and can be safely returned.
              */
-            if (!account.invokeOperation())
-                return account.amount;
+            if (word >= 0)
+                return word;
+            if (word == MOVED)
+                words = successor(words);
+            else if (word == CLOSED)
+                throw new IndexOutOfBoundsException("index " + index);
+            else
+                help(index, word);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void getAmounts(int[] indices, long[] out) {
+        // First, validate method per-conditions
+        if (indices.length != out.length)
+            throw new IllegalArgumentException("Different lengths");
+        int[] sorted = sortedIndices(indices);
+        if (sorted.length <= 1) {
+            if (sorted.length == 1)
+                Arrays.fill(out, getAmount(sorted[0]));
+            return;
+        }
+        /*
+         * Accounts are acquired in the order of indices and released with the same amounts.
+         */
+        ReadOp op = new ReadOp(sorted);
+        execute(op);
+        for (int i = 0; i < indices.length; i++)
+            out[i] = op.amounts[Arrays.binarySearch(sorted, indices[i])];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int fromIndex, int toIndex) {
+        if (fromIndex > toIndex)
+            throw new IllegalArgumentException("fromIndex > toIndex");
+        if (fromIndex < 0 || toIndex > size && toIndex > getNumberOfAccounts())
+            throw new IndexOutOfBoundsException("range " + fromIndex + ".." + toIndex);
+        if (toIndex - fromIndex <= 1)
+            return fromIndex == toIndex ? 0 : getAmount(fromIndex);
+        /*
+         * Accounts of the range are acquired like in getTotalAmount, but the rest of the bank is not touched.
+         */
+        RangeAmountOp op = new RangeAmountOp(fromIndex, toIndex);
+        execute(op);
+        return op.sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        long sum = snapshotTotals();
+        if (sum != NO_SNAPSHOT)
+            return sum;
+        /*
+         * Threads keep updating accounts. While the request is raised, they pause for a while before
+         * their updates, so that the totals stop changing unless some thread was preempted in the middle of one.
+         */
+        snapshotRequests.incrementAndGet();
+        try {
+            sum = snapshotTotals();
+        } finally {
+            snapshotRequests.decrementAndGet();
+        }
+        if (sum != NO_SNAPSHOT)
+            return sum;
+        /*
+         * Some thread was preempted in the middle of the update or keeps updating after its pause.
+         * This operation requires atomic read of all accounts, thus it creates an operation descriptor.
+         * Operation's invokeOperation method acquires all accounts, computes the total amount, and releases
+         * all accounts. This method returns the result.
+         */
+        TotalAmountOp op;
+        do {
+            op = new TotalAmountOp();
+            execute(op);
+            releaseScratch(op.allAmounts);
+        } while (op.grown);
+        return op.sum;
+    }
+
+    /**
+     * Reads a consistent sum of thread totals in {@link #SNAPSHOT_ATTEMPTS} attempts.
+     * The sum is consistent when all of them had even and the same versions in two passes.
+     * Versions only grow, so it is enough to compare the sums of versions.
+     *
+     * @return the sum, or {@link #NO_SNAPSHOT} when the totals kept changing.
+     */
+    private long snapshotTotals() {
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long versions = 0;
+            long sum = 0;
+            boolean updating = false;
+            for (ThreadTotal total = totals.get(); total != null; total = total.next) {
+                long version = total.version;
+                // an update of a single account is short, so the stripe is waited for rather than the whole pass
+                for (int spins = 0; (version & 1) != 0 && spins < SNAPSHOT_SPINS; spins++) {
+                    Thread.onSpinWait();
+                    version = total.version;
+                }
+                updating |= (version & 1) != 0;
+                versions += version;
+                sum += total.total;
+            }
+            if (updating)
+                continue;
+            for (ThreadTotal total = totals.get(); total != null; total = total.next)
+                versions -= total.version;
+            if (versions == 0)
+                return sum;
+        }
+        return NO_SNAPSHOT;
+    }
+
+    /**
+     * Returns slots for amounts of all accounts, of the same kind as the accounts and of their current number.
+     */
+    private LongSlots takeScratch() {
+        return takeScratch(capacity(accounts));
+    }
+
+    /**
+     * Takes slots of the specified length that a finished operation has released, or creates them.
+     * Slots of other lengths are left to garbage collector, because the bank has grown since they were used.
+     */
+    private LongSlots takeScratch(int length) {
+        for (int i = 0; i < SCRATCH_SLOTS; i++) {
+            Scratch s = scratch.get(i);
+            if (s == null)
+                continue;
+            if (s.slots.length != length) {
+                scratch.compareAndSet(i, s, null);
+                continue;
+            }
+            // like a retired descriptor, the slots might be still written by threads that help the operation
+            boolean safe = ThreadContext.isSafe(s.epoch);
+            while (!safe && ThreadContext.tryAdvance())
+                safe = ThreadContext.isSafe(s.epoch);
+            if (safe && scratch.compareAndSet(i, s, null))
+                return s.slots;
+        }
+        return accounts.create(length);
+    }
+
+    /**
+     * Keeps slots of an operation that has finished for reuse, when there is room for them.
+     */
+    private void releaseScratch(LongSlots slots) {
+        Scratch s = new Scratch(slots, ThreadContext.epoch());
+        for (int i = 0; i < SCRATCH_SLOTS; i++) {
+            if (scratch.get(i) == null && scratch.compareAndSet(i, null, s))
+                return;
+        }
+    }
+
+    /**
+     * Returns the total of the current thread context in this bank.
+     * It is cached in the context for the last bank, and is looked up or created for other banks.
+     */
+    private ThreadTotal threadTotal() {
+        ThreadContext context = ThreadContext.current();
+        if (context.totalBank == this)
+            return context.total;
+        ThreadTotal total;
+        while (true) {
+            ThreadTotal head = totals.get();
+            for (total = head; total != null && total.context != context; total = total.next)
+                ;
+            if (total != null)
+                break;
+            /*
+             * Only the owner of the context adds its total, so the total cannot appear after the lookup
+             * unless the head has changed.
+             */
+            total = new ThreadTotal(context, head, snapshotRequests);
+            if (totals.compareAndSet(head, total))
+                break;
+        }
+        context.totalBank = this;
+        context.total = total;
+        return total;
+    }
+
+    /**
+     * Returns the number of thread totals of this bank. It is used in tests.
+     */
+    int threadTotals() {
+        int n = 0;
+        for (ThreadTotal total = totals.get(); total != null; total = total.next)
+            n++;
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        HotAccount hot = hotAccounts.get(bucket(index));
+        if (hot != null && hot.index == index) {
+            long result = depositCombined(hot, amount);
+            if (result != NOT_COMBINED)
+                return result;
+        }
+        /*
+         * This operation depends only on a single account, thus it can be directly
+         * performed using a regular lock-free compareAndSet loop.
+         */
+        ThreadTotal total = threadTotal();
+        int slot = slot(index);
+        LongSlots words = accounts;
+        while (true) {
+            long word = words.get(slot);
+            /*
+             * If there is a pending operation on this account, then help to complete it first.
+             * Otherwise, the word is the account amount and can be safely updated.
+             */
+            if (word < 0) {
+                if (word == MOVED)
+                    words = successor(words);
+                else if (word == CLOSED)
+                    throw new IndexOutOfBoundsException("index " + index);
+                else
+                    help(index, word);
+                continue;
+            }
+            if (word + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            Journal journal = this.journal;
+            long epoch = journal == null ? 0 : enterJournal(journal, total);
+            if (journal != null && checkpointing) {
+                total.journalEpoch = 0;
+                return updateAcquired(index, amount);
+            }
+            UpdateRing ring = beginPublishedUpdate(total);
+            long sequence = ring == null ? 0 : ring.next(1);
+            boolean updated = words.compareAndSet(slot, word, word + amount);
+            total.endUpdate(updated ? amount : 0);
+            if (ring != null) {
+                publish(ring, sequence, updated, index, amount, word + amount);
+                total.endPublishing();
+            }
+            if (journal != null)
+                writeJournal(journal, total, epoch, updated, index, amount);
+            if (updated)
+                return word + amount;
+            heatUp(index);
+        }
+    }
+
+    /**
+     * Deposits to a hot account by publishing the deposit and waiting until some batch applies it.
+     * The depositor creates a batch of all published deposits by itself when no other thread has taken its
+     * deposit for a while, and helps the batch that has taken its deposit, so deposits stay lock-free.
+     *
+     * @return the resulting amount or {@link #NOT_COMBINED} when all slots of the hot account are taken.
+     */
+    private long depositCombined(HotAccount hot, long amount) {
+        DepositNode node = new DepositNode(amount);
+        int slot = hot.publish(node);
+        if (slot < 0)
+            return NOT_COMBINED;
+        try {
+            for (int spins = 0, waits = 0; ; spins++) {
+                BatchDepositOp batch = node.batch;
+                if (batch == null) {
+                    if (spins < COMBINE_SPINS) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    DepositNode[] pending = hot.pending();
+                    if (pending.length == 0) {
+                        // a batch has taken the deposit since it was read, so it is found next time
+                        contentionManager.pause(waits++);
+                        continue;
+                    }
+                    batch = new BatchDepositOp(hot, pending);
+                    execute(batch);
+                    coolDown(hot, pending.length);
+                    continue;
+                }
+                if (!batch.completed) {
+                    batch.invokeOperation();
+                    continue;
+                }
+                long result = batch.resultOf(node);
+                if (result == OVERFLOW)
+                    throw new IllegalStateException("Overflow");
+                Journal journal = this.journal;
+                if (journal != null && journal.isSynchronous())
+                    journal.commit(batch.journalEpoch); // the batch is written by its owner
+                return result;
+            }
+        } finally {
+            hot.slots.compareAndSet(slot, node, null);
+        }
+    }
+
+    private static int bucket(int index) {
+        return (index * 0x9E3779B9 >>> 16) & (HOT_BUCKETS - 1);
+    }
+
+    /**
+     * Counts failed compareAndSet in a deposit to the account and makes the account hot
+     * when there were too many of them in its bucket.
+     */
+    private void heatUp(int index) {
+        int bucket = bucket(index);
+        if (heat.incrementAndGet(bucket) >= HOT_THRESHOLD) {
+            heat.set(bucket, 0);
+            makeHot(index);
+        }
+    }
+
+    /**
+     * Makes the account hot right away, replacing other hot account in its bucket.
+     */
+    void makeHot(int index) {
+        hotAccounts.set(bucket(index), new HotAccount(index));
+    }
+
+    boolean isHot(int index) {
+        HotAccount hot = hotAccounts.get(bucket(index));
+        return hot != null && hot.index == index;
+    }
+
+    /**
+     * Stops combining deposits to the account when its batches keep having a single deposit.
+     * The counter of such batches has a benign data race, it is only a heuristic.
+     */
+    private void coolDown(HotAccount hot, int batchSize) {
+        if (batchSize > 1)
+            hot.singleBatches = 0;
+        else if (++hot.singleBatches >= COOL_DOWN_BATCHES)
+            hotAccounts.compareAndSet(bucket(hot.index), hot, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow");
+        /*
+         * This operation depends only on a single account, thus it can be directly
+         * performed using a regular lock-free compareAndSet loop.
+         */
+        ThreadTotal total = threadTotal();
+        int slot = slot(index);
+        LongSlots words = accounts;
+        while (true) {
+            long word = words.get(slot);
+            /*
+             * If there is a pending operation on this account, then help to complete it first.
+             * Otherwise, the word is the account amount and can be safely updated.
+             */
+            if (word < 0) {
+                if (word == MOVED)
+                    words = successor(words);
+                else if (word == CLOSED)
+                    throw new IndexOutOfBoundsException("index " + index);
+                else
+                    help(index, word);
+                continue;
+            }
+            if (word - amount < 0)
+                throw new IllegalStateException("Underflow");
+            Journal journal = this.journal;
+            long epoch = journal == null ? 0 : enterJournal(journal, total);
+            if (journal != null && checkpointing) {
+                total.journalEpoch = 0;
+                return updateAcquired(index, -amount);
+            }
+            UpdateRing ring = beginPublishedUpdate(total);
+            long sequence = ring == null ? 0 : ring.next(1);
+            boolean updated = words.compareAndSet(slot, word, word - amount);
+            total.endUpdate(updated ? -amount : 0);
+            if (ring != null) {
+                publish(ring, sequence, updated, index, -amount, word - amount);
+                total.endPublishing();
+            }
+            if (journal != null)
+                writeJournal(journal, total, epoch, updated, index, -amount);
+            if (updated)
+                return word - amount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow/overflow");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        /*
+         * This operation requires atomic read of two accounts, thus it creates an operation descriptor.
+         * Operation's invokeOperation method acquires both accounts, computes the result of operation
+         * (if a form of error message), and releases both accounts. This method throws the exception with
+         * the corresponding message if needed.
+         */
+        Limbo<TransferOp> limbo = ThreadContext.current().transferOps(this);
+        TransferOp op = limbo.reuse();
+        if (op == null)
+            op = new TransferOp();
+        op.init(fromIndex, toIndex, amount);
+        execute(op);
+        String errorMessage = op.errorMessage;
+        limbo.retire(op);
+        if (errorMessage != null)
+            throw new IllegalStateException(errorMessage);
+    }
+
+    /**
+     * Transfers specified amount from one account to another account unless the transfer with the same request ID
+     * was executed recently, so that clients can retry transfers whose outcome they do not know.
+     * The outcome is kept in the descriptor of the transfer, and the bank keeps descriptors of about
+     * {@code 2^17} recent transfers in a cache. A retry that finds the transfer there completed does not touch
+     * accounts, and a retry that finds it in progress helps it to complete. A retry of an evicted transfer
+     * executes it again.
+     *
+     * @param requestId ID of the transfer that is chosen by the client.
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @return true when this call has executed the transfer, false when it is a retry.
+     * @throws IllegalArgumentException when amount <= 0, fromIndex == toIndex, some index is invalid,
+     * or the request ID was used for a different transfer.
+     * @throws IllegalStateException when there is not enough funds in source account or too much in target one,
+     * also for retries of such transfer.
+     */
+    public boolean transfer(long requestId, int fromIndex, int toIndex, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow/overflow");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        DedupCache cache = this.dedupCache;
+        if (cache == null) {
+            // the bank is not locked, so that code that synchronizes on it cannot stall transfers
+            DEDUP_CACHE.compareAndSet(this, null, new DedupCache());
+            cache = this.dedupCache;
+        }
+        IdempotentTransferOp original = cache.get(requestId);
+        // a retry of a completed transfer waits for the journal like any transfer when the journal is synchronous
+        boolean cached = original != null && original.completed && (journal == null || !journal.isSynchronous());
+        IdempotentTransferOp op = cached ? null : new IdempotentTransferOp(cache, requestId, fromIndex, toIndex, amount);
+        if (op != null) {
+            execute(op);
+            original = op.original;
+        }
+        if (original != op) {
+            if (original.fromIndex != fromIndex || original.toIndex != toIndex || original.amount != amount)
+                throw new IllegalArgumentException("Request ID is used for a different transfer: " + requestId);
+        }
+        if (original.errorMessage != null)
+            throw new IllegalStateException(original.errorMessage);
+        return original == op;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        // larger amount would overflow the delta, this one still fails with "Overflow"
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(index, Math.min(amount, MAX_AMOUNT + 1)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(index, -amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount) {
+        // First, validate method per-conditions
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        return asyncQueues.submit(new AsyncQueues.AsyncOp(fromIndex, toIndex, amount));
+    }
+
+    /**
+     * Applies a transfer that was drained from {@link #asyncQueues}, or a group of operations on the same account
+     * with a single compareAndSet. The operations of a group take effect one after another at this compareAndSet,
+     * and the ones that would underflow or overflow the account fail.
+     */
+    private void applyAsync(AsyncQueues.AsyncOp group) {
+        if (group.toIndex >= 0) {
+            transfer(group.index, group.toIndex, group.delta);
+            return;
+        }
+        int index = group.index;
+        ThreadTotal total = threadTotal();
+        int slot = slot(index);
+        LongSlots words = accounts;
+        while (true) {
+            long word = words.get(slot);
+            if (word < 0) {
+                if (word == MOVED)
+                    words = successor(words);
+                else
+                    help(index, word);
+                continue;
+            }
+            long amount = word;
+            int events = 0;
+            for (AsyncQueues.AsyncOp op = group; op != null; op = op.group) {
+                long result = amount + op.delta;
+                op.errorMessage = result < 0 ? "Underflow" : result > MAX_AMOUNT ? "Overflow" : null;
+                if (op.errorMessage == null) {
+                    amount = result;
+                    events++;
+                }
+                op.result = amount;
+            }
+            UpdateRing ring = beginPublishing(total);
+            /*
+             * When the amount does not change the operations take effect at the read of the account,
+             * unless they are published, because then they have to take effect after their sequences are claimed.
+             */
+            boolean updated = amount == word && (ring == null || events == 0);
+            if (!updated) {
+                Journal journal = this.journal;
+                long epoch = journal == null ? 0 : enterJournal(journal, total);
+                if (journal != null && checkpointing) {
+                    total.journalEpoch = 0;
+                    total.endPublishing();
+                    applyAcquired(group);
+                    break;
+                }
+                long sequence = ring == null ? 0 : ring.next(events);
+                total.beginUpdate();
+                updated = words.compareAndSet(slot, word, amount);
+                total.endUpdate(updated ? amount - word : 0);
+                if (ring != null)
+                    publish(ring, sequence, updated, group, events);
+                if (journal != null)
+                    writeJournal(journal, total, epoch, updated, index, amount - word);
+            }
+            total.endPublishing();
+            if (updated)
+                break;
+        }
+    }
+
+    /**
+     * Applies the operations of a group one by one with {@link #updateAcquired(int, long)}.
+     */
+    private void applyAcquired(AsyncQueues.AsyncOp group) {
+        for (AsyncQueues.AsyncOp op = group; op != null; op = op.group) {
+            try {
+                op.result = updateAcquired(op.index, op.delta);
+                op.errorMessage = null;
+            } catch (IllegalStateException e) {
+                op.errorMessage = e.getMessage();
+            } catch (Throwable e) {
+                // the previous operations of the group have taken effect, so they keep their results
+                op.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Publishes the update of a single account at the claimed sequence, or cancels the sequence
+     * when the update has failed.
+     */
+    private static void publish(UpdateRing ring, long sequence, boolean updated, int index, long delta,
+                                long amount) {
+        if (updated)
+            ring.publish(sequence, index, delta, amount, true);
+        else
+            ring.cancel(sequence, 1);
+    }
+
+    /**
+     * Publishes the successful operations of a group at the claimed sequences, or cancels the sequences
+     * when the update of the account has failed.
+     */
+    private static void publish(UpdateRing ring, long sequence, boolean updated, AsyncQueues.AsyncOp group,
+                                int events) {
+        if (!updated) {
+            ring.cancel(sequence, events);
+            return;
+        }
+        for (AsyncQueues.AsyncOp op = group; op != null; op = op.group) {
+            if (op.errorMessage == null)
+                ring.publish(sequence++, op.index, op.delta, op.result, true);
+        }
+    }
+
+    /**
+     * Adds delta to an open account with {@link DeltaOp}, which acquires the account. Single-account updates take
+     * this way while {@link #checkpoint()} reads chunks of accounts: a chunk is released with the same amounts that
+     * it was acquired with, so a compareAndSet of an update that has read the account and the epoch of the journal
+     * before the chunk might succeed after it, and the update would be neither in the chunk nor after its epoch.
+     *
+     * @return the resulting amount.
+     * @throws IllegalStateException on underflow or overflow.
+     */
+    private long updateAcquired(int index, long delta) {
+        DeltaOp op = new DeltaOp(index, delta);
+        execute(op);
+        if (op.errorMessage != null)
+            throw new IllegalStateException(op.errorMessage);
+        return op.newAmounts[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transferAll(int[] fromIndices, int[] toIndices, long[] amounts) {
+        // First, validate method per-conditions
+        int n = amounts.length;
+        if (fromIndices.length != n || toIndices.length != n)
+            throw new IllegalArgumentException("Batch arrays have different lengths");
+        for (int i = 0; i < n; i++) {
+            if (amounts[i] <= 0)
+                throw new IllegalArgumentException("Invalid amount: " + amounts[i]);
+            if (fromIndices[i] == toIndices[i])
+                throw new IllegalArgumentException("fromIndex == toIndex");
+            if (amounts[i] > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        if (n == 0)
+            return;
+        /*
+         * The whole batch is a single operation descriptor that acquires all accounts of the batch in the order
+         * of their indices, applies transfers one after another to the acquired amounts, and releases them.
+         */
+        BatchTransferOp op = new BatchTransferOp(fromIndices, toIndices, amounts);
+        execute(op);
+        if (op.errorMessage != null)
+            throw new IllegalStateException(op.errorMessage);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>In this bank the function runs without a descriptor, and new amounts are written by
+     * {@link CompareAndSetOp}, which helpers complete without waiting for the caller, so it is lock-free.
+     */
+    @Override
+    public long[] atomically(int[] indices, Function<long[], long[]> update) {
+        // First, validate method per-conditions
+        int[] sorted = sortedIndices(indices);
+        if (sorted.length != indices.length)
+            throw new IllegalArgumentException("Duplicate account index");
+        int n = indices.length;
+        if (n == 0)
+            return new long[0];
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++)
+            positions[i] = Arrays.binarySearch(sorted, indices[i]);
+        /*
+         * Amounts are read one by one and the function is invoked on them. Then a single operation descriptor
+         * replaces them with the results, or with themselves when the function has failed, only if the accounts
+         * still have the amounts that were read. Otherwise another operation has changed them, so all is repeated.
+         */
+        for (int conflicts = 0; ; contentionManager.pause(conflicts++)) {
+            long[] amounts = new long[n];
+            for (int i = 0; i < n; i++)
+                amounts[i] = getAmount(indices[i]);
+            long[] results = amounts;
+            RuntimeException failure = null;
+            String errorMessage = null;
+            try {
+                long[] computed = update.apply(amounts.clone());
+                if (computed == null || computed.length != n)
+                    throw new IllegalArgumentException("Function shall return " + n + " amounts");
+                for (long amount : computed) {
+                    if (amount < 0 || amount > MAX_AMOUNT) {
+                        errorMessage = amount < 0 ? "Underflow" : "Overflow";
+                        break;
+                    }
+                }
+                if (errorMessage == null)
+                    results = computed;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            CompareAndSetOp op = new CompareAndSetOp(sorted, inOrder(amounts, positions), inOrder(results, positions));
+            execute(op);
+            if (op.errorMessage != null)
+                continue;
+            if (failure != null)
+                throw failure;
+            if (errorMessage != null)
+                throw new IllegalStateException(errorMessage);
+            return amounts;
+        }
+    }
+
+    /**
+     * Returns the amounts that are specified in the order of the caller in the order of sorted indices.
+     *
+     * @param positions positions of the accounts of the caller in the sorted indices.
+     */
+    private static long[] inOrder(long[] amounts, int[] positions) {
+        long[] sorted = new long[amounts.length];
+        for (int i = 0; i < amounts.length; i++)
+            sorted[positions[i]] = amounts[i];
+        return sorted;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>In this bank the function is invoked in the calling thread and in parallel tasks, and by operations that
+     * find accounts acquired by applyToAll: they help it by computing chunks of accounts that nobody has taken yet,
+     * and take over a chunk that its thread does not finish, so it is lock-free. Only then the function might be
+     * invoked more than once for an account.
+     */
+    @Override
+    public void applyToAll(LongUnaryOperator update) {
+        if (update == null)
+            throw new NullPointerException();
+        /*
+         * The operation acquires all accounts in the order of indices like TotalAmountOp. Then all threads that
+         * invoke it compute new amounts by chunks, and its owner does that and releases accounts in parallel.
+         */
+        ApplyOp op;
+        do {
+            op = new ApplyOp(update);
+            execute(op);
+            releaseScratch(op.allAmounts);
+            releaseScratch(op.results);
+        } while (op.grown);
+        if (op.newAmounts == null)
+            throw op.failure;
+    }
+
+    /**
+     * Returns sorted array of distinct account indices that are used in the specified arrays.
+     *
+     * @throws IndexOutOfBoundsException when some index is invalid account index.
+     */
+    private int[] sortedIndices(int[]... indices) {
+        int size = 0;
+        for (int[] a : indices)
+            size += a.length;
+        int[] result = new int[size];
+        size = 0;
+        for (int[] a : indices) {
+            for (int index : a) {
+                checkIndex(index);
+                result[size++] = index;
+            }
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || result[distinct - 1] != result[i])
+                result[distinct++] = result[i];
+        }
+        return distinct == size ? result : Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * Invokes operation that was created by the current thread.
+     * The operation is published in the current thread context while its tag can be found in {@link #accounts},
+     * so that other threads can find it by its tag and help to complete it.
+     */
+    private void execute(Op op) {
+        ThreadContext context = ThreadContext.current();
+        Journal journal = this.journal;
+        ThreadTotal total = null;
+        if (journal != null && op.updates()) {
+            // the owner writes the operation to the journal, so commits wait for it from an epoch before its own
+            total = threadTotal();
+            enterJournal(journal, total);
+        }
+        ThreadTotal publisher = null;
+        if (op.updates()) {
+            // helpers claim sequences of the operation after the owner has announced it
+            publisher = threadTotal();
+            beginPublishing(publisher);
+        }
+        context.op = op;
+        try {
+            /*
+             * When invokeOperation returns the operation is completed and all of its accounts are released.
+             * No account can be acquired by a completed operation, so the operation can be retired.
+             */
+            op.invokeByOwner();
+            long sequence = op.sequence;
+            if (sequence != NO_SEQUENCE)
+                op.publish(ring, sequence);
+        } finally {
+            context.op = null;
+            if (publisher != null)
+                publisher.endPublishing();
+        }
+        if (total != null) {
+            long epoch = op.journalEpoch;
+            op.writeJournal(journal, epoch);
+            leaveJournal(journal, total, epoch);
+        }
+    }
+
+    /**
+     * Announces the current thread as a publisher of an update, so that {@link #subscribe(Subscription.Handler,
+     * Subscription.Backpressure) subscribe} waits for it until {@link ThreadTotal#endPublishing()}.
+     *
+     * @return the ring buffer to publish the update to, or null when the bank has no subscriptions.
+     */
+    private UpdateRing beginPublishing(ThreadTotal total) {
+        UpdateRing ring = this.ring;
+        if (ring != null) {
+            total.beginPublishing(false);
+            return ring;
+        }
+        // either this thread sees the ring buffer, or subscribe sees the announcement after it has created the buffer
+        total.beginPublishing(true);
+        return this.ring;
+    }
+
+    /**
+     * Begins an update of an account by a deposit or a withdrawal, see {@link ThreadTotal#beginUpdate()}, and
+     * announces the current thread as a publisher of it only when the bank has subscriptions. Without them the odd
+     * version of the total is the announcement, so the update pays for no counter other than the version.
+     *
+     * @return the ring buffer to publish the update to, or null when the bank has no subscriptions.
+     */
+    private UpdateRing beginPublishedUpdate(ThreadTotal total) {
+        UpdateRing ring = this.ring;
+        if (ring != null) {
+            total.beginPublishing(false);
+            total.beginUpdate();
+            return ring;
+        }
+        // either this thread sees the ring buffer, or subscribe sees the odd version after it has created the buffer
+        total.beginFencedUpdate();
+        ring = this.ring;
+        if (ring != null)
+            total.beginPublishing(false);
+        return ring;
+    }
+
+    /**
+     * Waits until all updates that have been announced before this call are published, and all updates of accounts
+     * that are in progress complete. Then every update either has taken effect or has claimed its sequence
+     * after this call.
+     */
+    void awaitPublishing() {
+        for (ThreadTotal total = totals.get(); total != null; total = total.next) {
+            long version = total.version;
+            for (int spins = 0; (version & 1) != 0 && total.version == version; spins++) {
+                if (spins < 100)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+            // the publisher announces itself before the odd version ends, so it is seen here when it has to be
+            long publishing = total.publishing;
+            for (int spins = 0; (publishing & 1) != 0 && total.publishing == publishing; spins++) {
+                if (spins < 100)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Announces the current thread as a writer to the journal, so that commits of the returned and later epochs
+     * wait for it until {@link #leaveJournal(Journal, ThreadTotal, long)}.
+     *
+     * @return the epoch of an update that becomes visible after this call.
+     */
+    private static long enterJournal(Journal journal, ThreadTotal total) {
+        long epoch;
+        do {
+            epoch = journal.epoch();
+            total.journalEpoch = epoch;
+        } while (journal.epoch() != epoch); // a commit that has closed the epoch might have missed the announcement
+        return epoch;
+    }
+
+    /**
+     * Ends the announcement of the current thread, and commits the update of the specified epoch
+     * when the journal is synchronous.
+     */
+    private static void leaveJournal(Journal journal, ThreadTotal total, long epoch) {
+        total.journalEpoch = 0;
+        if (journal.isSynchronous())
+            journal.commit(epoch);
+    }
+
+    /**
+     * Writes the change of a single account to the journal when the update succeeded,
+     * and ends the announcement of the current thread.
+     */
+    private static void writeJournal(Journal journal, ThreadTotal total, long epoch,
+                                     boolean updated, int index, long delta) {
+        if (updated) {
+            journal.append(epoch, Journal.DELTA, index, delta, 0);
+            leaveJournal(journal, total, epoch);
+        } else
+            total.journalEpoch = 0;
+    }
+
+    /**
+     * Waits until all updates of the journal of the specified and earlier epochs are written.
+     */
+    private void awaitJournalWriters(long epoch) {
+        for (ThreadTotal total = totals.get(); total != null; total = total.next) {
+            for (int waits = 0; ; waits++) {
+                long announced = total.journalEpoch;
+                if (announced == 0 || announced > epoch)
+                    break;
+                contentionManager.pause(waits);
+            }
+        }
+    }
+
+    /**
+     * Restores accounts from the checkpoint and the journal. Deltas are added in the order of the records with
+     * wrapping arithmetic, so amounts are exact at the end even though they are not in between, and no thread may
+     * read them until then. A record of an account is skipped when its epoch is not later than the epoch of the chunk
+     * of the account in the checkpoint.
+     */
+    private void replay(Journal journal, Checkpoint checkpoint) {
+        long position = checkpoint == null ? 0 : checkpoint.journalPosition();
+        long[] accountsCount = {Math.max(size, checkpoint == null ? 0 : checkpoint.accounts())};
+        journal.replay(position, (epoch, type, a, b, c) -> {
+            long count;
+            if (type == Journal.OPEN)
+                count = a;
+            else if (type == Journal.DELTA && a >= 0)
+                count = a + 1;
+            else if (type == Journal.TRANSFER && a >= 0 && b >= 0)
+                count = Math.max(a, b) + 1;
+            else
+                count = -1;
+            if (count < 0 || count > Integer.MAX_VALUE)
+                throw new IllegalStateException("Inconsistent journal record: " + type + " " + a + " " + b);
+            accountsCount[0] = Math.max(accountsCount[0], count);
+        });
+        while (size < accountsCount[0])
+            openAccount();
+        LongSlots words = accounts;
+        long[] delta = {0};
+        long[] chunkEpochs = new long[0];
+        if (checkpoint != null) {
+            int n = checkpoint.accounts();
+            chunkEpochs = new long[Checkpoint.chunks(n)];
+            long[] chunk = new long[Checkpoint.CHUNK_SIZE];
+            for (int c = 0; c < chunkEpochs.length; c++) {
+                chunkEpochs[c] = checkpoint.read(c, chunk);
+                if (chunkEpochs[c] < 0)
+                    throw new IllegalStateException("Inconsistent checkpoint, chunk " + c + " is missing");
+                int from = c << Checkpoint.CHUNK_SHIFT;
+                for (int i = from; i < Math.min(n, from + Checkpoint.CHUNK_SIZE); i++) {
+                    words.lazySet(slot(i), chunk[i - from]);
+                    delta[0] += chunk[i - from];
+                }
+            }
+        }
+        long[] epochs = chunkEpochs;
+        journal.replay(position, (epoch, type, a, b, c) -> {
+            if (type == Journal.DELTA)
+                replay(words, epochs, epoch, (int) a, b, delta);
+            else if (type == Journal.TRANSFER) {
+                replay(words, epochs, epoch, (int) a, -c, delta);
+                replay(words, epochs, epoch, (int) b, c, delta);
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            long amount = words.get(slot(i));
+            if (amount < 0 || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Inconsistent journal, account " + i + " has amount " + amount);
+        }
+        ThreadTotal total = threadTotal();
+        total.beginUpdate();
+        total.endUpdate(delta[0]);
+    }
+
+    private void replay(LongSlots words, long[] chunkEpochs, long epoch, int index, long amount, long[] delta) {
+        int chunk = index >>> Checkpoint.CHUNK_SHIFT;
+        if (chunk < chunkEpochs.length && epoch <= chunkEpochs[chunk])
+            return; // the update is in the checkpoint
+        words.lazySet(slot(index), words.get(slot(index)) + amount);
+        delta[0] += amount;
+    }
+
+    /**
+     * Subscribes to updates of balances by deposits, withdrawals, transfers and all other operations of this bank.
+     * Updates are published to a ring buffer at the points where they take effect, and the subscription passes
+     * them to the handler in its own thread. This method waits for updates that are in progress, so every update
+     * either has taken effect before it returns or is passed to the handler. Thus amounts that are read after
+     * this method returns and the updates that the handler receives together give the exact amounts of accounts.
+     *
+     * @param handler receives updates.
+     * @param backpressure what happens when the subscription falls behind the bank.
+     * @return the subscription, which must be closed when it is not needed.
+     */
+    public Subscription subscribe(Subscription.Handler handler, Subscription.Backpressure backpressure) {
+        UpdateRing ring = this.ring;
+        if (ring == null) {
+            // the bank is not locked, so that code that synchronizes on it cannot stall updates
+            RING.compareAndSet(this, null, new UpdateRing(RING_CAPACITY));
+            ring = this.ring;
+        }
+        Subscription subscription = new Subscription(this, ring, handler, backpressure);
+        subscription.start();
+        awaitPublishing();
+        return subscription;
+    }
+
+    /**
+     * Writes an incremental checkpoint of accounts while other operations keep running. It shortens recovery,
+     * because the bank is restored from the checkpoint and only the records of the journal after it.
+     * Only the chunks of accounts that were updated since the previous checkpoint are written, and each of them
+     * is read atomically, like by {@link #getAmount(int, int)}. Call this method periodically, for example from
+     * a {@link java.util.concurrent.ScheduledExecutorService}, checkpoints are written one at a time.
+     *
+     * @throws IllegalStateException when the bank has no checkpoint.
+     * @throws java.io.UncheckedIOException when the checkpoint or the journal cannot be written.
+     */
+    public void checkpoint() {
+        Checkpoint checkpoint = this.checkpoint;
+        if (checkpoint == null)
+            throw new IllegalStateException("Bank has no checkpoint");
+        synchronized (checkpoint) {
+            checkpointing = true;
+            try {
+                int n = getNumberOfAccounts();
+                checkpoint.begin(n);
+                // records before this position have epochs that are closed below
+                long position = journal.end();
+                long maxEpoch = journal.closeEpoch(); // now all updates of the closed epochs have marked their chunks
+                for (int c = 0; c < Checkpoint.chunks(n); c++) {
+                    if (!checkpoint.takeDirty(c))
+                        continue;
+                    int from = c << Checkpoint.CHUNK_SHIFT;
+                    RangeAmountOp op = new RangeAmountOp(from, Math.min(n, from + Checkpoint.CHUNK_SIZE), true);
+                    execute(op);
+                    checkpoint.write(c, op.journalEpoch, op.amounts);
+                    maxEpoch = Math.max(maxEpoch, op.journalEpoch);
+                }
+                // chunks contain updates of their epochs, which must not be lost when the journal is recovered
+                journal.commit(maxEpoch);
+                checkpoint.commit(position, n);
+            } catch (RuntimeException e) {
+                checkpoint.abort();
+                throw e;
+            } finally {
+                checkpointing = false;
+            }
+        }
+    }
+
+    /**
+     * Helps to complete a descriptor whose tag was read from accounts[index].
+     * It does nothing if the descriptor was already retired, so the caller shall re-read the account.
+     */
+    private void help(int index, long tag) {
+        ThreadContext current = ThreadContext.current();
+        current.enter();
+        try {
+            ThreadContext context = ThreadContext.of(tag);
+            if ((tag & ACQUIRE_BIT) != 0) {
+                AcquireDescriptor descriptor = context.acquire;
+                if (descriptor != null && descriptor.tag == tag)
+                    descriptor.complete();
+            } else {
+                Op op = context.op;
+                if (op != null && op.tag == tag) {
+                    if (op.completed)
+                        release(index, op); // there is no need to wait for other accounts of completed operation
+                    else
+                        op.invokeOperation();
+                }
+            }
+        } finally {
+            current.exit();
+        }
+    }
+
+    /**
+     * Returns true when the tag belongs to an operation that is not completed yet.
+     */
+    private boolean inProgress(long tag) {
+        ThreadContext current = ThreadContext.current();
+        current.enter();
+        try {
+            Op op = ThreadContext.of(tag).op;
+            return op != null && op.tag == tag && !op.completed;
+        } finally {
+            current.exit();
+        }
+    }
+
+    /**
+     * This is an implementation of a restricted form of Harris RDCSS operation:
+     * It atomically checks that op.completed is false and replaces accounts[index] with op.tag,
+     * keeping the amount that was replaced as the k-th amount of op.
+     * The amount is first replaced with a unique tag of {@link AcquireDescriptor}, so that ABA on amounts
+     * cannot make a late helper to acquire an account for the already completed operation.
+     * This method returns {@link #NOT_ACQUIRED} if op.completed is true and the acquired amount otherwise.
+     * See {@link ContentionManager} on how it waits for other operations before helping them.
+     */
+    private long acquire(int index, Op op, int k) {
+        return acquire(index, op, k, false);
+    }
+
+    /**
+     * Acquires account for an operation, replacing the amount with op.tag by a single compareAndSet when direct
+     * is true. This is correct only for the owner of an operation whose tag is not in any account yet: nobody
+     * else can find such an operation, so it cannot be completed behind the back of the owner.
+     */
+    private long acquire(int index, Op op, int k, boolean direct) {
+        LongSlots words = op.initialTable();
+        int slot = slot(index);
+        long waitTag = 0;
+        int waits = 0;
+        while (true) {
+            long word = words.get(slot);
+            if (op.completed)
+                return NOT_ACQUIRED;
+            if (word == op.tag)
+                return op.amount(k);
+            if (word == MOVED) {
+                words = op.successor(words);
+                if (words == null)
+                    return NOT_ACQUIRED;
+                continue;
+            }
+            if (word < 0 && word != CLOSED) {
+                /*
+                 * Pending RDCSS is completed right away, but another operation is given a chance to complete
+                 * and release the account by itself before it is helped.
+                 */
+                if ((word & ACQUIRE_BIT) == 0 && inProgress(word)) {
+                    if (word != waitTag) {
+                        waitTag = word;
+                        waits = 0;
+                    }
+                    if (contentionManager.await(words, slot, word, waits++))
+                        continue;
+                }
+                help(index, word);
+                continue;
+            }
+            if (direct) {
+                op.setAmount(k, word);
+                if (words.compareAndSet(slot, word, op.tag))
+                    return word;
+                continue;
+            }
+            ThreadContext context = ThreadContext.current();
+            AcquireDescriptor descriptor = context.acquires.reuse();
+            if (descriptor == null)
+                descriptor = new AcquireDescriptor();
+            descriptor.init(context.nextTag(ACQUIRE_BIT), words, slot, word, op, k);
+            context.acquire = descriptor;
+            if (words.compareAndSet(slot, word, descriptor.tag))
+                descriptor.complete();
+            /*
+             * The tag of the descriptor is not in accounts anymore. The descriptor is unpublished before it is
+             * retired, so that it does not keep the operation reachable after the operation is retired.
+             */
+            context.acquire = null;
+            context.acquires.retire(descriptor);
+        }
+    }
+
+    /**
+     * Releases an account that was previously acquired by {@link #acquire(int, Op, int)}.
+     * This method does nothing if the account at index is not currently acquired.
+     */
+    private void release(int index, Op op) {
+        assert op.completed; // must be called only on operations that were already completed
+        LongSlots words = table(index);
+        int slot = slot(index);
+        if (words.get(slot) == op.tag) {
+            // release performs update at most once while the account is still acquired, accounts are never moved then
+            words.compareAndSet(slot, op.tag, op.newAmount(index));
+        }
+    }
+
+    /**
+     * Descriptor of a pending RDCSS in {@link #acquire(int, Op, int)}.
+     * Its tag temporary replaces the expected amount and is then replaced either with op.tag
+     * (when operation is not completed yet) or back with the expected amount.
+     * It is initialized before being published in {@link ThreadContext#acquire}, which makes its fields visible
+     * to other threads.
+     */
+    private static class AcquireDescriptor {
+        long tag;
+        LongSlots words;
+        int slot;
+        long expected;
+        Op op;
+        int k;
+
+        void init(long tag, LongSlots words, int slot, long expected, Op op, int k) {
+            this.tag = tag;
+            this.words = words;
+            this.slot = slot;
+            this.expected = expected;
+            this.op = op;
+            this.k = k;
+        }
+
+        void complete() {
+            long update;
+            if (op.completed)
+                update = expected;
+            else {
+                /*
+                 * This assignment has a benign data race. Multiple threads might complete this descriptor
+                 * concurrently, however, they are all guaranteed to be assigning the same value.
+                 */
+                op.setAmount(k, expected);
+                update = op.tag;
+            }
+            words.compareAndSet(slot, tag, update);
+        }
+    }
+
+    /**
+     * Abstract operation that acts on multiple accounts.
+     */
+    private abstract class Op {
+        /**
+         * Unique tag of this operation, it is written to the accounts that this operation has acquired.
+         * A reused operation gets a new tag before it is published.
+         */
+        long tag;
+
+        /**
+         * Amounts of acquired accounts, in the order of accounts in operation, or null for an operation that keeps
+         * them in {@link #allAmounts}.
+         */
+        final long[] amounts;
+
+        /**
+         * Amounts of all accounts for an operation that acquires all of them, or null. They are kept in slots
+         * of the same kind as {@link #accounts}, so that a bank off heap needs no heap in proportion to its size,
+         * and they are reused through {@link #scratch}, so that repeated operations do not allocate direct memory.
+         */
+        final LongSlots allAmounts;
+
+        /**
+         * True when operation has completed.
+         */
+        volatile boolean completed;
+
+        /**
+         * Epoch of the journal in which this operation has completed, or 0. It is fixed by the first of threads
+         * that complete the operation, after the accounts are acquired and before they are released.
+         */
+        volatile long journalEpoch;
+
+        /**
+         * The first of the sequences of {@link #ring} where this operation publishes its updates, or
+         * {@link #NO_SEQUENCE}. They are claimed like {@link #journalEpoch} is fixed.
+         */
+        volatile long sequence = NO_SEQUENCE;
+
+        /**
+         * Becomes 1 when some thread has taken the responsibility to account for the change of the bank total
+         * that this operation makes.
+         */
+        volatile int decided;
+
+        Op(int accountsCount) {
+            tag = ThreadContext.current().nextTag(0);
+            amounts = new long[accountsCount];
+            allAmounts = null;
+        }
+
+        Op(LongSlots allAmounts) {
+            tag = ThreadContext.current().nextTag(0);
+            amounts = null;
+            this.allAmounts = allAmounts;
+        }
+
+        /**
+         * Returns the amount of k-th acquired account.
+         */
+        final long amount(int k) {
+            return amounts != null ? amounts[k] : allAmounts.get(k);
+        }
+
+        final void setAmount(int k, long amount) {
+            if (amounts != null)
+                amounts[k] = amount;
+            else
+                allAmounts.lazySet(k, amount);
+        }
+
+        abstract void invokeOperation();
+
+        /**
+         * Invokes this operation in the thread that has published it. Other threads call
+         * {@link #invokeOperation()} when they help.
+         */
+        void invokeByOwner() {
+            invokeOperation();
+        }
+
+        /**
+         * Returns true when this operation might update accounts, so that its owner writes it to the journal.
+         */
+        boolean updates() {
+            return false;
+        }
+
+        /**
+         * Writes the changes that this completed operation has made to the journal.
+         * Called only by the owner when {@link #updates()} is true.
+         */
+        void writeJournal(Journal journal, long epoch) {
+        }
+
+        /**
+         * Returns the number of updates of accounts that this operation publishes when it completes.
+         */
+        int events() {
+            return 0;
+        }
+
+        /**
+         * Publishes the updates of this completed operation at the claimed sequences.
+         * Called only by the owner when {@link #sequence} is claimed.
+         */
+        void publish(UpdateRing ring, long sequence) {
+        }
+
+        /**
+         * Claims the sequences of this operation when there are subscriptions. Must be called before
+         * {@link #completed} is set to true. Helpers that fail to claim cancel their sequences.
+         */
+        void claimSequence() {
+            UpdateRing ring = BankImpl.this.ring;
+            if (ring == null || sequence != NO_SEQUENCE)
+                return;
+            int events = events();
+            if (events == 0)
+                return;
+            long sequence = ring.next(events);
+            if (!SEQUENCE.compareAndSet(this, NO_SEQUENCE, sequence))
+                ring.cancel(sequence, events);
+        }
+
+        /**
+         * Sets {@link #completed} to true. Operation that changes bank total is completed inside an update
+         * of thread total, and exactly one of the threads that complete it adds the change to its own thread total.
+         *
+         * @param delta the change of bank total.
+         */
+        void complete(long delta) {
+            if (delta == 0) {
+                this.completed = true;
+                return;
+            }
+            ThreadTotal total = threadTotal();
+            total.beginUpdate();
+            boolean decider = DECIDED.compareAndSet(this, 0, 1);
+            this.completed = true;
+            total.endUpdate(decider ? delta : 0);
+        }
+
+        /**
+         * Fixes the epoch of this operation. Must be called before {@link #completed} is set to true.
+         */
+        void fixJournalEpoch() {
+            Journal journal = BankImpl.this.journal;
+            if (journal != null && journalEpoch == 0)
+                JOURNAL_EPOCH.compareAndSet(this, 0, journal.epoch());
+        }
+
+        /**
+         * Returns new amount of acquired account by its index when this operation completes.
+         */
+        abstract long newAmount(int index);
+
+        /**
+         * Returns the array of accounts where this operation starts to look for accounts to acquire.
+         */
+        LongSlots initialTable() {
+            return accounts;
+        }
+
+        /**
+         * Returns the array of accounts where this operation looks for an account that was moved from words,
+         * or null when this operation shall stop acquiring accounts.
+         */
+        LongSlots successor(LongSlots words) {
+            return BankImpl.this.successor(words);
+        }
+    }
+
+    /**
+     * Read-only operation that acquires accounts in the order of indices.
+     * It does not compute new amounts, every account is released with the amount that it was acquired with.
+     */
+    private class ReadOp extends Op {
+        /**
+         * Sorted distinct indices of accounts.
+         */
+        final int[] indices;
+
+        ReadOp(int[] indices) {
+            super(indices.length);
+            this.indices = indices;
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = indices.length;
+            int i;
+            for (i = 0; i < n; i++) {
+                if (acquire(indices[i], this, i) == NOT_ACQUIRED)
+                    break;
+            }
+            if (i == n)
+                this.completed = true; // amounts are written before by the acquires
+            for (i = n; --i >= 0; ) {
+                release(indices[i], this);
+            }
+        }
+
+        @Override
+        long newAmount(int index) {
+            return amounts[Arrays.binarySearch(indices, index)];
+        }
+    }
+
+    /**
+     * Operation that acquires a range of opened accounts in the order of indices and sums their amounts.
+     */
+    private class RangeAmountOp extends Op {
+        final int fromIndex;
+
+        /**
+         * The result of the operation is stored here before setting {@link #completed} to true.
+         */
+        long sum;
+
+        /**
+         * True when the operation reads a chunk of accounts for {@link #checkpoint()} and closes an epoch
+         * of the journal before it completes.
+         */
+        final boolean checkpoint;
+
+        RangeAmountOp(int fromIndex, int toIndex) {
+            this(fromIndex, toIndex, false);
+        }
+
+        RangeAmountOp(int fromIndex, int toIndex, boolean checkpoint) {
+            super(toIndex - fromIndex);
+            this.fromIndex = fromIndex;
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        void invokeOperation() {
+            long sum = 0;
+            int i;
+            int n = amounts.length;
+            for (i = 0; i < n; i++) {
+                long amount = acquire(fromIndex + i, this, i);
+                if (amount == NOT_ACQUIRED)
+                    break;
+                sum += amount;
+            }
+            if (i == n) {
+                this.sum = sum; // benign data race, all threads assign the same value
+                if (checkpoint) {
+                    // updates of the accounts that complete after this operation have later epochs
+                    fixJournalEpoch();
+                    journal.advanceEpoch(journalEpoch);
+                }
+                this.completed = true;
+            }
+            for (i = n; --i >= 0; ) {
+                release(fromIndex + i, this);
+            }
+        }
+
+        @Override
+        long newAmount(int index) {
+            return amounts[index - fromIndex];
+        }
+    }
+
+    /**
+     * Descriptor for {@link #getTotalAmount()} operation.
+     */
+    private class TotalAmountOp extends Op {
+        /**
+         * The result of getTotalAmount operation is stored here before setting
+         * {@link #completed} to true.
+         */
+        long sum;
+
+        /**
+         * True when some of the acquired accounts were found in a larger array of accounts. Accounts that were
+         * opened in its tail are not acquired, so the result is not valid then and the operation is repeated.
+         */
+        boolean grown;
+
+        TotalAmountOp() {
+            super(takeScratch());
+        }
+
+        @Override
+        void invokeOperation() {
+            long sum = 0;
+            int i;
+            int n = allAmounts.length;
+            for (i = 0; i < n; i++) {
+                long amount = acquire(i, this, i);
+                if (amount == NOT_ACQUIRED)
+                    break;
+                if (amount != CLOSED)
+                    sum += amount;
+            }
+            if (i == n) {
+                /*
+                 * If i == n, then all accounts were acquired and full sum was calculated.
+                 * Acquired accounts are never moved, so all threads find them in the same arrays.
+                 * this.sum = sum assignment below has a benign data race. Multiple threads might to this assignment
+                 * concurrently, however, they are all guaranteed to be assigning the same value.
+                 */
+                boolean grown = false;
+                for (i = 0; i < n && !grown; i++)
+                    grown = capacity(table(i)) > n;
+                this.sum = sum;
+                this.grown = grown;
+                this.completed = true; // volatile write to completed field _after_ the sum was written
+            }
+            /*
+             * All accounts are released, even when this thread has found the operation completed by other thread,
+             * because this operation is retired when its owner returns from invokeOperation.
+             */
+            for (i = n; --i >= 0; ) {
+                release(i, this);
+            }
+        }
+
+        @Override
+        long newAmount(int index) {
+            return allAmounts.get(index);
+        }
+    }
+
+    /**
+     * Descriptor that moves an account to the new array of accounts when the array grows.
+     * It acquires the account in the old array, copies the amount to the new array and releases the account
+     * with {@link #MOVED} marker.
+     */
+    private class MoveOp extends Op {
+        final Growth growth;
+        final int index;
+
+        MoveOp(Growth growth, int index) {
+            super(1);
+            this.growth = growth;
+            this.index = index;
+        }
+
+        @Override
+        void invokeOperation() {
+            long amount = acquire(index, this, 0);
+            if (amount != NOT_ACQUIRED)
+                growth.to.compareAndSet(slot(index), UNMOVED, amount);
+            // the account might have been already moved by another thread and then there is nothing to do
+            this.completed = true;
+            release(index, this);
+        }
+
+        @Override
+        long newAmount(int index) {
+            return MOVED;
+        }
+
+        @Override
+        LongSlots initialTable() {
+            return growth.from;
+        }
+
+        @Override
+        LongSlots successor(LongSlots words) {
+            return null;
+        }
+    }
+
+    /**
+     * Growth of the array of accounts.
+     */
+    private static class Growth {
+        final LongSlots from;
+        final LongSlots to;
+
+        /**
+         * True when all accounts were moved and {@link #to} array has replaced {@link #from} array.
+         */
+        volatile boolean done;
+
+        Growth(LongSlots from, LongSlots to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Descriptor for {@link #transfer(int, int, long) transfer(...)} operation.
+     */
+    private class TransferOp extends Op {
+        int fromIndex;
+        int toIndex;
+        long amount;
+
+        String errorMessage;
+
+        TransferOp() {
+            super(2);
+        }
+
+        /**
+         * Prepares this operation to be executed. Must be called before it is published.
+         */
+        void init(int fromIndex, int toIndex, long amount) {
+            this.tag = ThreadContext.current().nextTag(0);
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.amount = amount;
+            this.errorMessage = null;
+            this.completed = false;
+            this.journalEpoch = 0;
+            this.sequence = NO_SEQUENCE;
+        }
+
+        /**
+         * Fast path for an uncontended transfer: the first account is acquired directly, without
+         * {@link AcquireDescriptor}, which saves a compareAndSet and the publication of the descriptor.
+         * The second account still needs RDCSS, because once the first account is acquired other threads
+         * may complete this transfer, and a late direct compareAndSet would acquire it again after ABA.
+         * On conflict the direct acquire waits and helps like any other one.
+         */
+        @Override
+        void invokeByOwner() {
+            if (fromIndex < toIndex)
+                acquire(fromIndex, this, 0, true);
+            else
+                acquire(toIndex, this, 1, true);
+            invokeOperation();
+        }
+
+        @Override
+        void invokeOperation() {
+            long from;
+            long to;
+            if (fromIndex < toIndex) {
+                from = acquire(fromIndex, this, 0);
+                to = acquire(toIndex, this, 1);
+            } else {
+                to = acquire(toIndex, this, 1);
+                from = acquire(fromIndex, this, 0);
+            }
+            if (from != NOT_ACQUIRED && to != NOT_ACQUIRED) {
+                if (amount > from)
+                    errorMessage = "Underflow";
+                else if (to + amount > MAX_AMOUNT)
+                    errorMessage = "Overflow";
+                fixJournalEpoch();
+                claimSequence();
+                this.completed = true;
+            }
+            release(fromIndex, this);
+            release(toIndex, this);
+        }
+
+        @Override
+        boolean updates() {
+            return true;
+        }
+
+        @Override
+        void writeJournal(Journal journal, long epoch) {
+            if (errorMessage == null)
+                journal.append(epoch, Journal.TRANSFER, fromIndex, toIndex, amount);
+        }
+
+        @Override
+        int events() {
+            return errorMessage == null ? 2 : 0;
+        }
+
+        @Override
+        void publish(UpdateRing ring, long sequence) {
+            ring.publish(sequence, fromIndex, -amount, amounts[0] - amount, false);
+            ring.publish(sequence + 1, toIndex, amount, amounts[1] + amount, true);
+        }
+
+        @Override
+        long newAmount(int index) {
+            if (errorMessage != null)
+                return index == fromIndex ? amounts[0] : amounts[1];
+            return index == fromIndex ? amounts[0] - amount : amounts[1] + amount;
+        }
+    }
+
+    /**
+     * Transfer with a request ID. It is not reused, because {@link DedupCache} keeps it after it completes.
+     */
+    private class IdempotentTransferOp extends TransferOp {
+        final DedupCache cache;
+        final long requestId;
+
+        /**
+         * The transfer with the same request ID that was in the cache, or this transfer itself.
+         */
+        IdempotentTransferOp original;
+
+        IdempotentTransferOp(DedupCache cache, long requestId, int fromIndex, int toIndex, long amount) {
+            this.cache = cache;
+            this.requestId = requestId;
+            init(fromIndex, toIndex, amount);
+        }
+
+        /**
+         * Puts this transfer into the cache first. The owner has entered the journal by now, so other threads
+         * may help this transfer from the cache like from an account. Both accounts are acquired with RDCSS,
+         * because they might help it before the owner acquires the first account.
+         */
+        @Override
+        void invokeByOwner() {
+            original = cache.putIfAbsent(this);
+            if (original == this) {
+                invokeOperation();
+                return;
+            }
+            while (!original.completed)
+                original.invokeOperation();
+            // a retry commits an epoch that is not before the epoch of the original transfer
+            fixJournalEpoch();
+            this.completed = true;
+        }
+
+        @Override
+        void writeJournal(Journal journal, long epoch) {
+            if (original == this)
+                super.writeJournal(journal, epoch);
+        }
+    }
+
+    /**
+     * Bounded cache of transfers by their request IDs. A bucket is immutable and is replaced by compareAndSet
+     * with a copy, so threads contend only when their IDs are in the same bucket. A bucket keeps request IDs
+     * apart from transfers, so that a lookup reads the transfer only when it finds its ID.
+     * New transfers are added to the front, and the oldest completed ones are evicted from the back,
+     * so each bucket keeps the last {@link #DEDUP_WAYS} transfers and all transfers in progress.
+     */
+    private static class DedupCache {
+        private static final Bucket EMPTY = new Bucket(new long[0], new IdempotentTransferOp[0]);
+
+        private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(DEDUP_BUCKETS);
+
+        DedupCache() {
+            for (int b = 0; b < DEDUP_BUCKETS; b++)
+                buckets.lazySet(b, EMPTY);
+        }
+
+        IdempotentTransferOp get(long requestId) {
+            Bucket bucket = buckets.get(bucket(requestId));
+            int i = bucket.indexOf(requestId);
+            return i < 0 ? null : bucket.ops[i];
+        }
+
+        /**
+         * Adds the transfer unless the cache has a transfer with the same request ID.
+         *
+         * @return the transfer with the same request ID that is in the cache now.
+         */
+        IdempotentTransferOp putIfAbsent(IdempotentTransferOp op) {
+            int b = bucket(op.requestId);
+            while (true) {
+                Bucket bucket = buckets.get(b);
+                int found = bucket.indexOf(op.requestId);
+                if (found >= 0)
+                    return bucket.ops[found];
+                // the oldest completed transfers are evicted, the transfers in progress are kept
+                int size = bucket.ids.length;
+                int evicted = size + 1 - DEDUP_WAYS;
+                long[] ids = new long[size + 1];
+                IdempotentTransferOp[] ops = new IdempotentTransferOp[size + 1];
+                int j = size + 1;
+                for (int i = size - 1; i >= 0; i--) {
+                    if (evicted > 0 && bucket.ops[i].completed) {
+                        evicted--;
+                        continue;
+                    }
+                    j--;
+                    ids[j] = bucket.ids[i];
+                    ops[j] = bucket.ops[i];
+                }
+                j--;
+                ids[j] = op.requestId;
+                ops[j] = op;
+                if (j > 0) {
+                    ids = Arrays.copyOfRange(ids, j, size + 1);
+                    ops = Arrays.copyOfRange(ops, j, size + 1);
+                }
+                if (buckets.compareAndSet(b, bucket, new Bucket(ids, ops)))
+                    return op;
+            }
+        }
+
+        private static int bucket(long requestId) {
+            long h = requestId * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & (DEDUP_BUCKETS - 1);
+        }
+
+        private static class Bucket {
+            final long[] ids;
+            final IdempotentTransferOp[] ops;
+
+            Bucket(long[] ids, IdempotentTransferOp[] ops) {
+                this.ids = ids;
+                this.ops = ops;
+            }
+
+            int indexOf(long requestId) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] == requestId)
+                        return i;
+                }
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Abstract operation that atomically reads and updates accounts with the specified indices.
+     * Accounts are acquired in the order of their indices, so that operations that help each other
+     * never form a cycle.
+     */
+    private abstract class MultiAccountOp extends Op {
+        /**
+         * Sorted distinct indices of accounts.
+         */
+        final int[] indices;
+
+        /**
+         * New amounts of accounts in the order of {@link #indices}, or null when the operation failed.
+         * They are published before {@link #completed} is set to true, see {@link #decide()}.
+         */
+        long[] newAmounts;
+
+        String errorMessage;
+
+        MultiAccountOp(int[] indices) {
+            super(indices.length);
+            this.indices = indices;
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = indices.length;
+            int i;
+            for (i = 0; i < n; i++) {
+                if (acquire(indices[i], this, i) == NOT_ACQUIRED)
+                    break;
+            }
+            if (i == n) {
+                decide();
+                long[] updated = newAmounts;
+                long delta = 0;
+                if (updated != null) {
+                    for (int k = 0; k < n; k++)
+                        delta += updated[k] - amounts[k];
+                }
+                fixJournalEpoch();
+                claimSequence();
+                complete(delta);
+            }
+            for (i = n; --i >= 0; ) {
+                release(indices[i], this);
+            }
+        }
+
+        /**
+         * Computes {@link #newAmounts} and {@link #errorMessage} from the acquired amounts.
+         * Every thread that has acquired all accounts computes them on its own. The assignments have a benign
+         * data race, because {@link #update(long[])} is a deterministic function of the amounts, so all threads
+         * assign the same values.
+         */
+        void decide() {
+            long[] updated = amounts.clone();
+            String errorMessage = update(updated);
+            this.errorMessage = errorMessage;
+            this.newAmounts = errorMessage == null ? updated : null;
+        }
+
+        /**
+         * Updates acquired amounts in place.
+         *
+         * @return error message or null when the operation succeeds.
+         */
+        abstract String update(long[] amounts);
+
+        @Override
+        boolean updates() {
+            return true;
+        }
+
+        @Override
+        void writeJournal(Journal journal, long epoch) {
+            long[] updated = newAmounts;
+            if (updated == null)
+                return;
+            for (int k = 0; k < indices.length; k++) {
+                if (updated[k] != amounts[k])
+                    journal.append(epoch, Journal.DELTA, indices[k], updated[k] - amounts[k], 0);
+            }
+        }
+
+        @Override
+        int events() {
+            long[] updated = newAmounts;
+            int events = 0;
+            if (updated != null) {
+                for (int k = 0; k < indices.length; k++) {
+                    if (updated[k] != amounts[k])
+                        events++;
+                }
+            }
+            return events;
+        }
+
+        @Override
+        void publish(UpdateRing ring, long sequence) {
+            long[] updated = newAmounts;
+            int events = events();
+            for (int k = 0; k < indices.length; k++) {
+                if (updated[k] != amounts[k])
+                    ring.publish(sequence++, indices[k], updated[k] - amounts[k], updated[k], --events == 0);
+            }
+        }
+
+        @Override
+        long newAmount(int index) {
+            int k = Arrays.binarySearch(indices, index);
+            long[] updated = newAmounts;
+            return updated == null ? amounts[k] : updated[k];
+        }
+    }
+
+    /**
+     * Descriptor for {@link #transferAll(int[], int[], long[]) transferAll(...)} operation.
+     */
+    private class BatchTransferOp extends MultiAccountOp {
+        /**
+         * Positions of source and target accounts of each transfer in {@link #indices}.
+         */
+        final int[] from;
+        final int[] to;
+        final long[] transferAmounts;
+
+        BatchTransferOp(int[] fromIndices, int[] toIndices, long[] transferAmounts) {
+            super(sortedIndices(fromIndices, toIndices));
+            int n = transferAmounts.length;
+            from = new int[n];
+            to = new int[n];
+            for (int i = 0; i < n; i++) {
+                from[i] = Arrays.binarySearch(indices, fromIndices[i]);
+                to[i] = Arrays.binarySearch(indices, toIndices[i]);
+            }
+            this.transferAmounts = transferAmounts.clone();
+        }
+
+        @Override
+        String update(long[] amounts) {
+            for (int i = 0; i < transferAmounts.length; i++) {
+                long amount = transferAmounts[i];
+                if (amount > amounts[from[i]])
+                    return "Underflow";
+                if (amounts[to[i]] + amount > MAX_AMOUNT)
+                    return "Overflow";
+                amounts[from[i]] -= amount;
+                amounts[to[i]] += amount;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Descriptor for {@link #atomically(int[], Function) atomically(...)} operation. It replaces the amounts of its
+     * accounts only when they are the expected ones, so helpers complete it with a comparison and never wait for the
+     * function that has computed the new amounts.
+     */
+    private class CompareAndSetOp extends MultiAccountOp {
+        /**
+         * Expected and new amounts in the order of {@link #indices}.
+         */
+        final long[] expected;
+        final long[] results;
+
+        CompareAndSetOp(int[] indices, long[] expected, long[] results) {
+            super(indices);
+            this.expected = expected;
+            this.results = results;
+        }
+
+        @Override
+        String update(long[] amounts) {
+            if (!Arrays.equals(amounts, expected))
+                return "Conflict";
+            System.arraycopy(results, 0, amounts, 0, amounts.length);
+            return null;
+        }
+    }
+
+    /**
+     * Descriptor for {@link #applyToAll(LongUnaryOperator) applyToAll(...)} operation.
+     * It acquires all accounts like {@link TotalAmountOp}. Then new amounts are computed by chunks of
+     * {@link #APPLY_CHUNK_SIZE} accounts: the owner computes them in {@link ChunkTask}s, and helpers compute
+     * the chunks that are not taken yet, so a stalled owner does not stop other operations.
+     * <p>
+     * <p>A thread takes a chunk before it computes it, and others wait for a taken chunk like for an acquired account,
+     * with {@link ContentionManager#pause(int)}, and then compute the rest of it on their own. Each new amount is
+     * written with compareAndSet from {@link #UNSET}, so it is computed by a single invocation of the function even
+     * when two of them race. The first failure of the function decides the error, unless the outcome of
+     * the operation is decided before it.
+     */
+    private class ApplyOp extends Op {
+        /**
+         * The value of a new amount that is not computed yet.
+         */
+        static final long UNSET = -1;
+
+        /**
+         * States of a chunk.
+         */
+        static final int FREE = 0;
+        static final int TAKEN = 1;
+        static final int DONE = 2;
+
+        /**
+         * Values of {@link #outcome}.
+         */
+        static final int UNDECIDED = 0;
+        static final int APPLIED = 1;
+        static final int FAILED = 2;
+
+        final LongUnaryOperator function;
+
+        /**
+         * New amounts of all accounts, {@link #UNSET} until they are computed.
+         */
+        final LongSlots results;
+
+        /**
+         * States of chunks, a chunk becomes {@link #DONE} when all of its new amounts are computed.
+         */
+        final AtomicIntegerArray chunkStates;
+
+        /**
+         * Changes of the total by chunks. They are written before the chunk becomes {@link #DONE}, by every thread
+         * that has finished it, and all of them write the same values.
+         */
+        final long[] deltas;
+
+        /**
+         * {@link #results}, or null when the operation failed or has {@link #grown}.
+         * It is published before {@link #completed} is set to true.
+         */
+        LongSlots newAmounts;
+
+        /**
+         * The first exception that was thrown by the function, or the error of the first new amount out of range.
+         */
+        volatile RuntimeException failure;
+
+        /**
+         * Whether the new amounts are applied, it is decided once by the first thread that has computed all
+         * of them or has found a failure.
+         */
+        volatile int outcome;
+
+        /**
+         * True when some of the acquired accounts were found in a larger array of accounts, see
+         * {@link TotalAmountOp#grown}. The operation changes nothing then and is repeated.
+         */
+        boolean grown;
+
+        ApplyOp(LongUnaryOperator function) {
+            super(takeScratch());
+            this.function = function;
+            this.results = takeScratch(allAmounts.length);
+            int chunks = chunks();
+            this.chunkStates = new AtomicIntegerArray(chunks);
+            this.deltas = new long[chunks];
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = allAmounts.length;
+            int i;
+            for (i = 0; i < n; i++) {
+                if (acquire(i, this, i) == NOT_ACQUIRED)
+                    break;
+            }
+            if (i == n) {
+                boolean grown = acquiredGrown();
+                if (!grown)
+                    computeAll();
+                decide(grown);
+            }
+            // like TotalAmountOp, all accounts are released, because this operation is retired when its owner returns
+            for (i = n; --i >= 0; )
+                release(i, this);
+        }
+
+        @Override
+        void invokeByOwner() {
+            // the results become visible to helpers with the tag of this operation
+            forEachChunk(c -> {
+                for (int k = c * APPLY_CHUNK_SIZE; k < chunkEnd(c); k++)
+                    results.lazySet(k, UNSET);
+            });
+            int n = allAmounts.length;
+            int i;
+            for (i = 0; i < n; i++) {
+                if (acquire(i, this, i) == NOT_ACQUIRED)
+                    break;
+            }
+            if (i == n) {
+                boolean grown = acquiredGrown();
+                if (!grown) {
+                    forEachChunk(c -> {
+                        if (chunkStates.compareAndSet(c, FREE, TAKEN))
+                            compute(c);
+                    });
+                    computeAll();
+                }
+                decide(grown);
+            }
+            forEachChunk(c -> {
+                for (int k = chunkEnd(c); --k >= c * APPLY_CHUNK_SIZE; )
+                    release(k, this);
+            });
+        }
+
+        /**
+         * Returns true when some of the acquired accounts were found in a larger array of accounts.
+         * Acquired accounts are never moved, so all threads find them in the same arrays.
+         */
+        boolean acquiredGrown() {
+            int n = allAmounts.length;
+            boolean grown = false;
+            for (int i = 0; i < n && !grown; i++)
+                grown = capacity(table(i)) > n;
+            return grown;
+        }
+
+        /**
+         * Computes all chunks that are not done yet, or returns when the outcome is decided or some chunk fails.
+         */
+        void computeAll() {
+            int maxWaits = contentionManager.getMaxWaits();
+            for (int c = 0; c < chunkStates.length(); c++) {
+                for (int waits = 0; chunkStates.get(c) != DONE; ) {
+                    if (outcome != UNDECIDED || failure != null)
+                        return;
+                    if (chunkStates.compareAndSet(c, FREE, TAKEN) || waits >= maxWaits)
+                        compute(c);
+                    else
+                        contentionManager.pause(waits++);
+                }
+            }
+        }
+
+        /**
+         * Computes new amounts of the chunk that are not computed yet, and then the change of the total by the chunk.
+         * It stops when the function fails or the outcome is decided.
+         */
+        void compute(int chunk) {
+            int from = chunk * APPLY_CHUNK_SIZE;
+            int to = chunkEnd(chunk);
+            for (int k = from; k < to; k++) {
+                if (results.get(k) != UNSET)
+                    continue;
+                if (outcome != UNDECIDED || failure != null)
+                    return;
+                long amount = allAmounts.get(k);
+                long result = CLOSED;
+                if (amount != CLOSED) {
+                    try {
+                        result = function.applyAsLong(amount);
+                    } catch (RuntimeException e) {
+                        FAILURE.compareAndSet(this, null, e);
+                        return;
+                    }
+                    if (result < 0 || result > MAX_AMOUNT) {
+                        String message = result < 0 ? "Underflow" : "Overflow";
+                        FAILURE.compareAndSet(this, null, new IllegalStateException(message));
+                        return;
+                    }
+                }
+                results.compareAndSet(k, UNSET, result);
+            }
+            long delta = 0;
+            for (int k = from; k < to; k++) {
+                long amount = allAmounts.get(k);
+                if (amount != CLOSED)
+                    delta += results.get(k) - amount;
+            }
+            deltas[chunk] = delta;
+            chunkStates.set(chunk, DONE);
+        }
+
+        /**
+         * Decides the outcome and completes the operation. Every thread that has acquired all accounts
+         * does that, and the assignments have a benign data race, because all threads find the same outcome.
+         */
+        void decide(boolean grown) {
+            if (!grown && outcome == UNDECIDED)
+                OUTCOME.compareAndSet(this, UNDECIDED, failure == null ? APPLIED : FAILED);
+            boolean applied = !grown && outcome == APPLIED;
+            long delta = 0;
+            if (applied) {
+                for (long chunkDelta : deltas)
+                    delta += chunkDelta;
+            }
+            this.grown = grown;
+            this.newAmounts = applied ? results : null;
+            fixJournalEpoch();
+            claimSequence();
+            complete(delta);
+        }
+
+        int chunks() {
+            return (allAmounts.length + APPLY_CHUNK_SIZE - 1) / APPLY_CHUNK_SIZE;
+        }
+
+        int chunkEnd(int chunk) {
+            return Math.min(allAmounts.length, (chunk + 1) * APPLY_CHUNK_SIZE);
+        }
+
+        /**
+         * Performs the action for all chunks in parallel tasks. Called only by the owner.
+         */
+        void forEachChunk(IntConsumer action) {
+            int chunks = chunks();
+            if (chunks > 1)
+                new ChunkTask(action, 0, chunks).invoke();
+            else {
+                for (int c = 0; c < chunks; c++)
+                    action.accept(c);
+            }
+        }
+
+        @Override
+        boolean updates() {
+            return true;
+        }
+
+        @Override
+        void writeJournal(Journal journal, long epoch) {
+            LongSlots updated = newAmounts;
+            if (updated == null)
+                return;
+            forEachChunk(c -> {
+                for (int k = c * APPLY_CHUNK_SIZE; k < chunkEnd(c); k++) {
+                    long amount = allAmounts.get(k);
+                    long result = updated.get(k);
+                    if (result != amount)
+                        journal.append(epoch, Journal.DELTA, k, result - amount, 0);
+                }
+            });
+        }
+
+        @Override
+        int events() {
+            LongSlots updated = newAmounts;
+            int events = 0;
+            if (updated != null) {
+                for (int k = 0; k < allAmounts.length; k++) {
+                    if (updated.get(k) != allAmounts.get(k))
+                        events++;
+                }
+            }
+            return events;
+        }
+
+        @Override
+        void publish(UpdateRing ring, long sequence) {
+            LongSlots updated = newAmounts;
+            int events = events();
+            for (int k = 0; k < allAmounts.length; k++) {
+                long amount = allAmounts.get(k);
+                long result = updated.get(k);
+                if (result != amount)
+                    ring.publish(sequence++, k, result - amount, result, --events == 0);
+            }
+        }
+
+        @Override
+        long newAmount(int index) {
+            LongSlots updated = newAmounts;
+            return updated == null ? allAmounts.get(index) : updated.get(index);
+        }
+    }
+
+    /**
+     * Task that performs an action for a range of chunks, splitting the range in halves down to single chunks.
+     */
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveAction {
+        final IntConsumer action;
+        final int fromChunk;
+        final int toChunk;
+
+        ChunkTask(IntConsumer action, int fromChunk, int toChunk) {
+            this.action = action;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                action.accept(fromChunk);
+                return;
+            }
+            int middle = (fromChunk + toChunk) >>> 1;
+            invokeAll(new ChunkTask(action, fromChunk, middle), new ChunkTask(action, middle, toChunk));
+        }
+    }
+
+    /**
+     * Descriptor of a deposit or withdrawal that acquires its account, see {@link #updateAcquired(int, long)}.
+     */
+    private class DeltaOp extends MultiAccountOp {
+        final long delta;
+
+        DeltaOp(int index, long delta) {
+            super(new int[]{index});
+            this.delta = delta;
+        }
+
+        @Override
+        String update(long[] amounts) {
+            long result = amounts[0] + delta;
+            if (result < 0)
+                return "Underflow";
+            if (result > MAX_AMOUNT)
+                return "Overflow";
+            amounts[0] = result;
+            return null;
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Descriptor of a batch of deposits to a hot account.
+     * Deposits are taken into the batch by setting their {@link DepositNode#batch} from null to the batch, and every
+     * thread that invokes the batch first tries to take all of its candidate deposits. Once a deposit is taken it
+     * stays taken, so all threads that apply the batch after having tried to take its candidates see the same set
+     * of deposits and compute the same results.
      */
-    @Override
-    public long getTotalAmount() {
-        /*
-         * This operation requires atomic read of all accounts, thus it creates an operation descriptor.
-         * Operation's invokeOperation method acquires all accounts, computes the total amount, and releases
-         * all accounts. This method returns the result.
+    private class BatchDepositOp extends MultiAccountOp {
+        /**
+         * Deposits that were published when the batch was created, some of them might be taken by other batches.
          */
-        TotalAmountOp op = new TotalAmountOp();
-        op.invokeOperation();
-        return op.sum;
-    }
+        final DepositNode[] nodes;
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public long deposit(int index, long amount) {
-        // First, validate method per-conditions
-        if (amount <= 0)
-            throw new IllegalArgumentException("Invalid amount: " + amount);
-        if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Overflow");
-        /*
-         * This operation depends only on a single account, thus it can be directly
-         * performed using a regular lock-free compareAndSet loop.
+        /**
+         * Resulting amounts of deposits in the order of {@link #nodes}, {@link #OVERFLOW} or {@link #NOT_COMBINED}.
+         * Each helper computes them in its own array and publishes it before setting {@link #completed} to true.
          */
-        while (true) {
-            Account account = accounts.get(index);
-            /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account can be safely updated.
-             */
-            if (!account.invokeOperation()) {
-                if (account.amount + amount > MAX_AMOUNT)
-                    throw new IllegalStateException("Overflow");
-                Account updated = new Account(account.amount + amount);
-                if (accounts.compareAndSet(index, account, updated))
-                    return updated.amount;
+        long[] results;
+
+        BatchDepositOp(HotAccount hot, DepositNode[] nodes) {
+            super(new int[]{hot.index});
+            this.nodes = nodes;
+        }
+
+        @Override
+        void invokeOperation() {
+            for (DepositNode node : nodes) {
+                if (node.batch == null)
+                    BATCH.compareAndSet(node, null, this);
             }
+            super.invokeOperation();
         }
-    }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public long withdraw(int index, long amount) {
-        // First, validate method per-conditions
-        if (amount <= 0)
-            throw new IllegalArgumentException("Invalid amount: " + amount);
-        if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Underflow");
-        /*
-         * This operation depends only on a single account, thus it can be directly
-         * performed using a regular lock-free compareAndSet loop.
+        @Override
+        String update(long[] amounts) {
+            long[] results = new long[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                DepositNode node = nodes[i];
+                if (node.batch != this)
+                    results[i] = NOT_COMBINED;
+                else if (amounts[0] + node.amount > MAX_AMOUNT)
+                    results[i] = OVERFLOW;
+                else
+                    results[i] = amounts[0] += node.amount;
+            }
+            this.results = results;
+            return null;
+        }
+
+        /**
+         * Each combined deposit is published as an operation of its own.
          */
-        while (true) {
-            Account account = accounts.get(index);
-            /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account can be safely updated.
-             */
-            if (!account.invokeOperation()) {
-                if (account.amount - amount < 0)
-                    throw new IllegalStateException("Underflow");
-                Account updated = new Account(account.amount - amount);
-                if (accounts.compareAndSet(index, account, updated))
-                    return updated.amount;
+        @Override
+        int events() {
+            int events = 0;
+            for (long result : results) {
+                if (result >= 0)
+                    events++;
+            }
+            return events;
+        }
+
+        @Override
+        void publish(UpdateRing ring, long sequence) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (results[i] >= 0)
+                    ring.publish(sequence++, indices[0], nodes[i].amount, results[i], true);
+            }
+        }
+
+        long resultOf(DepositNode node) {
+            for (int i = 0; ; i++) {
+                if (nodes[i] == node)
+                    return results[i];
             }
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Deposit to a hot account that waits to be applied by a {@link BatchDepositOp}.
      */
-    @Override
-    public void transfer(int fromIndex, int toIndex, long amount) {
-        // First, validate method per-conditions
-        if (amount <= 0)
-            throw new IllegalArgumentException("Invalid amount: " + amount);
-        if (fromIndex == toIndex)
-            throw new IllegalArgumentException("fromIndex == toIndex");
-        if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Underflow/overflow");
-        /*
-         * This operation requires atomic read of two accounts, thus it creates an operation descriptor.
-         * Operation's invokeOperation method acquires both accounts, computes the result of operation
-         * (if a form of error message), and releases both accounts. This method throws the exception with
-         * the corresponding message if needed.
+    private static class DepositNode {
+        final long amount;
+
+        /**
+         * The batch that has taken this deposit. It is set only once.
          */
-        TransferOp op = new TransferOp(fromIndex, toIndex, amount);
-        op.invokeOperation();
-        if (op.errorMessage != null)
-            throw new IllegalStateException(op.errorMessage);
-    }
+        volatile BatchDepositOp batch;
 
+        DepositNode(long amount) {
+            this.amount = amount;
+        }
+    }
 
     /**
-     * This is an implementation of a restricted form of Harris DCSS operation:
-     * It atomically checks that op.completed is false and replaces accounts[index] with AcquiredAccount instance
-     * that hold a reference to the op.
-     * This method returns null if op.completed is true.
+     * Account whose deposits are combined into batches.
      */
-    private AcquiredAccount acquire(int index, Op op) {
-        while (true) {
-            Account account = accounts.get(index);
-            if (op.completed)
-                return null;
-            if (account instanceof AcquiredAccount) {
-                AcquiredAccount acquiredAccount = (AcquiredAccount) account;
-                if (acquiredAccount.op != op)
-                    account.invokeOperation();
-                else return acquiredAccount;
-            } else {
-                AcquiredAccount acquiredAccount = new AcquiredAccount(account.amount, op);
-                if (accounts.compareAndSet(index, account, acquiredAccount))
-                    return acquiredAccount;
+    private static class HotAccount {
+        final int index;
+
+        /**
+         * Published deposits, each of them in its own cache line.
+         */
+        final AtomicReferenceArray<DepositNode> slots = new AtomicReferenceArray<>(DEPOSIT_SLOTS * SLOT_STRIDE);
+
+        /**
+         * The number of successive batches with a single deposit.
+         */
+        int singleBatches;
+
+        HotAccount(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Publishes the deposit in a free slot, starting from the slot of the current thread.
+         *
+         * @return the slot or -1 when all slots are taken.
+         */
+        int publish(DepositNode node) {
+            int start = (int) Thread.currentThread().getId();
+            for (int i = 0; i < DEPOSIT_SLOTS; i++) {
+                int slot = ((start + i) & (DEPOSIT_SLOTS - 1)) * SLOT_STRIDE;
+                if (slots.get(slot) == null && slots.compareAndSet(slot, null, node))
+                    return slot;
             }
+            return -1;
         }
-    }
 
-    /**
-     * Releases an account that was previously acquired by {@link #acquire(int, Op)}.
-     * This method does nothing if the account at index is not currently acquired.
-     */
-    private void release(int index, Op op) {
-        assert op.completed; // must be called only on operations that were already completed
-        Account account = accounts.get(index);
-        if (account instanceof AcquiredAccount) {
-            AcquiredAccount acquiredAccount = (AcquiredAccount) account;
-            if (acquiredAccount.op == op) {
-                // release performs update at most once while the account is still acquired
-                Account updated = new Account(acquiredAccount.newAmount);
-                accounts.compareAndSet(index, account, updated);
+        /**
+         * Returns published deposits that are not taken by any batch yet.
+         */
+        DepositNode[] pending() {
+            DepositNode[] pending = new DepositNode[DEPOSIT_SLOTS];
+            int n = 0;
+            for (int i = 0; i < DEPOSIT_SLOTS; i++) {
+                DepositNode node = slots.get(i * SLOT_STRIDE);
+                if (node != null && node.batch == null)
+                    pending[n++] = node;
             }
+            return Arrays.copyOf(pending, n);
         }
     }
 
     /**
-     * Immutable account data structure.
+     * Total amount deposited to the bank by the owners of one thread context less the amount withdrawn by them.
+     * Only the current owner of the context updates it, so it is written with cheap ordered stores.
      */
-    private static class Account {
+    private static class ThreadTotal {
+        private static final AtomicLongFieldUpdater<ThreadTotal> VERSION =
+                AtomicLongFieldUpdater.newUpdater(ThreadTotal.class, "version");
+        private static final AtomicLongFieldUpdater<ThreadTotal> TOTAL =
+                AtomicLongFieldUpdater.newUpdater(ThreadTotal.class, "total");
+        private static final AtomicLongFieldUpdater<ThreadTotal> PUBLISHING =
+                AtomicLongFieldUpdater.newUpdater(ThreadTotal.class, "publishing");
+
+        final ThreadContext context;
+        final ThreadTotal next;
+
         /**
-         * Amount of funds in this account.
+         * {@link BankImpl#snapshotRequests} of the bank.
          */
-        final long amount;
+        final AtomicInteger snapshotRequests;
 
-        Account(long amount) {
-            this.amount = amount;
-        }
+        /**
+         * Version of {@link #total}. It is odd while the owner thread is updating an account.
+         */
+        volatile long version;
+
+        volatile long total;
 
         /**
-         * Invokes operation that is pending on this account.
-         * This implementation returns false (no pending operation),
-         * other implementations return true.
+         * Epoch of the journal from which the owner thread is writing an update to it, or 0.
          */
-        boolean invokeOperation() {
-            return false;
+        volatile long journalEpoch;
+
+        /**
+         * Odd while the owner thread updates accounts and publishes the updates, see {@link BankImpl#awaitPublishing()}.
+         */
+        volatile long publishing;
+
+        ThreadTotal(ThreadContext context, ThreadTotal next, AtomicInteger snapshotRequests) {
+            this.context = context;
+            this.next = next;
+            this.snapshotRequests = snapshotRequests;
         }
-    }
 
+        /**
+         * Must be followed by compareAndSet on the account, which makes the odd version visible before it.
+         */
+        void beginUpdate() {
+            awaitSnapshot();
+            VERSION.lazySet(this, version + 1);
+        }
 
-    /**
-     * Account that was acquired as a part of in-progress operation that spans multiple accounts.
-     *
-     * @see #acquire(int, Op)
-     */
-    private static class AcquiredAccount extends Account {
-        final Op op;
+        /**
+         * Like {@link #beginUpdate()}, but writes the odd version with a full fence. Then either the ring buffer
+         * that is read after it is seen, or {@link BankImpl#awaitPublishing()} that runs after the buffer is created
+         * sees the odd version.
+         */
+        void beginFencedUpdate() {
+            awaitSnapshot();
+            version = version + 1;
+        }
 
         /**
-         * New amount of funds in this account when op completes.
+         * Pauses for at most {@link BankImpl#SNAPSHOT_SPINS} spins while a snapshot is requested, so the writer
+         * never waits for the reader longer than that.
          */
-        long newAmount;
+        private void awaitSnapshot() {
+            for (int spins = 0; snapshotRequests.get() != 0 && spins < SNAPSHOT_SPINS; spins++)
+                Thread.onSpinWait();
+        }
 
-        AcquiredAccount(long amount, Op op) {
-            super(amount);
-            this.op = op;
-            this.newAmount = amount;
+        void endUpdate(long delta) {
+            if (delta != 0)
+                TOTAL.lazySet(this, total + delta);
+            VERSION.lazySet(this, version + 1);
         }
 
-        @Override
-        boolean invokeOperation() {
-            op.invokeOperation();
-            return true;
+        /**
+         * Must be followed by compareAndSet on an account when the bank has a ring buffer, which makes the odd value
+         * visible before the sequence that is claimed after it. Otherwise the value is written with a full fence
+         * before the ring buffer is read.
+         */
+        void beginPublishing(boolean fence) {
+            if (fence)
+                publishing = publishing + 1;
+            else
+                PUBLISHING.lazySet(this, publishing + 1);
+        }
+
+        void endPublishing() {
+            PUBLISHING.lazySet(this, publishing + 1);
         }
     }
 
     /**
-     * Abstract operation that acts on multiple accounts.
+     * Slots for amounts of all accounts that were released in the epoch, see {@link Limbo}.
      */
-    private abstract class Op {
-        /**
-         * True when operation has completed.
-         */
-        volatile boolean completed;
+    private static class Scratch {
+        final LongSlots slots;
+        final long epoch;
 
-        abstract void invokeOperation();
+        Scratch(LongSlots slots, long epoch) {
+            this.slots = slots;
+            this.epoch = epoch;
+        }
     }
 
     /**
-     * Descriptor for {@link #getTotalAmount()} operation.
+     * Descriptors that were retired by one thread and wait to be reused by it.
+     * A descriptor that is retired in epoch e might be still read by threads that have entered their critical
+     * sections in epochs up to e+1: threads that have found it before it was retired, and threads that have found
+     * it through an {@link AcquireDescriptor} of the former. The global epoch goes past e+2 only when all of them
+     * have left their critical sections, so then the descriptor can be reused.
+     * When there are too many retired descriptors the rest of them are left to garbage collector.
      */
-    private class TotalAmountOp extends Op {
+    private static class Limbo<T> {
+        private final Object[] items = new Object[LIMBO_SIZE];
+        private final long[] epochs = new long[LIMBO_SIZE];
+        private int head;
+        private int size;
+
+        void retire(T item) {
+            if (size == LIMBO_SIZE)
+                return;
+            int i = (head + size++) & (LIMBO_SIZE - 1);
+            items[i] = item;
+            epochs[i] = ThreadContext.epoch();
+        }
+
         /**
-         * The result of getTotalAmount operation is stored here before setting
-         * {@link #completed} to true.
+         * Returns the oldest retired descriptor that is safe to reuse or null.
          */
-        long sum;
-
-        @Override
-        void invokeOperation() {
-            long sum = 0;
-            int i;
-            int n = accounts.length();
-            for (i = 0; i < n; i++) {
-                AcquiredAccount account = acquire(i, this);
-                if (account == null)
-                    break;
-                sum += account.amount;
-            }
-            if (i == n) {
+        @SuppressWarnings("unchecked")
+        T reuse() {
+            if (size == 0)
+                return null;
+            if (!ThreadContext.isSafe(epochs[head])) {
+                // there is no need to advance the epoch while there are few retired descriptors
+                if (size < LIMBO_SIZE / 2)
+                    return null;
                 /*
-                 * If i == n, then all acquired accounts were not null and full sum was calculated.
-                 * this.sum = sum assignment below has a benign data race. Multiple threads might to this assignment
-                 * concurrently, however, they are all guaranteed to be assigning the same value.
+                 * Descriptors that are reused right away are retired again in the same epoch, so the head may need
+                 * several advances. Each of them moves the epoch, so there are at most three.
                  */
-                this.sum = sum;
-                this.completed = true; // volatile write to completed field _after_ the sum was written
-            }
-            /*
-             * As performance optimization, only acquired accounts are released. There is no harm in calling
-             * release for all accounts, though.
-             */
-            for (; --i >= 0; ) {
-                release(i, this);
+                do {
+                    if (!ThreadContext.tryAdvance())
+                        return null;
+                } while (!ThreadContext.isSafe(epochs[head]));
             }
+            T item = (T) items[head];
+            items[head] = null;
+            head = (head + 1) & (LIMBO_SIZE - 1);
+            size--;
+            return item;
         }
     }
 
     /**
-     * Descriptor for {@link #transfer(int, int, long) transfer(...)} operation.
+     * Per-thread context that makes descriptors reachable by their tags.
+     * A tag keeps the slot of the context of the thread that has created the descriptor, and the thread keeps
+     * the descriptor published in its context while the tag can be found in accounts.
      */
-    private class TransferOp extends Op {
-        final int fromIndex;
-        final int toIndex;
-        final long amount;
+    private static class ThreadContext {
+        private static final AtomicReferenceArray<ThreadContext> CONTEXTS = new AtomicReferenceArray<>(MAX_CONTEXTS);
 
-        String errorMessage;
+        /**
+         * Global epoch of reclamation of descriptors.
+         */
+        private static final AtomicLong EPOCH = new AtomicLong(QUIESCENT + 1);
 
-        TransferOp(int fromIndex, int toIndex, long amount) {
-            this.fromIndex = fromIndex;
-            this.toIndex = toIndex;
-            this.amount = amount;
+        /**
+         * The number of slots in {@link #CONTEXTS} that were ever claimed.
+         */
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        private static final ThreadLocal<ThreadContext> CURRENT = new ThreadLocal<ThreadContext>() {
+            @Override
+            protected ThreadContext initialValue() {
+                return claim(Thread.currentThread());
+            }
+        };
+
+        /**
+         * Slot of this context in the {@link #CONTEXTS} array, shifted to its place in a tag.
+         */
+        final long slotBits;
+
+        /**
+         * The thread that owns this context. A context of a terminated thread is reused.
+         */
+        final AtomicReference<Thread> owner;
+
+        /**
+         * Sequence number of the last created tag. It is only accessed by the owner thread.
+         */
+        long seq = FIRST_SEQ - 1;
+
+        /**
+         * Operation that was created by the owner thread and is being executed.
+         */
+        volatile Op op;
+
+        /**
+         * The {@link AcquireDescriptor} that is being installed by the owner thread.
+         */
+        volatile AcquireDescriptor acquire;
+
+        /**
+         * Acquire descriptors that were retired by the owner thread.
+         */
+        final Limbo<AcquireDescriptor> acquires = new Limbo<>();
+
+        /**
+         * Transfer descriptors that were retired by the owner thread in {@link #transferBank}.
+         * They are kept only for the last bank, so that the context does not keep other banks reachable.
+         */
+        Limbo<TransferOp> transferOps;
+        BankImpl transferBank;
+
+        /**
+         * Total of this context in {@link #totalBank}, it is cached only for the last bank as well.
+         */
+        ThreadTotal total;
+        BankImpl totalBank;
+
+        /**
+         * The global epoch that was seen by the owner thread when it entered a critical section,
+         * or {@link #QUIESCENT} when it is not in a critical section.
+         */
+        volatile long epoch = QUIESCENT;
+
+        /**
+         * The number of nested critical sections of the owner thread.
+         */
+        int depth;
+
+        ThreadContext(int slot, Thread owner) {
+            this.slotBits = (long) slot << SEQ_BITS;
+            this.owner = new AtomicReference<>(owner);
         }
 
-        @Override
-        void invokeOperation() {
-            AcquiredAccount from;
-            AcquiredAccount to;
-            if (fromIndex < toIndex) {
-                from = acquire(fromIndex, this);
-                to = acquire(toIndex, this);
-            } else {
-                to = acquire(toIndex, this);
-                from = acquire(fromIndex, this);
+        static ThreadContext current() {
+            return CURRENT.get();
+        }
+
+        static ThreadContext of(long tag) {
+            return CONTEXTS.get((int) (tag >>> SEQ_BITS) & (MAX_CONTEXTS - 1));
+        }
+
+        /**
+         * Enters a critical section, in which the owner thread can read descriptors of other threads.
+         */
+        void enter() {
+            if (depth++ > 0)
+                return;
+            long e;
+            do {
+                e = EPOCH.get();
+                epoch = e;
+            } while (EPOCH.get() != e);
+        }
+
+        void exit() {
+            if (--depth == 0)
+                epoch = QUIESCENT;
+        }
+
+        Limbo<TransferOp> transferOps(BankImpl bank) {
+            if (transferBank != bank) {
+                transferBank = bank;
+                transferOps = new Limbo<>();
             }
-            if (from != null && to != null) {
-                if (amount > from.amount)
-                    errorMessage = "Underflow";
-                else if (to.amount + amount > MAX_AMOUNT)
-                    errorMessage = "Overflow";
-                else {
-                    from.newAmount = from.amount - amount;
-                    to.newAmount = to.amount + amount;
+            return transferOps;
+        }
+
+        static long epoch() {
+            return EPOCH.get();
+        }
+
+        /**
+         * Returns true when a descriptor that was retired in the specified epoch can be reused.
+         */
+        static boolean isSafe(long retired) {
+            return EPOCH.get() > retired + 2;
+        }
+
+        /**
+         * Advances the global epoch when all threads in critical sections have seen it.
+         *
+         * @return true when the global epoch has advanced.
+         */
+        static boolean tryAdvance() {
+            long e = EPOCH.get();
+            for (int slot = 0, n = COUNT.get(); slot < n; slot++) {
+                ThreadContext context = CONTEXTS.get(slot);
+                if (context == null)
+                    continue;
+                long epoch = context.epoch;
+                if (epoch != QUIESCENT && epoch != e && context.owner.get().isAlive())
+                    return false;
+            }
+            return EPOCH.compareAndSet(e, e + 1) || EPOCH.get() != e;
+        }
+
+        long nextTag(long kind) {
+            seq = seq == SEQ_MASK ? FIRST_SEQ : seq + 1;
+            return TAG_BIT | kind | slotBits | seq;
+        }
+
+        /**
+         * Takes a free slot or the context of a terminated thread. When all {@link BankImpl#MAX_CONTEXTS} contexts
+         * belong to alive threads, the thread yields and scans them again until one of their owners terminates.
+         */
+        private static ThreadContext claim(Thread thread) {
+            while (true) {
+                for (int slot = 0; slot < MAX_CONTEXTS; slot++) {
+                    ThreadContext context = CONTEXTS.get(slot);
+                    if (context == null) {
+                        context = new ThreadContext(slot, thread);
+                        if (CONTEXTS.compareAndSet(slot, null, context)) {
+                            COUNT.accumulateAndGet(slot + 1, Math::max);
+                            return context;
+                        }
+                        context = CONTEXTS.get(slot);
+                    }
+                    Thread owner = context.owner.get();
+                    if (!owner.isAlive() && context.owner.compareAndSet(owner, thread)) {
+                        context.epoch = QUIESCENT;
+                        context.depth = 0;
+                        return context;
+                    }
                 }
-                this.completed = true;
+                Thread.yield();
             }
-            release(fromIndex, this);
-            release(toIndex, this);
         }
     }
 }
@@ -0,0 +1,270 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped file of incremental checkpoints of the accounts of a {@link BankImpl} that has a {@link Journal}.
+ * <p>
+ * <p>Accounts are checkpointed by chunks of {@link #CHUNK_SIZE} accounts. Each chunk is read atomically,
+ * and the read closes an epoch of the journal, so the chunk contains exactly the updates of its accounts of that
+ * and earlier epochs. Chunks are read one after another while other operations keep running, so a checkpoint
+ * as a whole is fuzzy. Recovery loads each chunk and replays only the records of the journal after the position
+ * where the checkpoint has started, skipping the records of each chunk that are not later than its epoch.
+ * <p>
+ * <p>The journal marks chunks dirty when it appends records of their accounts, and a checkpoint writes only
+ * dirty chunks and the ones that were never written. Each chunk has two slots, and a checkpoint writes into the slot
+ * that does not keep the current version of the chunk. A slot is valid when its generation is not later than
+ * the generation in the header, which is written last, so a checkpoint that was interrupted leaves the previous
+ * one intact.
+ *
+ * @author <Хорин>
+ */
+public class Checkpoint implements Closeable {
+    /**
+     * Binary logarithm of the number of accounts in a chunk.
+     */
+    static final int CHUNK_SHIFT = 9;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final long MAGIC = 0x434B504E5442414EL;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int POSITION_OFFSET = 16;
+    private static final int ACCOUNTS_OFFSET = 24;
+
+    /**
+     * Slot keeps generation, epoch and amounts of the chunk.
+     */
+    private static final int SLOT_SIZE = 16 + (CHUNK_SIZE << 3);
+    private static final int SEGMENT_CHUNKS_SHIFT = 13;
+    private static final long SEGMENT_SIZE = (2L * SLOT_SIZE) << SEGMENT_CHUNKS_SHIFT;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * The size of the file, mapping of a segment extends it.
+     */
+    private long fileSize;
+
+    /**
+     * The generation of the last complete checkpoint, 0 when there is none.
+     */
+    private long generation;
+
+    /**
+     * Dirty flags of chunks. Updaters set them with plain writes, and the checkpoint reads them after it has waited
+     * for all writers of its epoch. The array is replaced only by the checkpoint, which then merges the flags that
+     * were set in the previous array into the new one, and chunks that are new to the array are dirty.
+     */
+    private volatile byte[] dirty = new byte[0];
+    private byte[] previousDirty;
+
+    /**
+     * The number of chunks written so far, for tests.
+     */
+    int writtenChunks;
+
+    /**
+     * Opens checkpoint file, creating it when it does not exist.
+     *
+     * @param file the file of the checkpoint.
+     * @throws IOException when the file cannot be opened, or it is not a checkpoint.
+     */
+    public Checkpoint(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            long magic = header.getLong(MAGIC_OFFSET);
+            if (magic == 0) {
+                header.putLong(GENERATION_OFFSET, 0);
+                header.putLong(MAGIC_OFFSET, MAGIC);
+                header.force();
+            } else if (magic != MAGIC)
+                throw new IOException("Not a checkpoint: " + file);
+            generation = header.getLong(GENERATION_OFFSET);
+            fileSize = channel.size();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the position of the journal from which records are replayed after this checkpoint is loaded.
+     */
+    synchronized long journalPosition() {
+        return generation == 0 ? 0 : header.getLong(POSITION_OFFSET);
+    }
+
+    /**
+     * Returns the number of accounts in the last checkpoint.
+     */
+    synchronized int accounts() {
+        return generation == 0 ? 0 : (int) header.getLong(ACCOUNTS_OFFSET);
+    }
+
+    static int chunks(int accounts) {
+        return (int) (((long) accounts + CHUNK_SIZE - 1) >> CHUNK_SHIFT);
+    }
+
+    /**
+     * Marks the chunk of the account dirty. Called by the journal when it appends a record of the account.
+     */
+    void markDirty(long index) {
+        byte[] dirty = this.dirty;
+        int chunk = (int) (index >>> CHUNK_SHIFT);
+        if (chunk < dirty.length && dirty[chunk] == 0)
+            dirty[chunk] = 1;
+    }
+
+    /**
+     * Makes room for the dirty flags of the specified number of accounts. Must be called before the epoch of the
+     * checkpoint is closed.
+     */
+    synchronized void begin(int accounts) {
+        int chunks = chunks(accounts);
+        byte[] dirty = this.dirty;
+        if (chunks <= dirty.length)
+            return;
+        byte[] grown = new byte[Math.max(chunks, 2 * dirty.length)];
+        Arrays.fill(grown, dirty.length, grown.length, (byte) 1);
+        previousDirty = dirty;
+        this.dirty = grown;
+    }
+
+    /**
+     * Returns true and clears the flag when the chunk has to be written, because it is dirty or was never written.
+     * Must be called after all writers of the epoch of the checkpoint have finished.
+     */
+    synchronized boolean takeDirty(int chunk) {
+        byte[] dirty = this.dirty;
+        if (previousDirty != null) {
+            for (int c = 0; c < previousDirty.length; c++)
+                dirty[c] |= previousDirty[c];
+            previousDirty = null;
+        }
+        boolean result = chunk >= dirty.length || dirty[chunk] != 0 || latestSlot(chunk) < 0;
+        if (chunk < dirty.length)
+            dirty[chunk] = 0;
+        return result;
+    }
+
+    /**
+     * Reads the latest version of the chunk into amounts.
+     *
+     * @return the epoch of the chunk, or -1 when the chunk was never written.
+     */
+    synchronized long read(int chunk, long[] amounts) {
+        int slot = latestSlot(chunk);
+        if (slot < 0)
+            return -1;
+        MappedByteBuffer segment = segment(chunk);
+        int offset = slotOffset(chunk, slot);
+        for (int i = 0; i < amounts.length; i++)
+            amounts[i] = segment.getLong(offset + 16 + (i << 3));
+        return segment.getLong(offset + 8);
+    }
+
+    /**
+     * Writes new version of the chunk. It becomes valid when the checkpoint is committed.
+     */
+    synchronized void write(int chunk, long epoch, long[] amounts) {
+        int slot = latestSlot(chunk) == 0 ? 1 : 0;
+        MappedByteBuffer segment = segment(chunk);
+        int offset = slotOffset(chunk, slot);
+        for (int i = 0; i < CHUNK_SIZE; i++)
+            segment.putLong(offset + 16 + (i << 3), i < amounts.length ? amounts[i] : 0);
+        segment.putLong(offset + 8, epoch);
+        segment.putLong(offset, generation + 1);
+        writtenChunks++;
+    }
+
+    /**
+     * Makes all chunks dirty after a checkpoint has failed, so that the next one writes all of them again.
+     */
+    synchronized void abort() {
+        previousDirty = null;
+        Arrays.fill(dirty, (byte) 1);
+    }
+
+    /**
+     * Forces written chunks to disk and then makes them valid.
+     *
+     * @param journalPosition the position of the journal from which records are replayed.
+     * @param accounts the number of accounts.
+     * @throws UncheckedIOException when the file cannot be written.
+     */
+    synchronized void commit(long journalPosition, int accounts) {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null)
+                segment.force();
+        }
+        /*
+         * All longs are in the same page, so they are written to disk together.
+         */
+        header.putLong(POSITION_OFFSET, journalPosition);
+        header.putLong(ACCOUNTS_OFFSET, accounts);
+        header.putLong(GENERATION_OFFSET, generation + 1);
+        header.force();
+        generation++;
+    }
+
+    /**
+     * Returns the slot with the latest valid version of the chunk, or -1 when there is none.
+     */
+    private int latestSlot(int chunk) {
+        if (generation == 0 || segmentOffset(chunk) >= fileSize)
+            return -1; // the file was never written so far
+        MappedByteBuffer segment = segment(chunk);
+        long g0 = segment.getLong(slotOffset(chunk, 0));
+        long g1 = segment.getLong(slotOffset(chunk, 1));
+        boolean valid0 = g0 > 0 && g0 <= generation;
+        boolean valid1 = g1 > 0 && g1 <= generation;
+        if (valid0 && valid1)
+            return g0 > g1 ? 0 : 1;
+        return valid0 ? 0 : valid1 ? 1 : -1;
+    }
+
+    private static long segmentOffset(int chunk) {
+        return HEADER_SIZE + (chunk >>> SEGMENT_CHUNKS_SHIFT) * SEGMENT_SIZE;
+    }
+
+    private static int slotOffset(int chunk, int slot) {
+        return ((chunk & ((1 << SEGMENT_CHUNKS_SHIFT) - 1)) * 2 + slot) * SLOT_SIZE;
+    }
+
+    private MappedByteBuffer segment(int chunk) {
+        int index = chunk >>> SEGMENT_CHUNKS_SHIFT;
+        if (index >= segments.length)
+            segments = Arrays.copyOf(segments, index + 1);
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentOffset(chunk), SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segment.order(ByteOrder.nativeOrder());
+            segments[index] = segment;
+            fileSize = Math.max(fileSize, segmentOffset(chunk) + SEGMENT_SIZE);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,177 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention manager for {@link BankImpl}.
+ * It decides what an operation does when it finds an account that is acquired by another operation:
+ * waits for the other operation to release the account with randomized exponential backoff, or helps
+ * to complete the other operation.
+ * <p>
+ * <p>On a hot account waiting lets the owner of the other operation complete it alone, instead of having
+ * all contending threads to invoke the same operation over and over again. Every operation starts helping
+ * after {@link #getMaxWaits() maxWaits} waits on the same account, so the bank stays lock-free.
+ * This class is thread-safe and can be shared by several banks.
+ *
+ * @author <Хорин>
+ */
+public class ContentionManager {
+    /**
+     * Contention manager that never waits and helps other operation immediately.
+     */
+    public static final ContentionManager HELP_IMMEDIATELY = new ContentionManager(0, 1, 1, 0);
+
+    private final int maxWaits;
+    private final int minSpins;
+    private final int maxSpins;
+    private final long parkNanos;
+
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder parks = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder helps = new LongAdder();
+
+    /**
+     * Creates contention manager with default settings.
+     */
+    public ContentionManager() {
+        this(6, 32, 512, 20_000);
+    }
+
+    /**
+     * Creates contention manager.
+     *
+     * @param maxWaits the number of waits on the same account before helping other operation.
+     * @param minSpins the number of spins in the first wait.
+     * @param maxSpins the maximal number of spins in a wait, the number of spins doubles with each wait.
+     * @param parkNanos for how long to park the thread after a wait with maxSpins, or 0 to never park.
+     * @throws IllegalArgumentException when some of the settings is invalid.
+     */
+    public ContentionManager(int maxWaits, int minSpins, int maxSpins, long parkNanos) {
+        if (maxWaits < 0)
+            throw new IllegalArgumentException("Invalid maxWaits: " + maxWaits);
+        if (minSpins <= 0 || maxSpins < minSpins)
+            throw new IllegalArgumentException("Invalid spins: " + minSpins + ".." + maxSpins);
+        if (parkNanos < 0)
+            throw new IllegalArgumentException("Invalid parkNanos: " + parkNanos);
+        this.maxWaits = maxWaits;
+        this.minSpins = minSpins;
+        this.maxSpins = maxSpins;
+        this.parkNanos = parkNanos;
+    }
+
+    /**
+     * Waits for words[index] to change from the tag of other operation.
+     *
+     * @param waits the number of previous waits of the calling operation on this account.
+     * @return false when the calling operation shall help other operation instead of waiting.
+     */
+    boolean await(LongSlots words, int index, long tag, int waits) {
+        if (waits == 0)
+            conflicts.increment();
+        if (waits >= maxWaits) {
+            helps.increment();
+            return false;
+        }
+        this.waits.increment();
+        int limit = limit(waits);
+        int spins = spins(limit);
+        for (int i = 0; i < spins; i++) {
+            if (words.get(index) != tag) {
+                releases.increment();
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        if (limit == maxSpins && parkNanos > 0) {
+            parks.increment();
+            LockSupport.parkNanos(parkNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Backs off like {@link #await(LongSlots, int, long, int)} does, for a change that is not in an account.
+     * It never helps, so a wait with maxSpins ends with parking or, when parkNanos is 0, with a yield.
+     *
+     * @param waits the number of previous pauses of the calling operation.
+     */
+    void pause(int waits) {
+        int limit = limit(waits);
+        int spins = spins(limit);
+        for (int i = 0; i < spins; i++)
+            Thread.onSpinWait();
+        if (limit == maxSpins) {
+            if (parkNanos > 0)
+                LockSupport.parkNanos(parkNanos);
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Returns the maximal number of spins in a wait. It is doubled in long and clamped, so that it does not
+     * overflow after many waits.
+     */
+    private int limit(int waits) {
+        int limit = (int) Math.min((long) minSpins << Math.min(waits, 32), maxSpins);
+        return limit <= 0 ? 1 : limit;
+    }
+
+    private static int spins(int limit) {
+        return limit / 2 + ThreadLocalRandom.current().nextInt(limit - limit / 2) + 1;
+    }
+
+    public int getMaxWaits() {
+        return maxWaits;
+    }
+
+    /**
+     * Returns the number of times operations have found accounts acquired by other operations.
+     */
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Returns the number of waits for other operations.
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * Returns the number of waits that have ended with parking.
+     */
+    public long getParks() {
+        return parks.sum();
+    }
+
+    /**
+     * Returns the number of waits that have ended with the account being released by other operation.
+     */
+    public long getReleases() {
+        return releases.sum();
+    }
+
+    /**
+     * Returns the number of times operations have stopped waiting and helped other operations.
+     */
+    public long getHelps() {
+        return helps.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ContentionManager{" +
+                "conflicts=" + getConflicts() +
+                ", waits=" + getWaits() +
+                ", parks=" + getParks() +
+                ", releases=" + getReleases() +
+                ", helps=" + getHelps() +
+                '}';
+    }
+}
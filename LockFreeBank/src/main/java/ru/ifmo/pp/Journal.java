@@ -0,0 +1,365 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Append-only memory-mapped journal of updates of a {@link BankImpl}.
+ * <p>
+ * <p>The journal keeps deltas of accounts rather than operations, and deltas commute, so records can be appended
+ * in any order and recovery just adds them up. Each record carries an epoch. The epoch of an update is read after
+ * the amounts that the update depends on and before its result becomes visible, so an update never has a smaller
+ * epoch than the updates it depends on. A commit closes the current epoch, waits for all updates of it and earlier
+ * epochs to be written, and forces the journal to disk. Recovery applies only the records of committed epochs,
+ * so it restores a state of the bank with all updates up to some point of time.
+ * <p>
+ * <p>A synchronous journal commits before each update returns. Concurrent commits are grouped: a thread that waits
+ * for the commit lock usually finds its epoch already committed by the previous holder. An asynchronous journal
+ * commits only on {@link #sync()} and {@link #close()}.
+ * <p>
+ * <p>File starts with a header page that keeps the last committed epoch, the end of its records, and the position
+ * before which all records are committed.
+ * Records of 4 longs follow it: epoch and type, and up to 3 arguments. The header is written last and released,
+ * so a record with non-zero header is complete. A journal is used by a single bank.
+ *
+ * @author <Хорин>
+ */
+public class Journal implements Closeable {
+    static final int DELTA = 1; // index, delta
+    static final int TRANSFER = 2; // fromIndex, toIndex, amount
+    static final int OPEN = 3; // the number of accounts
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final long MAGIC = 0x4A524E4C42414E4BL;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int EPOCH_OFFSET = 8;
+    private static final int END_OFFSET = 16;
+    private static final int STABLE_OFFSET = 24;
+
+    private static final int RECORD_SIZE = 32;
+    private static final int TYPE_BITS = 8;
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final boolean synchronous;
+    private final int segmentShift;
+    private final long segmentMask;
+
+    /**
+     * The epoch of updates that are being written.
+     */
+    private final AtomicLong epoch;
+
+    /**
+     * The end of reserved records.
+     */
+    private final AtomicLong end;
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition committed = commitLock.newCondition();
+
+    /**
+     * True while the leader of commit is forcing the journal, guarded by {@link #commitLock}.
+     */
+    private boolean committing;
+
+    private volatile long committedEpoch;
+
+    /**
+     * The end of committed records, written only by the leader of commit.
+     */
+    private long committedEnd;
+
+    /**
+     * The position from which the next commit forces records, written only by the leader of commit.
+     * Records between it and {@link #committedEnd} may be of later epochs, which were reserved
+     * while the epoch was closed and written after the last commit has forced them.
+     */
+    private long unforced;
+
+    /**
+     * Waits until all updates of the specified and earlier epochs are written, it is set by the bank.
+     */
+    private volatile LongConsumer awaitWriters;
+
+    /**
+     * Checkpoint of the bank whose chunks are marked dirty by appended records, or null.
+     */
+    private volatile Checkpoint checkpoint;
+
+    /**
+     * Opens journal, creating the file when it does not exist. Records of epochs that were not committed are erased.
+     *
+     * @param file the file of the journal.
+     * @param synchronous true to commit each update before it returns, false to commit only on {@link #sync()}.
+     * @throws IOException when the file cannot be opened, or it is not a journal.
+     */
+    public Journal(Path file, boolean synchronous) throws IOException {
+        this(file, synchronous, SEGMENT_SHIFT);
+    }
+
+    /**
+     * Opens journal with segments of the specified size, the file must be always opened with the same size.
+     */
+    Journal(Path file, boolean synchronous, int segmentShift) throws IOException {
+        this.synchronous = synchronous;
+        this.segmentShift = segmentShift;
+        segmentMask = (1L << segmentShift) - 1;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            long magic = (long) LONGS.get(header, MAGIC_OFFSET);
+            if (magic == 0) {
+                LONGS.set(header, EPOCH_OFFSET, 0L);
+                LONGS.set(header, END_OFFSET, 0L);
+                LONGS.set(header, STABLE_OFFSET, 0L);
+                LONGS.set(header, MAGIC_OFFSET, MAGIC);
+                header.force();
+            } else if (magic != MAGIC)
+                throw new IOException("Not a journal: " + file);
+            committedEpoch = (long) LONGS.get(header, EPOCH_OFFSET);
+            committedEnd = (long) LONGS.get(header, END_OFFSET);
+            // records after the end and records of later epochs were never committed
+            channel.truncate(HEADER_SIZE + committedEnd);
+            // records before the stable position are all committed, so only the tail is checked
+            long stable = (long) LONGS.get(header, STABLE_OFFSET);
+            for (long position = stable; position < committedEnd; position += RECORD_SIZE) {
+                MappedByteBuffer segment = segment(position);
+                int offset = (int) (position & segmentMask);
+                if ((long) LONGS.get(segment, offset) >>> TYPE_BITS > committedEpoch)
+                    LONGS.set(segment, offset, 0L);
+            }
+            force(stable, committedEnd);
+            unforced = committedEnd;
+            epoch = new AtomicLong(committedEpoch + 1);
+            end = new AtomicLong(committedEnd);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Commits all updates that have returned before this call.
+     *
+     * @throws UncheckedIOException when the journal cannot be written.
+     */
+    public void sync() {
+        commit(epoch.get());
+    }
+
+    /**
+     * Commits all updates and closes the journal. The bank must not be updated after that.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Attaches journal to a bank.
+     *
+     * @param awaitWriters waits until all updates of the bank of the specified and earlier epochs are written.
+     * @param checkpoint checkpoint of the bank, or null.
+     * @throws IllegalStateException when the journal is already attached to other bank.
+     */
+    synchronized void attach(LongConsumer awaitWriters, Checkpoint checkpoint) {
+        if (this.awaitWriters != null)
+            throw new IllegalStateException("Journal is used by other bank");
+        this.awaitWriters = awaitWriters;
+        this.checkpoint = checkpoint;
+    }
+
+    long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Makes sure that the current epoch is later than the specified one.
+     */
+    void advanceEpoch(long epoch) {
+        this.epoch.compareAndSet(epoch, epoch + 1); // the epoch never decreases, so it is already later on failure
+    }
+
+    /**
+     * Closes the current epoch and waits until all updates of it and the previous epochs are written.
+     *
+     * @return the closed epoch.
+     */
+    long closeEpoch() {
+        // updates that read epoch after this point have later epochs
+        long closed = epoch.getAndIncrement();
+        LongConsumer awaitWriters = this.awaitWriters;
+        if (awaitWriters != null)
+            awaitWriters.accept(closed);
+        return closed;
+    }
+
+    /**
+     * Returns the end of appended records. Records after it have epochs that are not closed yet.
+     */
+    long end() {
+        return end.get();
+    }
+
+    /**
+     * Passes committed records from the specified position to the consumer in the order in which they were appended.
+     */
+    void replay(long from, RecordConsumer consumer) {
+        for (long position = from; position < committedEnd; position += RECORD_SIZE) {
+            MappedByteBuffer segment = segment(position);
+            int offset = (int) (position & segmentMask);
+            long header = (long) LONGS.get(segment, offset);
+            if (header == 0)
+                continue; // reserved by an update of uncommitted epoch
+            consumer.accept(header >>> TYPE_BITS, (int) (header & ((1 << TYPE_BITS) - 1)),
+                    (long) LONGS.get(segment, offset + 8),
+                    (long) LONGS.get(segment, offset + 16),
+                    (long) LONGS.get(segment, offset + 24));
+        }
+    }
+
+    /**
+     * Appends a record of an update of the specified epoch. The caller must stay announced as a writer
+     * of this epoch until this method returns.
+     */
+    void append(long epoch, int type, long a, long b, long c) {
+        long position = end.getAndAdd(RECORD_SIZE);
+        MappedByteBuffer segment = segment(position);
+        int offset = (int) (position & segmentMask);
+        LONGS.set(segment, offset + 8, a);
+        LONGS.set(segment, offset + 16, b);
+        LONGS.set(segment, offset + 24, c);
+        LONGS.setRelease(segment, offset, epoch << TYPE_BITS | type);
+        Checkpoint checkpoint = this.checkpoint;
+        if (checkpoint != null && type != OPEN) {
+            checkpoint.markDirty(a);
+            if (type == TRANSFER)
+                checkpoint.markDirty(b);
+        }
+    }
+
+    /**
+     * Commits the specified epoch and all the previous ones, unless they are already committed.
+     * One of the threads that call it becomes the leader and forces the journal outside of the lock,
+     * while the others wait for the commit of their epochs. Followers of a commit in progress are
+     * committed by the next leader together.
+     */
+    void commit(long epoch) {
+        if (committedEpoch >= epoch)
+            return;
+        commitLock.lock();
+        try {
+            while (committedEpoch < epoch) {
+                if (committing) {
+                    committed.awaitUninterruptibly();
+                    continue;
+                }
+                committing = true;
+                commitLock.unlock();
+                try {
+                    commitEpoch();
+                } finally {
+                    commitLock.lock();
+                    committing = false;
+                    committed.signalAll();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current epoch and forces all records of it and the previous epochs to disk.
+     * Only the leader of commit calls it.
+     */
+    private void commitEpoch() {
+        // let other writers of the epoch finish their updates, so that they join this commit
+        Thread.yield();
+        // records before this position have epochs that are closed below
+        long stable = this.end.get();
+        long closed = closeEpoch();
+        long end = this.end.get();
+        try {
+            // records after the last stable position may have been written after the last commit has forced them
+            force(unforced, end);
+            /*
+             * All longs are in the same page, so they are written to disk together.
+             */
+            LONGS.set(header, STABLE_OFFSET, stable);
+            LONGS.set(header, END_OFFSET, end);
+            LONGS.set(header, EPOCH_OFFSET, closed);
+            header.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        committedEnd = end;
+        unforced = stable;
+        committedEpoch = closed;
+    }
+
+    private void force(long from, long to) throws IOException {
+        if (from >= to)
+            return;
+        for (int index = (int) (from >>> segmentShift); (long) index << segmentShift < to; index++)
+            forceSegment(index);
+    }
+
+    /**
+     * Forces the segment with the specified index to disk, tests override it to see the forced segments.
+     */
+    void forceSegment(int index) {
+        segment((long) index << segmentShift).force();
+    }
+
+    private MappedByteBuffer segment(long position) {
+        int index = (int) (position >>> segmentShift);
+        MappedByteBuffer segment = segments.get(index);
+        if (segment != null)
+            return segment;
+        synchronized (segments) {
+            segment = segments.get(index);
+            if (segment == null) {
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                            HEADER_SIZE + ((long) index << segmentShift), segmentMask + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                segments.set(index, segment);
+            }
+            return segment;
+        }
+    }
+
+    interface RecordConsumer {
+        void accept(long epoch, int type, long a, long b, long c);
+    }
+}
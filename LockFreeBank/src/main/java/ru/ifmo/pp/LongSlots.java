@@ -0,0 +1,126 @@
+package ru.ifmo.pp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-size array of long slots with volatile reads, release writes and compareAndSet, where {@link BankImpl}
+ * keeps its accounts. Slots are kept either in a long array on heap, or in direct buffers off heap, so that
+ * a bank of many millions of accounts has no heap objects per account.
+ *
+ * @author <Хорин>
+ */
+abstract class LongSlots {
+    /**
+     * The number of slots.
+     */
+    final int length;
+
+    private LongSlots(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length: " + length);
+        this.length = length;
+    }
+
+    /**
+     * Creates slots in a long array on heap.
+     */
+    static LongSlots onHeap(int length) {
+        return new OnHeap(length);
+    }
+
+    /**
+     * Creates slots in direct buffers off heap. Their memory is freed when the slots are garbage collected.
+     */
+    static LongSlots offHeap(int length) {
+        return new OffHeap(length);
+    }
+
+    /**
+     * Creates new slots of the same kind, all slots are zero.
+     */
+    abstract LongSlots create(int length);
+
+    abstract long get(int i);
+
+    abstract void lazySet(int i, long value);
+
+    abstract boolean compareAndSet(int i, long expected, long value);
+
+    private static final class OnHeap extends LongSlots {
+        private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long[] longs;
+
+        OnHeap(int length) {
+            super(length);
+            longs = new long[length];
+        }
+
+        @Override
+        LongSlots create(int length) {
+            return new OnHeap(length);
+        }
+
+        @Override
+        long get(int i) {
+            return (long) LONGS.getVolatile(longs, i);
+        }
+
+        @Override
+        void lazySet(int i, long value) {
+            LONGS.setRelease(longs, i, value);
+        }
+
+        @Override
+        boolean compareAndSet(int i, long expected, long value) {
+            return LONGS.compareAndSet(longs, i, expected, value);
+        }
+    }
+
+    private static final class OffHeap extends LongSlots {
+        private static final VarHandle LONGS =
+                MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        /**
+         * Binary logarithm of the number of slots in a buffer. A buffer is indexed by int bytes,
+         * so large slots are split into several buffers.
+         */
+        private static final int CHUNK_SHIFT = 27;
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+
+        OffHeap(int length) {
+            super(length);
+            chunks = new ByteBuffer[(int) (((long) length + CHUNK_MASK) >> CHUNK_SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int longs = Math.min(length - (c << CHUNK_SHIFT), 1 << CHUNK_SHIFT);
+                // direct buffers are zeroed and aligned to at least 8 bytes, as atomic access requires
+                chunks[c] = ByteBuffer.allocateDirect(longs << 3);
+            }
+        }
+
+        @Override
+        LongSlots create(int length) {
+            return new OffHeap(length);
+        }
+
+        @Override
+        long get(int i) {
+            return (long) LONGS.getVolatile(chunks[i >>> CHUNK_SHIFT], (i & CHUNK_MASK) << 3);
+        }
+
+        @Override
+        void lazySet(int i, long value) {
+            LONGS.setRelease(chunks[i >>> CHUNK_SHIFT], (i & CHUNK_MASK) << 3, value);
+        }
+
+        @Override
+        boolean compareAndSet(int i, long expected, long value) {
+            return LONGS.compareAndSet(chunks[i >>> CHUNK_SHIFT], (i & CHUNK_MASK) << 3, expected, value);
+        }
+    }
+}
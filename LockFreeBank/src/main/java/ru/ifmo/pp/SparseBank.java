@@ -0,0 +1,145 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bank of accounts with sparse 64-bit IDs.
+ * This class is thread-safe and lock-free.
+ * <p>
+ * <p>Amounts are kept in a {@link BankImpl} with dense indices, and {@link AccountTable} maps IDs to indices
+ * without boxing. An account is opened in the bank first and then its ID is mapped to its index, so an operation
+ * costs a lookup in the table and the same operation of the bank. A thread that opens an ID that another thread
+ * is opening at the same time may lose its account of the bank, which stays empty and unused.
+ *
+ * @author <Хорин>
+ */
+public class SparseBank {
+    private final BankImpl bank;
+    private final AccountTable table;
+
+    /**
+     * The number of opened IDs.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates new bank without accounts.
+     */
+    public SparseBank() {
+        this(0);
+    }
+
+    /**
+     * Creates new bank without accounts.
+     *
+     * @param expectedAccounts the number of accounts that the bank makes room for in advance.
+     * @throws IllegalArgumentException when expectedAccounts < 0.
+     */
+    public SparseBank(int expectedAccounts) {
+        if (expectedAccounts < 0)
+            throw new IllegalArgumentException("Invalid expectedAccounts: " + expectedAccounts);
+        bank = new BankImpl(0);
+        table = new AccountTable(expectedAccounts);
+    }
+
+    /**
+     * Returns number of accounts in this bank.
+     *
+     * @return number of accounts in this bank.
+     */
+    public int getNumberOfAccounts() {
+        return size.get();
+    }
+
+    /**
+     * Opens new account with zero amount unless the account with this ID is already opened.
+     *
+     * @param id any ID of the account.
+     * @return true when the account is opened, false when it was opened before.
+     */
+    public boolean openAccount(long id) {
+        if (table.get(id) != AccountTable.ABSENT)
+            return false;
+        int index = bank.openAccount();
+        if (table.putIfAbsent(id, index) != index)
+            return false;
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns true when the account with this ID is opened.
+     */
+    public boolean hasAccount(long id) {
+        return table.get(id) != AccountTable.ABSENT;
+    }
+
+    /**
+     * Returns current amount in the specified account.
+     *
+     * @param id account ID.
+     * @return amount in account.
+     * @throws IllegalArgumentException when there is no account with this ID.
+     */
+    public long getAmount(long id) {
+        return bank.getAmount(index(id));
+    }
+
+    /**
+     * Returns total amount deposited in this bank.
+     *
+     * @return total amount deposited in this bank.
+     */
+    public long getTotalAmount() {
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * Deposits specified amount to account.
+     *
+     * @param id account ID.
+     * @param amount positive amount to deposit.
+     * @return resulting amount in account.
+     * @throws IllegalArgumentException when amount <= 0 or there is no account with this ID.
+     * @throws IllegalStateException when deposit will overflow account above {@link Bank#MAX_AMOUNT}.
+     */
+    public long deposit(long id, long amount) {
+        return bank.deposit(index(id), amount);
+    }
+
+    /**
+     * Withdraws specified amount from account.
+     *
+     * @param id account ID.
+     * @param amount positive amount to withdraw.
+     * @return resulting amount in account.
+     * @throws IllegalArgumentException when amount <= 0 or there is no account with this ID.
+     * @throws IllegalStateException when account does not enough to withdraw.
+     */
+    public long withdraw(long id, long amount) {
+        return bank.withdraw(index(id), amount);
+    }
+
+    /**
+     * Transfers specified amount from one account to another account.
+     *
+     * @param fromId account ID to withdraw from.
+     * @param toId account ID to deposit to.
+     * @param amount positive amount to transfer.
+     * @throws IllegalArgumentException when amount <= 0, fromId == toId or there is no account with some ID.
+     * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
+     */
+    public void transfer(long fromId, long toId, long amount) {
+        bank.transfer(index(fromId), index(toId), amount);
+    }
+
+    /**
+     * @throws IllegalArgumentException when there is no account with this ID.
+     */
+    private int index(long id) {
+        int index = table.get(id);
+        if (index == AccountTable.ABSENT)
+            throw new IllegalArgumentException("No account: " + id);
+        return index;
+    }
+}
@@ -0,0 +1,222 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Subscription to the updates of balances of a {@link BankImpl}, see {@link BankImpl#subscribe(Handler, Backpressure)}.
+ * <p>
+ * <p>Each subscription has a thread of its own that takes batches of published updates from the ring buffer
+ * of the bank and passes them to the handler. Updates of an account are passed in the order in which they have
+ * taken effect, and so are updates that depend on each other. Updates of an operation that changes several
+ * accounts have consecutive sequences.
+ *
+ * @author <Хорин>
+ */
+public final class Subscription implements AutoCloseable {
+    /**
+     * The maximal number of updates that a subscription takes from the ring buffer at once.
+     */
+    private static final int MAX_BATCH = 256;
+    private static final int IDLE_SPINS = 100;
+    private static final long IDLE_PARK_NANOS = 50_000;
+
+    /**
+     * What happens when a subscription falls behind the bank by the whole ring buffer.
+     */
+    public enum Backpressure {
+        /**
+         * Updates wait until the subscription has taken the updates that they would overwrite.
+         * The handler must not update the bank then, otherwise it might wait for itself.
+         */
+        BLOCK,
+
+        /**
+         * Updates never wait, and the subscription skips the updates that were overwritten before it has taken them.
+         * See {@link Handler#onOverrun(long)}.
+         */
+        OVERWRITE
+    }
+
+    /**
+     * Receives updates of balances in the thread of the subscription.
+     */
+    public interface Handler {
+        /**
+         * Called for each update.
+         *
+         * @param update the update, it is valid only until this method returns.
+         * @param sequence the sequence of the update, sequences grow in the order of updates.
+         * @param endOfBatch true for the last update of the batch that the subscription has taken.
+         */
+        void onUpdate(Update update, long sequence, boolean endOfBatch);
+
+        /**
+         * Called when the subscription with {@link Backpressure#OVERWRITE} policy has skipped updates.
+         * The skipped updates have taken effect by then, so the handler can read the accounts of the bank again,
+         * and the updates that it receives after that give their exact amounts.
+         *
+         * @param lost the number of skipped sequences.
+         */
+        default void onOverrun(long lost) {
+        }
+    }
+
+    /**
+     * Update of the balance of an account.
+     */
+    public static final class Update {
+        int index;
+        long delta;
+        long amount;
+        boolean endOfOperation;
+        boolean cancelled;
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the change of the amount, negative for withdrawals.
+         */
+        public long getDelta() {
+            return delta;
+        }
+
+        /**
+         * Returns the amount of the account after the update.
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        /**
+         * Returns true for the last update of an operation, in particular for every deposit and withdrawal.
+         */
+        public boolean isEndOfOperation() {
+            return endOfOperation;
+        }
+
+        @Override
+        public String toString() {
+            return "Update{index=" + index + ", delta=" + delta + ", amount=" + amount + "}";
+        }
+    }
+
+    private final BankImpl bank;
+    private final UpdateRing ring;
+    private final Handler handler;
+    private final Backpressure backpressure;
+    private final Thread thread;
+    private final Update[] batch = new Update[MAX_BATCH];
+
+    /**
+     * The next sequence that this subscription takes. Producers with {@link Backpressure#BLOCK} policy
+     * may overwrite slots of the previous sequences.
+     */
+    private volatile long sequence;
+    private volatile boolean closed;
+
+    Subscription(BankImpl bank, UpdateRing ring, Handler handler, Backpressure backpressure) {
+        if (handler == null || backpressure == null)
+            throw new NullPointerException();
+        this.bank = bank;
+        this.ring = ring;
+        this.handler = handler;
+        this.backpressure = backpressure;
+        for (int i = 0; i < MAX_BATCH; i++)
+            batch[i] = new Update();
+        thread = new Thread(this::run, "bank-subscription");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts taking updates that claim their sequences from now on.
+     */
+    void start() {
+        sequence = ring.cursor();
+        if (backpressure == Backpressure.BLOCK) {
+            ring.addGating(this);
+            // producers that have claimed sequences before they saw this subscription have not waited for it
+            sequence = ring.cursor();
+        }
+        thread.start();
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * Stops the subscription and waits until its thread has passed the last batch to the handler.
+     * Updates never wait for a closed subscription.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (Thread.currentThread() == thread)
+            return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void run() {
+        try {
+            long next = sequence;
+            int idle = 0;
+            while (!closed) {
+                int size = 0;
+                long lost = 0;
+                long first = next;
+                while (size < MAX_BATCH) {
+                    long read = ring.read(next, batch[size]);
+                    if (read < next)
+                        break; // not published yet
+                    if (read > next) {
+                        // the slot was overwritten, updates of older sequences are lost
+                        lost = read - ring.capacity + 1 - next;
+                        break;
+                    }
+                    size++;
+                    next++;
+                }
+                // the slots are released before the handler is called, so producers wait less
+                sequence = next + lost;
+                int last = size - 1;
+                while (last >= 0 && batch[last].cancelled)
+                    last--;
+                for (int i = 0; i <= last; i++) {
+                    if (!batch[i].cancelled)
+                        handler.onUpdate(batch[i], first + i, i == last);
+                }
+                if (lost > 0) {
+                    // producers of the lost sequences might have not updated their accounts yet
+                    bank.awaitPublishing();
+                    handler.onOverrun(lost);
+                    next += lost;
+                }
+                if (size > 0 || lost > 0)
+                    idle = 0;
+                else if (++idle < IDLE_SPINS)
+                    Thread.onSpinWait();
+                else
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } finally {
+            closed = true;
+            if (backpressure == Backpressure.BLOCK)
+                ring.removeGating(this);
+        }
+    }
+}
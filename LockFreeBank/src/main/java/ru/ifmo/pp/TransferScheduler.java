@@ -0,0 +1,240 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Performs large batches of transfers of a {@link Bank} in parallel without contention on accounts.
+ * <p>
+ * <p>Transfers of a batch conflict when they have a common account. The scheduler assigns each transfer
+ * to the earliest level that follows the levels of all earlier conflicting transfers, so transfers of the same level
+ * never conflict, and a level can be performed in parallel once the previous one is done. Transfers of an account
+ * are performed in the order of the batch, so the batch has the same effect and the same failures as if it was
+ * performed transfer by transfer, provided that nothing else updates its accounts in the meantime.
+ * <p>
+ * <p>A hot account makes a chain of levels as long as the number of its transfers, which is the critical path
+ * of the batch anyway. Other transfers take the earliest levels, and small levels are performed by a single thread,
+ * so such a batch is limited by the chain and not by contention on the hot account.
+ * This class is thread-safe, but batches that have common accounts do not keep the order of their transfers.
+ *
+ * @author <Хорин>
+ */
+public class TransferScheduler {
+    /**
+     * Levels with fewer transfers are performed by a single thread.
+     */
+    private static final int MIN_PARALLEL_LEVEL = 256;
+
+    /**
+     * The minimal number of transfers in a task of a level.
+     */
+    private static final int MIN_TASK_SIZE = 64;
+
+    /**
+     * The maximal capacity of the hash table of accounts of a batch. The table has at least twice as many slots
+     * as the batch can have distinct accounts, so it is at most half full unless there are hundreds of millions
+     * of them.
+     */
+    private static final int MAX_TABLE_CAPACITY = 1 << 30;
+
+    private final Bank bank;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates scheduler that performs transfers in the common pool.
+     *
+     * @param bank the bank.
+     */
+    public TransferScheduler(Bank bank) {
+        this(bank, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates scheduler.
+     *
+     * @param bank the bank.
+     * @param pool the pool that performs transfers.
+     */
+    public TransferScheduler(Bank bank, ForkJoinPool pool) {
+        if (bank == null || pool == null)
+            throw new NullPointerException();
+        this.bank = bank;
+        this.pool = pool;
+    }
+
+    /**
+     * Performs a batch of transfers as if one after another, but not atomically.
+     * A transfer that does not find enough funds in source account or finds too much in target one fails
+     * and does not stop the following ones.
+     *
+     * @param fromIndices account indices to withdraw from.
+     * @param toIndices account indices to deposit to.
+     * @param amounts positive amounts to transfer.
+     * @return failures of transfers in the order of the batch, null for each transfer that is performed.
+     * @throws IllegalArgumentException when arrays have different lengths, some amount <= 0 or fromIndex == toIndex.
+     *         No transfer is performed then.
+     * @throws IndexOutOfBoundsException when account indices are invalid. No transfer is performed then.
+     */
+    public IllegalStateException[] transfer(int[] fromIndices, int[] toIndices, long[] amounts) {
+        int n = amounts.length;
+        if (fromIndices.length != n || toIndices.length != n)
+            throw new IllegalArgumentException("Arrays have different lengths");
+        int accounts = bank.getNumberOfAccounts();
+        for (int i = 0; i < n; i++) {
+            if (amounts[i] <= 0)
+                throw new IllegalArgumentException("Invalid amount: " + amounts[i]);
+            if (fromIndices[i] == toIndices[i])
+                throw new IllegalArgumentException("fromIndex == toIndex");
+            if (fromIndices[i] < 0 || fromIndices[i] >= accounts)
+                throw new IndexOutOfBoundsException("Invalid index: " + fromIndices[i]);
+            if (toIndices[i] < 0 || toIndices[i] >= accounts)
+                throw new IndexOutOfBoundsException("Invalid index: " + toIndices[i]);
+        }
+        /*
+         * The level of a transfer follows the levels of the last transfers of its accounts,
+         * then transfers are sorted by levels with counting sort. The levels of accounts are kept in a hash table
+         * of the accounts of the batch, so a small batch costs nothing in proportion to the number of accounts.
+         */
+        int[] levels = new int[n];
+        // a batch has at most twice as many distinct accounts as transfers, and at most all accounts of the bank
+        long distinct = Math.min(2L * n, accounts);
+        int capacity = (int) Math.min(Long.highestOneBit(Math.max(1, 2 * distinct - 1)) << 1, MAX_TABLE_CAPACITY);
+        int[] keys = new int[capacity];
+        int[] next = new int[capacity]; // the level that follows the last transfer of the account
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int from = slot(keys, fromIndices[i]);
+            int to = slot(keys, toIndices[i]);
+            int level = Math.max(next[from], next[to]);
+            levels[i] = level;
+            next[from] = next[to] = level + 1;
+            count = Math.max(count, level + 1);
+        }
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < n; i++)
+            starts[levels[i] + 1]++;
+        for (int level = 0; level < count; level++)
+            starts[level + 1] += starts[level];
+        int[] order = new int[n];
+        int[] positions = Arrays.copyOf(starts, count);
+        for (int i = 0; i < n; i++)
+            order[positions[levels[i]]++] = i;
+        Batch batch = new Batch(fromIndices, toIndices, amounts, order);
+        if (n < MIN_PARALLEL_LEVEL)
+            batch.perform(0, n);
+        else
+            pool.invoke(new Levels(batch, starts));
+        return batch.failures;
+    }
+
+    /**
+     * Returns the slot of the account in a hash table with linear probing, where keys are account indices plus one
+     * and 0 marks an empty slot. The account takes an empty slot when it is not in the table yet.
+     */
+    private static int slot(int[] keys, int account) {
+        int mask = keys.length - 1;
+        int hash = account * 0x9E3779B9;
+        for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == account + 1)
+                return slot;
+            if (keys[slot] == 0) {
+                keys[slot] = account + 1;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Transfers of a batch in the order of their levels.
+     */
+    private class Batch {
+        final int[] fromIndices;
+        final int[] toIndices;
+        final long[] amounts;
+        final int[] order;
+        final IllegalStateException[] failures;
+
+        Batch(int[] fromIndices, int[] toIndices, long[] amounts, int[] order) {
+            this.fromIndices = fromIndices;
+            this.toIndices = toIndices;
+            this.amounts = amounts;
+            this.order = order;
+            failures = new IllegalStateException[amounts.length];
+        }
+
+        void perform(int from, int to) {
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                try {
+                    bank.transfer(fromIndices[i], toIndices[i], amounts[i]);
+                } catch (IllegalStateException e) {
+                    failures[i] = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs levels one after another.
+     */
+    @SuppressWarnings("serial")
+    private static class Levels extends RecursiveAction {
+        private final Batch batch;
+        private final int[] starts;
+
+        Levels(Batch batch, int[] starts) {
+            this.batch = batch;
+            this.starts = starts;
+        }
+
+        @Override
+        protected void compute() {
+            int parallelism = getPool().getParallelism();
+            int level = 0;
+            int count = starts.length - 1;
+            while (level < count) {
+                int from = starts[level];
+                int size = starts[level + 1] - from;
+                if (size >= MIN_PARALLEL_LEVEL) {
+                    int taskSize = Math.max(MIN_TASK_SIZE, size / (4 * parallelism));
+                    new Part(batch, from, starts[level + 1], taskSize).invoke();
+                    level++;
+                    continue;
+                }
+                // consecutive small levels are performed by this thread in their order
+                while (level < count && starts[level + 1] - starts[level] < MIN_PARALLEL_LEVEL)
+                    level++;
+                batch.perform(from, starts[level]);
+            }
+        }
+    }
+
+    /**
+     * Performs a part of a level.
+     */
+    @SuppressWarnings("serial")
+    private static class Part extends RecursiveAction {
+        private final Batch batch;
+        private final int from;
+        private final int to;
+        private final int taskSize;
+
+        Part(Batch batch, int from, int to, int taskSize) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= taskSize) {
+                batch.perform(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Part(batch, from, middle, taskSize), new Part(batch, middle, to, taskSize));
+        }
+    }
+}
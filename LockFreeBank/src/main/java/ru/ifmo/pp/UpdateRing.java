@@ -0,0 +1,195 @@
+package ru.ifmo.pp;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Preallocated multi-producer ring buffer of balance updates that {@link BankImpl} publishes to its subscriptions.
+ * <p>
+ * <p>A producer claims sequences with a single getAndAdd, then writes the slots and publishes each of them with
+ * a compareAndSet of its state. An update claims its sequences after it has read its accounts and before
+ * its effect becomes visible, so updates that depend on each other are published in the order of their
+ * sequences, in particular all updates of an account are. A claimed sequence whose update has failed
+ * is cancelled, and subscriptions skip it.
+ * <p>
+ * <p>The state of a slot is twice the sequence that it keeps, plus one while the slot is being written,
+ * so a subscription that reads a slot without gating producers detects when the slot is overwritten.
+ * Producers wait for subscriptions with {@link Subscription.Backpressure#BLOCK} policy before they overwrite
+ * a slot that they have not consumed yet.
+ *
+ * @author <Хорин>
+ */
+final class UpdateRing {
+    private static final AtomicLongFieldUpdater<Slot> STATE = AtomicLongFieldUpdater.newUpdater(Slot.class, "state");
+
+    /**
+     * Index of the cursor in {@link #cursor} array, so that the cursor has a cache line of its own.
+     */
+    private static final int CURSOR = 7;
+
+    final int capacity;
+    private final int mask;
+    private final Slot[] slots;
+
+    /**
+     * The next sequence to claim.
+     */
+    private final AtomicLongArray cursor = new AtomicLongArray(2 * CURSOR + 1);
+
+    /**
+     * Subscriptions that gate producers, copied on write.
+     */
+    private volatile Subscription[] gating = new Subscription[0];
+
+    /**
+     * The least next sequence of gating subscriptions that some producer has seen, so that producers look at
+     * subscriptions only when they are about to wrap. A stale value only makes a producer look at them again.
+     */
+    private volatile long gatingSequence = Long.MAX_VALUE;
+
+    UpdateRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        mask = capacity - 1;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            slots[i].state = 2L * (i - capacity); // as if a sequence of the previous round was published
+        }
+    }
+
+    /**
+     * Claims the specified number of consecutive sequences.
+     *
+     * @return the first of them.
+     */
+    long next(int count) {
+        return cursor.getAndAdd(CURSOR, count);
+    }
+
+    /**
+     * Returns the next sequence to claim.
+     */
+    long cursor() {
+        return cursor.get(CURSOR);
+    }
+
+    /**
+     * Publishes an update of an account at the claimed sequence.
+     *
+     * @param index the index of the account.
+     * @param delta the change of the amount.
+     * @param amount the resulting amount.
+     * @param endOfOperation true for the last update of an operation.
+     */
+    void publish(long sequence, int index, long delta, long amount, boolean endOfOperation) {
+        Slot slot = claimSlot(sequence);
+        slot.index = index;
+        slot.delta = delta;
+        slot.amount = amount;
+        slot.endOfOperation = endOfOperation;
+        slot.cancelled = false;
+        // a producer that has overwritten the slot in the meantime keeps it
+        STATE.compareAndSet(slot, 2 * sequence + 1, 2 * sequence);
+    }
+
+    /**
+     * Publishes the claimed sequences of an update that has failed.
+     */
+    void cancel(long sequence, int count) {
+        for (int i = 0; i < count; i++) {
+            Slot slot = claimSlot(sequence + i);
+            slot.cancelled = true;
+            STATE.compareAndSet(slot, 2 * (sequence + i) + 1, 2 * (sequence + i));
+        }
+    }
+
+    /**
+     * Waits until gating subscriptions have consumed the previous sequence of the slot and marks it as being written.
+     */
+    private Slot claimSlot(long sequence) {
+        long wrap = sequence - capacity;
+        if (wrap >= gatingSequence)
+            awaitGating(wrap);
+        Slot slot = slots[(int) sequence & mask];
+        STATE.lazySet(slot, 2 * sequence + 1);
+        VarHandle.storeStoreFence(); // the slot is marked before its fields are overwritten
+        return slot;
+    }
+
+    private void awaitGating(long wrap) {
+        for (int spins = 0; ; spins++) {
+            Subscription[] gating = this.gating;
+            long min = Long.MAX_VALUE;
+            for (Subscription subscription : gating)
+                min = Math.min(min, subscription.sequence());
+            gatingSequence = min;
+            if (gating != this.gating)
+                continue; // a subscription was added after the producer has read them, it is not in min
+            if (wrap < min)
+                return;
+            if (spins < 100)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Reads the slot of the sequence into the update.
+     *
+     * @return the sequence, or a smaller one when the sequence is not published yet, or a larger one when
+     * the slot was overwritten.
+     */
+    long read(long sequence, Subscription.Update update) {
+        Slot slot = slots[(int) sequence & mask];
+        long state = slot.state;
+        if (state >> 1 != sequence)
+            return state >> 1;
+        if ((state & 1) != 0)
+            return sequence - 1; // being written
+        update.index = slot.index;
+        update.delta = slot.delta;
+        update.amount = slot.amount;
+        update.endOfOperation = slot.endOfOperation;
+        update.cancelled = slot.cancelled;
+        VarHandle.loadLoadFence(); // the fields are read before the state is checked again
+        return slot.state == state ? sequence : sequence + capacity;
+    }
+
+    synchronized void addGating(Subscription subscription) {
+        Subscription[] gating = Arrays.copyOf(this.gating, this.gating.length + 1);
+        gating[gating.length - 1] = subscription;
+        this.gating = gating;
+        gatingSequence = Long.MIN_VALUE; // producers look at the new subscription
+    }
+
+    synchronized void removeGating(Subscription subscription) {
+        Subscription[] gating = this.gating;
+        for (int i = 0; i < gating.length; i++) {
+            if (gating[i] == subscription) {
+                Subscription[] removed = Arrays.copyOf(gating, gating.length - 1);
+                System.arraycopy(gating, i + 1, removed, i, gating.length - i - 1);
+                this.gating = removed;
+                gatingSequence = Long.MIN_VALUE;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Preallocated slot. Fields other than {@link #state} are written before the state is published
+     * and read after it is read.
+     */
+    private static final class Slot {
+        volatile long state;
+        int index;
+        long delta;
+        long amount;
+        boolean endOfOperation;
+        boolean cancelled;
+    }
+}
@@ -0,0 +1,61 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures {@link BankImpl#applyToAll(java.util.function.LongUnaryOperator)} of many accounts
+ * while other threads transfer between them.
+ *
+ * <p>The cost depends on the number of cores, so it is not a part of the tests and is run by its main method.
+ * {@link ApplyToAllTest} checks the atomicity itself.
+ *
+ * @author <Хорин>
+ */
+public class ApplyToAllBenchmark {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int THREADS = 4;
+    private static final int APPLIES = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread transfers = new Thread(() -> {
+            try {
+                Benchmarks.time(THREADS, () -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (!done.get()) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        try {
+                            if (from != to)
+                                bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                        } catch (IllegalStateException e) {
+                            // not enough money
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        transfers.start();
+        long elapsed;
+        try {
+            elapsed = Benchmarks.time(1, () -> {
+                for (int k = 0; k < APPLIES; k++)
+                    bank.applyToAll(amount -> 2 * amount);
+            });
+        } finally {
+            done.set(true);
+            transfers.join();
+        }
+        Benchmarks.check(bank.getTotalAmount() == (N * MEAN) << APPLIES, "Total amount " + bank.getTotalAmount());
+        System.out.printf(Locale.US, "Nanoseconds per account of applyToAll with concurrent transfers: %d%n",
+                elapsed / ((long) APPLIES * N));
+    }
+}
@@ -0,0 +1,143 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tests {@link BankImpl#applyToAll(java.util.function.LongUnaryOperator)} that spans many parallel tasks.
+ *
+ * @author <Хорин>
+ */
+public class ApplyToAllTest extends TestCase {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int THREADS = 4;
+    private static final int APPLIES = 10;
+
+    /**
+     * Doubling is atomic only when no transfer moves money from a doubled account to an account that is not doubled
+     * yet or back, otherwise the total changes by the transferred amount.
+     */
+    public void testAtomicWithConcurrentTransfers() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (!done.get()) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        try {
+                            if (from == to)
+                                continue;
+                            if (rnd.nextBoolean())
+                                bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                            else
+                                bank.transferAll(new int[]{from}, new int[]{to}, new long[]{rnd.nextInt(1000) + 1});
+                        } catch (IllegalStateException e) {
+                            // not enough money
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long expected = N * MEAN;
+        for (int k = 0; k < APPLIES; k++) {
+            bank.applyToAll(amount -> 2 * amount);
+            expected *= 2;
+            assertEquals(expected, bank.getTotalAmount());
+        }
+        done.set(true);
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(expected, bank.getTotalAmount());
+        assertEquals(expected, bank.getAmount(0, N));
+    }
+
+    /**
+     * Operations that help applyToAll right away compute chunks of accounts too, but each account is updated once.
+     */
+    public void testHelpersComputeChunks() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N, ContentionManager.HELP_IMMEDIATELY);
+        final AtomicBoolean done = new AtomicBoolean();
+        final LongAdder deposits = new LongAdder();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (!done.get()) {
+                    bank.deposit(rnd.nextInt(N), 1);
+                    deposits.increment();
+                }
+            });
+            threads[t].start();
+        }
+        LongAdder invocations = new LongAdder();
+        for (int k = 0; k < APPLIES; k++) {
+            bank.applyToAll(amount -> {
+                invocations.increment();
+                return amount + 1;
+            });
+        }
+        done.set(true);
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(invocations.sum() >= (long) APPLIES * N);
+        assertEquals(deposits.sum() + (long) APPLIES * N, bank.getTotalAmount());
+        assertEquals(bank.getAmount(0, N), bank.getTotalAmount());
+    }
+
+    /**
+     * A thread that stalls in the function does not stop operations that find accounts acquired by applyToAll:
+     * they compute the rest of the accounts and complete it.
+     */
+    public void testStalledFunction() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N, ContentionManager.HELP_IMMEDIATELY);
+        final CountDownLatch helped = new CountDownLatch(1);
+        final AtomicBoolean stalled = new AtomicBoolean();
+        final Thread depositor = new Thread(() -> bank.deposit(0, MEAN));
+        Thread apply = new Thread(() -> bank.applyToAll(amount -> {
+            if (Thread.currentThread() == depositor)
+                helped.countDown();
+            else if (stalled.compareAndSet(false, true)) {
+                try {
+                    helped.await(20, TimeUnit.SECONDS); // until the depositor has computed some account
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return amount + 1;
+        }));
+        apply.start();
+        while (!stalled.get())
+            Thread.yield();
+        depositor.start();
+        depositor.join(10_000);
+        assertFalse("The deposit waits for applyToAll", depositor.isAlive());
+        apply.join();
+        assertEquals(N + MEAN, bank.getTotalAmount());
+    }
+
+    public void testOpenedAccounts() {
+        BankImpl bank = new BankImpl(0);
+        for (int i = 0; i < 3 * N; i++)
+            bank.deposit(bank.openAccount(), MEAN);
+        bank.applyToAll(amount -> amount + 1);
+        for (int i = 0; i < 3 * N; i++)
+            assertEquals(MEAN + 1, bank.getAmount(i));
+        assertEquals(3 * N * (MEAN + 1), bank.getTotalAmount());
+        assertEquals(3 * N, bank.openAccount());
+        assertEquals(0, bank.getAmount(3 * N));
+    }
+}
@@ -0,0 +1,205 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests asynchronous operations that are applied in groups.
+ *
+ * @author <Хорин>
+ */
+public class AsyncTest extends TestCase {
+    private static final int N = 3;
+    private static final int HOT = 1;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 20_000;
+
+    /**
+     * Asynchronous deposits of 1 to the same account must return all intermediate amounts exactly once.
+     */
+    public void testGroupedDepositsAreExact() throws Exception {
+        final Bank bank = new BankImpl(N);
+        final long[][] results = new long[THREADS][OPS_PER_THREAD];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long[] threadResults = results[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    CompletableFuture<?>[] futures = new CompletableFuture<?>[OPS_PER_THREAD];
+                    for (int i = 0; i < OPS_PER_THREAD; i++)
+                        futures[i] = bank.depositAsync(HOT, 1);
+                    for (int i = 0; i < OPS_PER_THREAD; i++)
+                        threadResults[i] = (Long) futures[i].join();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        int total = THREADS * OPS_PER_THREAD;
+        boolean[] seen = new boolean[total + 1];
+        for (long[] threadResults : results) {
+            long last = 0;
+            for (long result : threadResults) {
+                assertTrue(result > last && result <= total);
+                assertFalse(seen[(int) result]);
+                seen[(int) result] = true;
+                last = result;
+            }
+        }
+        assertEquals(total, bank.getAmount(HOT));
+        assertEquals(total, bank.getTotalAmount());
+    }
+
+    /**
+     * A withdrawal that is submitted after a transfer from the same account must not be grouped with a deposit
+     * that is submitted before the transfer.
+     */
+    public void testOrderOfAccount() throws Exception {
+        final int accounts = 1000;
+        Bank bank = new BankImpl(2 * accounts);
+        CompletableFuture<?>[] transfers = new CompletableFuture<?>[accounts];
+        CompletableFuture<?>[] withdrawals = new CompletableFuture<?>[accounts];
+        for (int i = 0; i < accounts; i++) {
+            bank.depositAsync(i, 10);
+            transfers[i] = bank.transferAsync(i, accounts + i, 10);
+            withdrawals[i] = bank.withdrawAsync(i, 10);
+        }
+        for (int i = 0; i < accounts; i++) {
+            transfers[i].get();
+            try {
+                withdrawals[i].get();
+                fail("ExecutionException expected");
+            } catch (ExecutionException e) {
+                assertEquals("Underflow", e.getCause().getMessage());
+            }
+            assertEquals(10, bank.getAmount(accounts + i));
+        }
+    }
+
+    /**
+     * A transfer keeps its order only with the operations on its source account. A withdrawal from the target account
+     * that is submitted right after the transfer might be applied before it and fail, and a withdrawal that waits
+     * for the transfer always sees the transferred amount.
+     */
+    public void testOrderOfTargetAccount() throws Exception {
+        final int accounts = 1000;
+        final Bank bank = new BankImpl(2 * accounts);
+        CompletableFuture<?>[] transfers = new CompletableFuture<?>[accounts];
+        CompletableFuture<?>[] racing = new CompletableFuture<?>[accounts];
+        CompletableFuture<?>[] waiting = new CompletableFuture<?>[accounts];
+        for (int i = 0; i < accounts; i++) {
+            final int target = accounts + i;
+            bank.deposit(i, 20);
+            transfers[i] = bank.transferAsync(i, target, 20);
+            racing[i] = bank.withdrawAsync(target, 10);
+            waiting[i] = transfers[i].thenCompose(v -> bank.withdrawAsync(target, 10));
+        }
+        long total = 0;
+        for (int i = 0; i < accounts; i++) {
+            transfers[i].get();
+            waiting[i].get();
+            long expected = 0;
+            try {
+                racing[i].get();
+            } catch (ExecutionException e) {
+                assertEquals("Underflow", e.getCause().getMessage());
+                expected = 10;
+            }
+            assertEquals(expected, bank.getAmount(accounts + i));
+            assertEquals(0, bank.getAmount(i));
+            total += expected;
+        }
+        assertEquals(total, bank.getTotalAmount());
+    }
+
+    /**
+     * Operations on the same account keep their order when they are submitted while earlier ones are still drained,
+     * so that a withdrawal does not take the money of the transfers that were submitted before it.
+     */
+    public void testOrderAcrossDrains() throws Exception {
+        Bank bank = new BankImpl(N);
+        for (int round = 1; round <= 10; round++) {
+            bank.deposit(HOT, OPS_PER_THREAD + 1);
+            CompletableFuture<?>[] transfers = new CompletableFuture<?>[OPS_PER_THREAD];
+            for (int i = 0; i < OPS_PER_THREAD; i++)
+                transfers[i] = bank.transferAsync(HOT, 0, 1);
+            transfers[0].get(); // the transfers are being drained
+            CompletableFuture<Long> withdrawal = bank.withdrawAsync(HOT, 1);
+            for (CompletableFuture<?> transfer : transfers)
+                transfer.get();
+            assertEquals(0, (long) withdrawal.get());
+            assertEquals(round * OPS_PER_THREAD, bank.getAmount(0));
+        }
+    }
+
+    /**
+     * The total amount counts exactly the operations that succeeded.
+     */
+    public void testMixedAsyncOperations() throws Exception {
+        final Bank bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, OPS_PER_THREAD);
+        final int[] failures = new int[THREADS];
+        final long[] changes = new long[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    CompletableFuture<?>[] futures = new CompletableFuture<?>[OPS_PER_THREAD];
+                    long[] amounts = new long[OPS_PER_THREAD]; // how much each operation changes the total amount
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int index = rnd.nextInt(N);
+                        switch (rnd.nextInt(3)) {
+                            case 0:
+                                futures[i] = bank.depositAsync(index, 2);
+                                amounts[i] = 2;
+                                break;
+                            case 1:
+                                futures[i] = bank.withdrawAsync(index, 1);
+                                amounts[i] = -1;
+                                break;
+                            default:
+                                futures[i] = bank.transferAsync(index, (index + 1) % N, 1);
+                        }
+                    }
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        try {
+                            futures[i].get();
+                            changes[thread] += amounts[i];
+                        } catch (ExecutionException e) {
+                            assertTrue(e.getCause() instanceof IllegalStateException);
+                            assertTrue(amounts[i] <= 0);
+                            failures[thread]++;
+                        } catch (InterruptedException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(sum, bank.getTotalAmount());
+        long expected = N * (long) OPS_PER_THREAD;
+        int failed = 0;
+        for (int t = 0; t < THREADS; t++) {
+            expected += changes[t];
+            failed += failures[t];
+        }
+        assertEquals(expected, sum);
+        // each account starts with more than the withdrawals and transfers are expected to take from it
+        assertEquals(0, failed);
+    }
+}
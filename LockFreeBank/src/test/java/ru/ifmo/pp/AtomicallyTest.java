@@ -0,0 +1,129 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests {@link BankImpl#atomically(int[], java.util.function.Function)} with concurrent helpers.
+ *
+ * @author <Хорин>
+ */
+public class AtomicallyTest extends TestCase {
+    private static final int N = 4;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int UPDATES = 20_000;
+
+    /**
+     * Threads that find the accounts acquired help right away, but the function is invoked only by the caller,
+     * at least once for each update. The result of each update is written only once, so the total is kept.
+     */
+    public void testFunctionIsInvokedOnlyByCaller() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N, ContentionManager.HELP_IMMEDIATELY);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (!done.get()) {
+                    int index = rnd.nextInt(N);
+                    bank.deposit(index, 1);
+                    bank.withdraw(index, 1);
+                }
+            });
+            threads[t].start();
+        }
+        Thread caller = Thread.currentThread();
+        AtomicLong invocations = new AtomicLong();
+        AtomicLong foreignInvocations = new AtomicLong();
+        try {
+            for (int k = 0; k < UPDATES; k++) {
+                long[] previous = bank.atomically(new int[]{k % N, (k + 1) % N}, amounts -> {
+                    if (Thread.currentThread() != caller)
+                        foreignInvocations.incrementAndGet();
+                    invocations.incrementAndGet();
+                    return new long[]{amounts[0] - 1, amounts[1] + 2};
+                });
+                assertEquals(2, previous.length);
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads)
+                thread.join();
+        }
+        assertEquals(0, foreignInvocations.get());
+        assertTrue(invocations.get() >= UPDATES);
+        assertEquals(N * MEAN + UPDATES, bank.getTotalAmount());
+        assertEquals(N * MEAN + UPDATES, bank.getAmount(0, N));
+    }
+
+    /**
+     * Concurrent updates of the same accounts retry on conflicts, so none of them is lost, and each returns
+     * the amounts that it has replaced.
+     */
+    public void testConcurrentUpdatesAreNotLost() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        bank.deposit(0, MEAN);
+        final AtomicLong moved = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                for (int k = 0; k < UPDATES; k++) {
+                    long[] previous = bank.atomically(new int[]{1, 0}, amounts -> new long[]{amounts[0] + 1,
+                            amounts[1] - 1});
+                    if (previous[0] + previous[1] == MEAN)
+                        moved.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(THREADS * UPDATES, moved.get());
+        assertEquals(MEAN - THREADS * UPDATES, bank.getAmount(0));
+        assertEquals(THREADS * UPDATES, bank.getAmount(1));
+    }
+
+    /**
+     * An exception of the function is rethrown to the caller and changes nothing, also with concurrent helpers.
+     */
+    public void testFailureWithHelpers() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N, ContentionManager.HELP_IMMEDIATELY);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (!done.get())
+                    bank.getAmount(rnd.nextInt(N));
+            });
+            threads[t].start();
+        }
+        int failures = 0;
+        try {
+            for (int k = 0; k < UPDATES; k++) {
+                try {
+                    bank.atomically(new int[]{0, 1}, amounts -> {
+                        throw new ArithmeticException();
+                    });
+                } catch (ArithmeticException e) {
+                    failures++;
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads)
+                thread.join();
+        }
+        assertEquals(UPDATES, failures);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+        assertEquals(MEAN, bank.getAmount(0));
+    }
+}
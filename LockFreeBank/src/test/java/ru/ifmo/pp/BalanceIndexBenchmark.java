@@ -0,0 +1,59 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares transfers with and without {@link BalanceIndex}, and measures queries of the richest accounts.
+ * Amounts follow Zipf's law, like wealth, so the buckets of the richest accounts are small.
+ *
+ * <p>It measures only throughput, so it is not a part of the tests and is run by its main method.
+ *
+ * @author <Хорин>
+ */
+public class BalanceIndexBenchmark {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int K = 100;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final int QUERIES = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        long total = 0;
+        for (int i = 0; i < N; i++)
+            total += bank.deposit(i, MEAN * N / (i + 1));
+        long plainTime = run(bank);
+        long indexedTime;
+        long queryTime;
+        long reloads;
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            indexedTime = run(bank);
+            final int[] indices = new int[K];
+            final long[] amounts = new long[K];
+            queryTime = Benchmarks.time(1, () -> {
+                for (int i = 0; i < QUERIES; i++)
+                    index.getTop(indices, amounts);
+            }) / QUERIES;
+            reloads = index.getReloads();
+        }
+        Benchmarks.check(bank.getTotalAmount() == total, "Total amount " + bank.getTotalAmount());
+        System.out.printf(Locale.US, "Nanoseconds per transfer: without index %d, with index %d; " +
+                        "nanoseconds per top %d query: %d; reloads after overruns: %d%n",
+                plainTime / (THREADS * OPS_PER_THREAD), indexedTime / (THREADS * OPS_PER_THREAD), K, queryTime,
+                reloads);
+    }
+
+    private static long run(final BankImpl bank) throws InterruptedException {
+        return Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = rnd.nextInt(N);
+                if (from != to)
+                    bank.transfer(from, to, 1);
+            }
+        });
+    }
+}
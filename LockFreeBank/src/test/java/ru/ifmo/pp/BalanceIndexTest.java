@@ -0,0 +1,198 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests {@link BalanceIndex}.
+ *
+ * @author <Хорин>
+ */
+public class BalanceIndexTest extends TestCase {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int K = 100;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final long TIMEOUT = 10_000_000_000L;
+
+    public void testTopAndHistogram() throws InterruptedException {
+        BankImpl bank = new BankImpl(10);
+        bank.deposit(1, 100);
+        bank.deposit(2, 5);
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            bank.deposit(3, 1L << 40);
+            bank.transfer(1, 4, 30);
+            bank.withdraw(2, 5);
+            bank.deposit(bank.openAccount(), 1);
+            bank.deposit(5, 17);
+            bank.applyToAll(amount -> amount == 0 ? 0 : amount + 1);
+            awaitIndex(bank, index, 4);
+            int[] indices = new int[4];
+            long[] amounts = new long[4];
+            assertEquals(4, index.getTop(indices, amounts));
+            assertTrue(Arrays.equals(new int[]{3, 1, 4, 5}, indices));
+            assertTrue(Arrays.equals(new long[]{(1L << 40) + 1, 71, 31, 18}, amounts));
+            long[] histogram = index.getHistogram();
+            assertEquals(BalanceIndex.HISTOGRAM_BUCKETS, histogram.length);
+            assertEquals(6, histogram[0]);
+            assertEquals(1, histogram[2]); // 2
+            assertEquals(2, histogram[5]); // 18 and 31
+            assertEquals(1, histogram[7]); // 71
+            assertEquals(1, histogram[41]);
+            assertEquals(11, Arrays.stream(histogram).sum());
+            assertEquals(5, index.getTop(new int[K], new long[K]));
+        }
+    }
+
+    /**
+     * All accounts are in one bucket of the index, and the richest of them are taken from its heap in order,
+     * also after they are updated inside the bucket.
+     */
+    public void testLargeBucket() throws InterruptedException {
+        BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, (1L << 30) + i);
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            for (int i = 0; i < N; i += 2)
+                bank.deposit(i, N);
+            awaitIndex(bank, index, K);
+            int[] indices = new int[K];
+            long[] amounts = new long[K];
+            assertEquals(K, index.getTop(indices, amounts));
+            for (int i = 0; i < K; i++) {
+                int expected = N - 2 - 2 * i; // the richest accounts are the last even ones
+                assertEquals(expected, indices[i]);
+                assertEquals((1L << 30) + expected + N, amounts[i]);
+            }
+            assertEquals(N / 2, index.getUpdates());
+            assertEquals(0, index.getReloads());
+        }
+    }
+
+    /**
+     * Threads update accounts concurrently, and then the index must catch up with amounts of the bank.
+     */
+    public void testConcurrentUpdates() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            Thread[] threads = startUpdates(bank);
+            for (Thread thread : threads)
+                thread.join();
+            awaitIndex(bank, index, K);
+            assertHistogram(bank, index);
+        }
+    }
+
+    /**
+     * The index is created while threads update accounts, and it must not miss the updates that are in progress.
+     */
+    public void testIndexDuringUpdates() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = startUpdates(bank);
+        Thread.sleep(50);
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            for (Thread thread : threads)
+                thread.join();
+            awaitIndex(bank, index, K);
+            assertHistogram(bank, index);
+        }
+    }
+
+    /**
+     * A query that holds the index does not stop updates of the bank, and the index reads amounts again
+     * after it has lost updates.
+     */
+    public void testUpdatesDuringQuery() throws InterruptedException {
+        BankImpl bank = new BankImpl(N);
+        try (BalanceIndex index = new BalanceIndex(bank)) {
+            synchronized (index) {
+                for (int i = 0; i < 1_000_000; i++)
+                    bank.deposit(i % N, 1);
+            }
+            awaitIndex(bank, index, K);
+            assertHistogram(bank, index);
+        }
+    }
+
+    /**
+     * Starts threads that update random accounts.
+     */
+    private static Thread[] startUpdates(final BankImpl bank) {
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        long amount = rnd.nextInt(1000) + 1;
+                        try {
+                            switch (rnd.nextInt(4)) {
+                                case 0:
+                                    bank.deposit(from, amount * (rnd.nextInt(1000) + 1));
+                                    break;
+                                case 1:
+                                    bank.withdraw(from, amount);
+                                    break;
+                                case 2:
+                                    if (from != to)
+                                        bank.transferAll(new int[]{from}, new int[]{to}, new long[]{amount});
+                                    break;
+                                default:
+                                    if (from != to)
+                                        bank.transfer(from, to, amount);
+                            }
+                        } catch (IllegalStateException e) {
+                            // not enough money
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        return threads;
+    }
+
+    private static void assertHistogram(BankImpl bank, BalanceIndex index) {
+        long[] expected = new long[BalanceIndex.HISTOGRAM_BUCKETS];
+        for (int i = 0; i < bank.getNumberOfAccounts(); i++)
+            expected[64 - Long.numberOfLeadingZeros(bank.getAmount(i))]++;
+        assertTrue(Arrays.equals(expected, index.getHistogram()));
+    }
+
+    /**
+     * Waits until the richest accounts of the index are the same as the richest accounts of the bank.
+     */
+    private static void awaitIndex(BankImpl bank, BalanceIndex index, int k) throws InterruptedException {
+        int n = bank.getNumberOfAccounts();
+        long[] expected = new long[n];
+        for (int i = 0; i < n; i++)
+            expected[i] = bank.getAmount(i);
+        Arrays.sort(expected);
+        expected = Arrays.copyOfRange(expected, n - k, n);
+        int[] indices = new int[k];
+        long[] amounts = new long[k];
+        long start = System.nanoTime();
+        while (true) {
+            index.getTop(indices, amounts);
+            long[] actual = amounts.clone();
+            Arrays.sort(actual);
+            if (Arrays.equals(expected, actual)) {
+                for (int i = 0; i < k; i++)
+                    assertEquals(amounts[i], bank.getAmount(indices[i]));
+                return;
+            }
+            assertTrue("Index has not caught up", System.nanoTime() - start < TIMEOUT);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests recovery of {@link BankImpl} from checkpoints and the journal.
+ *
+ * @author <Хорин>
+ */
+public class CheckpointTest extends TestCase {
+    private static final int N = 10 * Checkpoint.CHUNK_SIZE + 1;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 100_000;
+
+    private Path journalFile;
+    private Path checkpointFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        journalFile = Files.createTempFile("journal", ".bin");
+        checkpointFile = Files.createTempFile("checkpoint", ".bin");
+        Files.delete(journalFile);
+        Files.delete(checkpointFile);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(journalFile);
+        Files.deleteIfExists(checkpointFile);
+    }
+
+    public void testCheckpointRequiresJournal() throws IOException {
+        try (Checkpoint checkpoint = new Checkpoint(checkpointFile)) {
+            new BankImpl(N, new ContentionManager(), 1, false, null, checkpoint);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new BankImpl(N).checkpoint();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testRecovery() throws IOException {
+        Journal journal = new Journal(journalFile, false);
+        Checkpoint checkpoint = new Checkpoint(checkpointFile);
+        BankImpl bank = new BankImpl(N, journal, checkpoint);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        bank.checkpoint();
+        bank.transfer(0, N - 1, 10);
+        bank.withdraw(Checkpoint.CHUNK_SIZE, 20);
+        bank.openAccount();
+        bank.deposit(N, 30);
+        journal.close();
+        checkpoint.close();
+
+        journal = new Journal(journalFile, false);
+        checkpoint = new Checkpoint(checkpointFile);
+        BankImpl restored = new BankImpl(N, journal, checkpoint);
+        assertSameAccounts(bank, restored);
+        restored.checkpoint();
+        journal.close();
+        checkpoint.close();
+
+        journal = new Journal(journalFile, false);
+        checkpoint = new Checkpoint(checkpointFile);
+        assertSameAccounts(bank, new BankImpl(N, journal, checkpoint));
+        journal.close();
+        checkpoint.close();
+    }
+
+    public void testOnlyDirtyChunksAreWritten() throws IOException {
+        Journal journal = new Journal(journalFile, false);
+        Checkpoint checkpoint = new Checkpoint(checkpointFile);
+        BankImpl bank = new BankImpl(N, journal, checkpoint);
+        bank.checkpoint();
+        int chunks = Checkpoint.chunks(N);
+        assertEquals(chunks, checkpoint.writtenChunks);
+        bank.deposit(1, MEAN);
+        bank.transfer(1, 3 * Checkpoint.CHUNK_SIZE, 10);
+        bank.checkpoint();
+        assertEquals(chunks + 2, checkpoint.writtenChunks);
+        bank.checkpoint();
+        assertEquals(chunks + 2, checkpoint.writtenChunks);
+        journal.close();
+        checkpoint.close();
+    }
+
+    /**
+     * Checkpoints are written while other threads update accounts, then the process crashes.
+     */
+    public void testConcurrentCheckpoints() throws IOException, InterruptedException {
+        Journal journal = new Journal(journalFile, false);
+        Checkpoint checkpoint = new Checkpoint(checkpointFile);
+        final BankImpl bank = new BankImpl(N, journal, checkpoint);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        // most updates go to the first chunk, so it is read while they run
+                        int from = rnd.nextInt(rnd.nextBoolean() ? 4 : N);
+                        int to = rnd.nextInt(N);
+                        long amount = rnd.nextInt(1000) + 1;
+                        switch (rnd.nextInt(3)) {
+                            case 0:
+                                bank.deposit(from, amount);
+                                break;
+                            case 1:
+                                bank.withdraw(from, amount);
+                                break;
+                            default:
+                                if (from != to)
+                                    bank.transfer(from, to, amount);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            while (thread.isAlive())
+                bank.checkpoint();
+        }
+        journal.sync();
+        // neither the journal nor the checkpoint is closed, as if the process has crashed
+        Journal recoveredJournal = new Journal(journalFile, false);
+        Checkpoint recoveredCheckpoint = new Checkpoint(checkpointFile);
+        assertSameAccounts(bank, new BankImpl(N, recoveredJournal, recoveredCheckpoint));
+        recoveredJournal.close();
+        recoveredCheckpoint.close();
+    }
+
+    private static void assertSameAccounts(Bank expected, Bank actual) {
+        assertEquals(expected.getNumberOfAccounts(), actual.getNumberOfAccounts());
+        for (int i = 0; i < expected.getNumberOfAccounts(); i++)
+            assertEquals(expected.getAmount(i), actual.getAmount(i));
+        assertEquals(expected.getTotalAmount(), actual.getTotalAmount());
+    }
+}
@@ -0,0 +1,99 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests bank with hot accounts under different contention managers.
+ *
+ * @author <Хорин>
+ */
+public class ContentionManagerTest extends TestCase {
+    private static final int N = 100;
+    private static final int HOT = 2; // most transfers go to these accounts
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 50_000;
+
+    public void testInvalidSettings() {
+        try {
+            new ContentionManager(-1, 1, 1, 0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new ContentionManager(1, 10, 5, 0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The number of spins is bounded by maxSpins after any number of waits.
+     */
+    public void testManyWaits() {
+        ContentionManager contentionManager = new ContentionManager(40, 2, 1 << 20, 0);
+        LongSlots words = LongSlots.onHeap(1);
+        words.lazySet(0, -1);
+        for (int waits = 0; waits < 40; waits++)
+            assertTrue(contentionManager.await(words, 0, -1, waits));
+        assertFalse(contentionManager.await(words, 0, -1, 40));
+        assertEquals(40, contentionManager.getWaits());
+        assertEquals(0, contentionManager.getReleases());
+        assertEquals(1, contentionManager.getHelps());
+    }
+
+    public void testManyPauses() {
+        ContentionManager contentionManager = new ContentionManager(0, 2, 1 << 10, 0);
+        for (int waits = 0; waits < 100; waits++)
+            contentionManager.pause(waits);
+        assertEquals(0, contentionManager.getWaits());
+    }
+
+    public void testHelpImmediately() throws InterruptedException {
+        ContentionManager contentionManager = new ContentionManager(0, 1, 1, 0);
+        runHotTransfers(contentionManager);
+        assertEquals(0, contentionManager.getWaits());
+        assertTrue(contentionManager.getHelps() >= contentionManager.getConflicts());
+    }
+
+    public void testBackoff() throws InterruptedException {
+        ContentionManager contentionManager = new ContentionManager();
+        runHotTransfers(contentionManager);
+        assertTrue(contentionManager.toString(),
+                contentionManager.getWaits() + contentionManager.getHelps() >= contentionManager.getConflicts());
+        assertTrue(contentionManager.toString(), contentionManager.getReleases() <= contentionManager.getWaits());
+    }
+
+    private void runHotTransfers(ContentionManager contentionManager) throws InterruptedException {
+        final Bank bank = new BankImpl(N, contentionManager);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(HOT);
+                        if (from != to)
+                            bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(N * MEAN, bank.getTotalAmount());
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(N * MEAN, sum);
+    }
+}
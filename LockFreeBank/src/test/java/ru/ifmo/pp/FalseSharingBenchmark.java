@@ -0,0 +1,71 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares throughput of compact and padded banks when each thread updates its own account
+ * and accounts of threads are neighbours.
+ *
+ * <p>The difference shows only when there are at least as many cores as threads, so it is not
+ * a part of the tests and is run by its main method. {@link FalseSharingTest} checks the layout itself.
+ *
+ * @author <Хорин>
+ */
+public class FalseSharingBenchmark {
+    private static final int THREADS = 4;
+    private static final long MEAN = 1_000_000_000;
+    private static final int TOTAL_PHASES = 6;
+    private static final int INIT_PHASES = 3;
+    private static final long PHASE_DURATION_MILLIS = 300;
+
+    public static void main(String[] args) throws InterruptedException {
+        long compact = run("compact", new BankImpl(THREADS, new ContentionManager(), 1));
+        long padded = run("padded", new BankImpl(THREADS, new ContentionManager(), BankImpl.PADDED));
+        System.out.printf(Locale.US, "Padded/compact throughput: %.2f%n", (double) padded / compact);
+    }
+
+    private static long run(String name, final Bank bank) throws InterruptedException {
+        for (int i = 0; i < THREADS; i++)
+            bank.deposit(i, MEAN);
+        final Phaser phaser = new Phaser(1 + THREADS);
+        final AtomicLong totalOps = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int phase = 1; phase <= TOTAL_PHASES; phase++) {
+                        phaser.arriveAndAwaitAdvance();
+                        long ops = 0;
+                        long tillTimeMillis = System.currentTimeMillis() + PHASE_DURATION_MILLIS;
+                        do {
+                            bank.deposit(index, 1);
+                            bank.withdraw(index, 1);
+                            ops += 2;
+                        } while (System.currentTimeMillis() < tillTimeMillis);
+                        totalOps.addAndGet(ops);
+                        phaser.arriveAndAwaitAdvance();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        Stats stats = new Stats();
+        for (int phase = 1; phase <= TOTAL_PHASES; phase++) {
+            totalOps.set(0);
+            phaser.arriveAndAwaitAdvance();
+            phaser.arriveAndAwaitAdvance();
+            if (phase > INIT_PHASES)
+                stats.add(totalOps.get());
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (bank.getTotalAmount() != THREADS * MEAN)
+            throw new AssertionError("Total amount " + bank.getTotalAmount() + " of " + name + " bank");
+        System.out.println("Average ops per phase (" + name + "): " + stats);
+        return (long) stats.mean();
+    }
+}
@@ -0,0 +1,46 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the layout of accounts of compact and padded banks.
+ * Their throughput is compared by {@link FalseSharingBenchmark}.
+ *
+ * @author <Хорин>
+ */
+public class FalseSharingTest extends TestCase {
+    private static final int N = 4;
+    private static final int CACHE_LINE_BYTES = 64;
+
+    public void testInvalidStride() {
+        try {
+            new BankImpl(N, new ContentionManager(), 3);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCompactAccountsAreAdjacent() {
+        BankImpl bank = new BankImpl(N, new ContentionManager(), 1);
+        for (int i = 0; i < N; i++)
+            assertEquals(i, bank.slot(i));
+    }
+
+    /**
+     * Neighbouring accounts of a padded bank are two cache lines apart, so adjacent-line prefetch does not
+     * put them into one line either, and so are the accounts that are opened after the bank grows.
+     */
+    public void testPaddedAccountsAreInSeparateLines() {
+        BankImpl bank = new BankImpl(N, new ContentionManager(), BankImpl.PADDED);
+        assertTrue(BankImpl.PADDED * Long.BYTES >= 2 * CACHE_LINE_BYTES);
+        for (int i = 0; i < 3 * N; i++)
+            bank.openAccount();
+        for (int i = 0; i < 4 * N; i++) {
+            assertEquals(i * BankImpl.PADDED, bank.slot(i));
+            bank.deposit(i, i + 1);
+        }
+        for (int i = 0; i < 4 * N; i++)
+            assertEquals(i + 1, bank.getAmount(i));
+    }
+}
@@ -4,6 +4,9 @@ import junit.framework.TestCase;
 import ru.ifmo.pp.Bank;
 import ru.ifmo.pp.BankImpl;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
 /**
  * Functional single-threaded test-suite for bank implementation.
  *
@@ -54,6 +57,48 @@ public class FunctionalTest extends TestCase {
         assertEquals(deposit1 + deposit2, bank.getTotalAmount());
     }
 
+    public void testRangeAmount() {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, i + 1);
+        assertEquals(0, bank.getAmount(3, 3));
+        assertEquals(4, bank.getAmount(3, 4));
+        assertEquals(4 + 5 + 6, bank.getAmount(3, 6));
+        assertEquals(bank.getTotalAmount(), bank.getAmount(0, N));
+        try {
+            bank.getAmount(4, 3);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.getAmount(0, N + 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testGetAmounts() {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, i + 1);
+        long[] out = new long[4];
+        bank.getAmounts(new int[]{7, 2, 7, 0}, out);
+        assertTrue(Arrays.equals(new long[]{8, 3, 8, 1}, out));
+        bank.getAmounts(new int[0], new long[0]);
+        try {
+            bank.getAmounts(new int[]{1, 2}, out);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.getAmounts(new int[]{1, 2, 3, N}, out);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     public void testTransfer() {
         int depositAmount = 9876;
         long depositResult = bank.deposit(1, depositAmount);
@@ -66,4 +111,139 @@ public class FunctionalTest extends TestCase {
         assertEquals(transferAmount, bank.getAmount(2));
         assertEquals(depositAmount, bank.getTotalAmount());
     }
+
+    public void testAsync() throws Exception {
+        assertEquals(1000, (long) bank.depositAsync(1, 1000).get());
+        assertEquals(600, (long) bank.withdrawAsync(1, 400).get());
+        bank.transferAsync(1, 2, 100).get();
+        assertEquals(500, bank.getAmount(1));
+        assertEquals(100, bank.getAmount(2));
+        try {
+            bank.withdrawAsync(2, 101).get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            bank.transferAsync(2, 1, 101).get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            bank.depositAsync(N, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(600, bank.getTotalAmount());
+    }
+
+    public void testTransferAll() {
+        bank.deposit(1, 1000);
+        bank.transferAll(new int[]{1, 2, 2}, new int[]{2, 3, 1}, new long[]{600, 500, 100});
+        assertEquals(500, bank.getAmount(1));
+        assertEquals(0, bank.getAmount(2));
+        assertEquals(500, bank.getAmount(3));
+        assertEquals(1000, bank.getTotalAmount());
+    }
+
+    public void testTransferAllIsAtomic() {
+        bank.deposit(1, 1000);
+        try {
+            bank.transferAll(new int[]{1, 2}, new int[]{2, 3}, new long[]{600, 700});
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getAmount(1));
+        assertEquals(0, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(1000, bank.getTotalAmount());
+    }
+
+    public void testAtomically() {
+        bank.deposit(3, 1000);
+        long[] previous = bank.atomically(new int[]{3, 1, 2}, amounts -> {
+            long fee = amounts[0] / 10;
+            return new long[]{amounts[0] - fee, amounts[1] + fee / 2, amounts[2] + fee / 2 + 1};
+        });
+        assertTrue(Arrays.equals(new long[]{1000, 0, 0}, previous));
+        assertEquals(900, bank.getAmount(3));
+        assertEquals(50, bank.getAmount(1));
+        assertEquals(51, bank.getAmount(2));
+        assertEquals(1001, bank.getTotalAmount());
+    }
+
+    public void testAtomicallyFailure() {
+        bank.deposit(1, 1000);
+        try {
+            bank.atomically(new int[]{1, 2}, amounts -> new long[]{amounts[0] - 2000, amounts[1] + 2000});
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getAmount(1));
+        assertEquals(0, bank.getAmount(2));
+        assertEquals(1000, bank.getTotalAmount());
+    }
+
+    public void testOpenAccount() {
+        bank.deposit(1, 1000);
+        for (int i = 0; i < 3 * N; i++) {
+            assertEquals(N + i, bank.openAccount());
+            assertEquals(N + i + 1, bank.getNumberOfAccounts());
+            assertEquals(0, bank.getAmount(N + i));
+        }
+        bank.transfer(1, 3 * N, 400);
+        assertEquals(600, bank.getAmount(1));
+        assertEquals(400, bank.getAmount(3 * N));
+        assertEquals(1000, bank.getTotalAmount());
+        try {
+            bank.deposit(4 * N, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            bank.transfer(1, 4 * N, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testApplyToAll() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 50);
+        bank.applyToAll(amount -> amount + amount / 100);
+        assertEquals(1010, bank.getAmount(1));
+        assertEquals(50, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(1060, bank.getTotalAmount());
+    }
+
+    public void testApplyToAllFailure() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 50);
+        try {
+            bank.applyToAll(amount -> amount - 100);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.applyToAll(amount -> {
+                if (amount == 50)
+                    throw new ArithmeticException();
+                return amount + 1;
+            });
+            fail("ArithmeticException expected");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getAmount(1));
+        assertEquals(50, bank.getAmount(2));
+        assertEquals(1050, bank.getTotalAmount());
+    }
 }
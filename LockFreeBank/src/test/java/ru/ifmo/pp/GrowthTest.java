@@ -0,0 +1,68 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests opening of accounts concurrently with other operations.
+ *
+ * @author <Хорин>
+ */
+public class GrowthTest extends TestCase {
+    private static final int N = 4;
+    private static final long MEAN = 1_000_000_000;
+    private static final int OPENERS = 2;
+    private static final int ACCOUNTS_PER_OPENER = 5_000;
+    private static final int WORKERS = 2;
+    private static final int OPS_PER_WORKER = 100_000;
+
+    public void testOpenAccountConcurrently() throws InterruptedException {
+        final Bank bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final boolean[] opened = new boolean[N + OPENERS * ACCOUNTS_PER_OPENER];
+        Thread[] threads = new Thread[OPENERS + WORKERS];
+        for (int t = 0; t < OPENERS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ACCOUNTS_PER_OPENER; i++) {
+                        int index = bank.openAccount();
+                        assertTrue(index < bank.getNumberOfAccounts());
+                        opened[index] = true;
+                    }
+                }
+            };
+        }
+        for (int t = OPENERS; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS_PER_WORKER; i++) {
+                        int n = bank.getNumberOfAccounts();
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(n);
+                        if (from != to)
+                            bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                        if (i % 100 == 0)
+                            assertEquals(N * MEAN, bank.getTotalAmount());
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(opened.length, bank.getNumberOfAccounts());
+        long sum = 0;
+        for (int i = 0; i < opened.length; i++) {
+            assertTrue(i < N || opened[i]);
+            sum += bank.getAmount(i);
+        }
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+}
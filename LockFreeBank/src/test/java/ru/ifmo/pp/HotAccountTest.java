@@ -0,0 +1,110 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests combining of deposits to hot accounts.
+ *
+ * @author <Хорин>
+ */
+public class HotAccountTest extends TestCase {
+    private static final int N = 3;
+    private static final int HOT = 1;
+    private static final int THREADS = 4;
+    private static final int DEPOSITS_PER_THREAD = 20_000;
+
+    /**
+     * Deposits of 1 to the same account must return all intermediate amounts exactly once.
+     */
+    public void testCombinedDepositsAreExact() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        bank.makeHot(HOT);
+        final long[][] results = new long[THREADS][DEPOSITS_PER_THREAD];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long[] threadResults = results[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < DEPOSITS_PER_THREAD; i++)
+                        threadResults[i] = bank.deposit(HOT, 1);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        int total = THREADS * DEPOSITS_PER_THREAD;
+        boolean[] seen = new boolean[total + 1];
+        for (long[] threadResults : results) {
+            long last = 0;
+            for (long result : threadResults) {
+                assertTrue(result > last && result <= total);
+                assertFalse(seen[(int) result]);
+                seen[(int) result] = true;
+                last = result;
+            }
+        }
+        assertEquals(total, bank.getAmount(HOT));
+        assertEquals(total, bank.getTotalAmount());
+    }
+
+    public void testCombinedDepositOverflow() {
+        BankImpl bank = new BankImpl(N);
+        bank.makeHot(HOT);
+        assertEquals(Bank.MAX_AMOUNT - 1, bank.deposit(HOT, Bank.MAX_AMOUNT - 1));
+        try {
+            bank.deposit(HOT, 2);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Bank.MAX_AMOUNT, bank.deposit(HOT, 1));
+        assertEquals(Bank.MAX_AMOUNT, bank.getAmount(HOT));
+        assertEquals(Bank.MAX_AMOUNT, bank.getTotalAmount());
+    }
+
+    public void testHotAccountCoolsDown() {
+        BankImpl bank = new BankImpl(N);
+        bank.makeHot(HOT);
+        assertTrue(bank.isHot(HOT));
+        for (int i = 0; i < 1000; i++)
+            bank.deposit(HOT, 1);
+        assertFalse(bank.isHot(HOT));
+        assertEquals(1000, bank.getAmount(HOT));
+        assertEquals(1000, bank.getTotalAmount());
+    }
+
+    public void testHotAccountWithTransfers() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        bank.makeHot(HOT);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final boolean depositor = t % 2 == 0;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < DEPOSITS_PER_THREAD; i++) {
+                        if (depositor)
+                            bank.deposit(HOT, 2);
+                        else {
+                            try {
+                                bank.transfer(HOT, 0, 1);
+                                bank.withdraw(0, 1);
+                            } catch (IllegalStateException e) {
+                                // not enough money yet
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(sum, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,56 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares plain transfers with transfers with request IDs and with their retries.
+ *
+ * <p>It measures only throughput, so it is not a part of the tests and is run by its main method.
+ *
+ * @author <Хорин>
+ */
+public class IdempotentTransferBenchmark {
+    private static final int N = 1000;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicInteger ids = new AtomicInteger();
+        long plainTime = Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = rnd.nextInt(N);
+                if (from != to)
+                    bank.transfer(from, to, 1);
+            }
+        });
+        long idempotentTime = Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = rnd.nextInt(N);
+                if (from != to)
+                    bank.transfer(ids.getAndIncrement(), from, to, 1);
+            }
+        });
+        long retryTime = Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = (from + 1) % N;
+                bank.transfer(-1 - from, from, to, 1);
+            }
+        });
+        Benchmarks.check(bank.getTotalAmount() == N * MEAN, "Total amount " + bank.getTotalAmount());
+        System.out.printf(Locale.US, "Nanoseconds per transfer: plain %d, with request ID %d, retried %d%n",
+                plainTime / (THREADS * OPS_PER_THREAD), idempotentTime / (THREADS * OPS_PER_THREAD),
+                retryTime / (THREADS * OPS_PER_THREAD));
+    }
+}
@@ -0,0 +1,106 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link BankImpl#transfer(long, int, int, long)} with request IDs.
+ *
+ * @author <Хорин>
+ */
+public class IdempotentTransferTest extends TestCase {
+    private static final int N = 1000;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int REQUESTS = 50_000;
+
+    public void testRetry() {
+        BankImpl bank = new BankImpl(3);
+        bank.deposit(0, 100);
+        assertTrue(bank.transfer(1, 0, 1, 30));
+        assertFalse(bank.transfer(1, 0, 1, 30));
+        assertFalse(bank.transfer(1, 0, 1, 30));
+        assertEquals(70, bank.getAmount(0));
+        assertEquals(30, bank.getAmount(1));
+        for (int i = 0; i < 2; i++) {
+            try {
+                bank.transfer(2, 1, 2, 31);
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException e) {
+                assertEquals("Underflow", e.getMessage());
+            }
+        }
+        // the failed transfer is not executed again even when it could succeed now
+        bank.deposit(1, 1);
+        try {
+            bank.transfer(2, 1, 2, 31);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.transfer(1, 0, 2, 30);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(bank.transfer(3, 1, 2, 31));
+        assertEquals(0, bank.getAmount(1));
+        assertEquals(31, bank.getAmount(2));
+        assertEquals(101, bank.getTotalAmount());
+    }
+
+    /**
+     * A transfer is executed again once many newer transfers have evicted it from the cache.
+     */
+    public void testEviction() {
+        BankImpl bank = new BankImpl(2);
+        bank.deposit(0, 1 << 21);
+        assertTrue(bank.transfer(0, 0, 1, 1));
+        for (long id = 1; id <= 1 << 20; id++)
+            bank.transfer(id, 0, 1, 1);
+        assertTrue(bank.transfer(0, 0, 1, 1));
+        assertEquals((1 << 20) - 2, bank.getAmount(0));
+    }
+
+    /**
+     * Threads execute the same requests concurrently, each request must be executed exactly once.
+     */
+    public void testConcurrentRetries() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final long[] expected = new long[N];
+        final int[] from = new int[REQUESTS];
+        final int[] to = new int[REQUESTS];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int r = 0; r < REQUESTS; r++) {
+            from[r] = rnd.nextInt(N);
+            to[r] = (from[r] + 1 + rnd.nextInt(N - 1)) % N;
+            expected[from[r]] -= r % 100 + 1;
+            expected[to[r]] += r % 100 + 1;
+        }
+        final AtomicInteger executed = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < REQUESTS; r++) {
+                        if (bank.transfer(r, from[r], to[r], r % 100 + 1))
+                            executed.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(REQUESTS, executed.get());
+        for (int i = 0; i < N; i++)
+            assertEquals(MEAN + expected[i], bank.getAmount(i));
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+}
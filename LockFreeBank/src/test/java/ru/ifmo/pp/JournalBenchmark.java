@@ -0,0 +1,79 @@
+package ru.ifmo.pp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the cost of an update of a bank in memory, with an asynchronous journal and with a synchronous one.
+ *
+ * <p>The cost of a synchronous commit depends on the disk, so it is not a part of the tests and is run
+ * by its main method. {@link JournalTest} checks recovery itself.
+ *
+ * @author <Хорин>
+ */
+public class JournalBenchmark {
+    private static final int N = 10;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 50_000;
+    private static final int SYNCHRONOUS_OPS_PER_THREAD = 2_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long memory = run(new BankImpl(N), OPS_PER_THREAD);
+        Path file = Files.createTempFile("journal", ".bin");
+        Files.delete(file); // the journal creates the file
+        try {
+            Journal journal = new Journal(file, false);
+            long asynchronous = run(new BankImpl(N, journal), OPS_PER_THREAD);
+            journal.close();
+            Files.delete(file);
+            journal = new Journal(file, true);
+            long synchronous = run(new BankImpl(N, journal), SYNCHRONOUS_OPS_PER_THREAD);
+            journal.close();
+            System.out.printf(Locale.US, "Nanoseconds per update: memory %d, asynchronous journal %d, synchronous %d%n",
+                    memory / (THREADS * OPS_PER_THREAD), asynchronous / (THREADS * OPS_PER_THREAD),
+                    synchronous / (THREADS * SYNCHRONOUS_OPS_PER_THREAD));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Returns random deposits, withdrawals and transfers between the first n accounts.
+     */
+    static Runnable updates(final Bank bank, final int n, final int ops) {
+        return () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < ops; i++) {
+                int from = rnd.nextInt(n);
+                int to = rnd.nextInt(n);
+                long amount = rnd.nextInt(1000) + 1;
+                try {
+                    switch (rnd.nextInt(3)) {
+                        case 0:
+                            bank.deposit(from, amount);
+                            break;
+                        case 1:
+                            bank.withdraw(from, amount);
+                            break;
+                        default:
+                            if (from != to)
+                                bank.transfer(from, to, amount);
+                    }
+                } catch (IllegalStateException e) {
+                    // not enough money
+                }
+            }
+        };
+    }
+
+    private static long run(BankImpl bank, int opsPerThread) throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        bank.makeHot(0);
+        return Benchmarks.time(THREADS, updates(bank, N, opsPerThread));
+    }
+}
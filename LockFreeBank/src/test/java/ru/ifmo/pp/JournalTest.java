@@ -0,0 +1,179 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests recovery of {@link BankImpl} from its journal.
+ *
+ * @author <Хорин>
+ */
+public class JournalTest extends TestCase {
+    private static final int N = 10;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 50_000;
+    private static final int SYNCHRONOUS_OPS_PER_THREAD = 2_000;
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = Files.createTempFile("journal", ".bin");
+        Files.delete(file); // the journal creates the file
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public void testReplayAfterClose() throws IOException {
+        Journal journal = new Journal(file, true);
+        BankImpl bank = new BankImpl(N, journal);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        bank.withdraw(1, 10);
+        bank.transfer(2, 3, 20);
+        bank.transferAll(new int[]{4, 5}, new int[]{5, 6}, new long[]{30, 40});
+        bank.atomically(new int[]{7, 8}, a -> new long[]{a[0] - 50, a[1] + 60});
+        int opened = bank.openAccount();
+        bank.deposit(opened, 70);
+        bank.depositAsync(9, 80).join();
+        bank.applyToAll(amount -> amount + amount / 1000);
+        try {
+            bank.transfer(0, 1, 2 * MEAN);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        journal.close();
+
+        journal = new Journal(file, true);
+        BankImpl restored = new BankImpl(N, journal);
+        assertSameAccounts(bank, restored);
+        restored.deposit(0, 1);
+        journal.close();
+        journal = new Journal(file, false);
+        restored = new BankImpl(N, journal);
+        assertEquals(MEAN + MEAN / 1000 + 1, restored.getAmount(0));
+        journal.close();
+    }
+
+    public void testUncommittedUpdatesAreLost() throws IOException {
+        Journal journal = new Journal(file, false);
+        BankImpl bank = new BankImpl(N, journal);
+        bank.deposit(0, MEAN);
+        bank.transfer(0, 1, 10);
+        journal.sync();
+        bank.deposit(2, MEAN);
+        bank.transfer(0, 1, 10);
+        // the journal is not closed, as if the process has crashed
+        Journal recovered = new Journal(file, false);
+        BankImpl restored = new BankImpl(N, recovered);
+        assertEquals(MEAN - 10, restored.getAmount(0));
+        assertEquals(10, restored.getAmount(1));
+        assertEquals(0, restored.getAmount(2));
+        assertEquals(MEAN, restored.getTotalAmount());
+        recovered.close();
+    }
+
+    public void testJournalOfOneBank() throws IOException {
+        Journal journal = new Journal(file, false);
+        new BankImpl(N, journal);
+        try {
+            new BankImpl(N, journal);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        journal.close();
+    }
+
+    /**
+     * Records of the next epoch may be reserved while an epoch is closed, in a segment before the end of the commit.
+     * They are written after that commit has forced the segment, so the next commit must force it again.
+     */
+    public void testEpochCloseAcrossSegments() throws IOException {
+        final int shift = 12;
+        final int perSegment = (1 << shift) / 32;
+        final List<Integer> forced = new ArrayList<>();
+        final Journal journal = new Journal(file, false, shift) {
+            @Override
+            void forceSegment(int index) {
+                forced.add(index);
+                super.forceSegment(index);
+            }
+        };
+        long first = journal.epoch();
+        for (int i = 0; i < perSegment - 1; i++)
+            journal.append(first, Journal.DELTA, 0, 1, 0);
+        journal.attach(closed -> {
+            if (closed == first) {
+                // the last record of the first segment and the first record of the second one
+                journal.append(first + 1, Journal.DELTA, 0, 2, 0);
+                journal.append(first + 1, Journal.DELTA, 0, 3, 0);
+            }
+        }, null);
+        journal.sync();
+        assertEquals(Arrays.asList(0, 1), forced);
+        forced.clear();
+        journal.sync();
+        assertEquals(Arrays.asList(0, 1), forced);
+        journal.close();
+
+        Journal recovered = new Journal(file, false, shift);
+        final long[] sum = new long[1];
+        recovered.replay(0, (epoch, type, a, b, c) -> sum[0] += b);
+        assertEquals(perSegment - 1 + 2 + 3, sum[0]);
+        recovered.close();
+    }
+
+    public void testConcurrentUpdates() throws IOException, InterruptedException {
+        Journal journal = new Journal(file, false);
+        BankImpl bank = new BankImpl(N, journal);
+        update(bank, OPS_PER_THREAD);
+        journal.close();
+        journal = new Journal(file, false);
+        assertSameAccounts(bank, new BankImpl(N, journal));
+        journal.close();
+        Files.delete(file);
+
+        journal = new Journal(file, true);
+        bank = new BankImpl(N, journal);
+        update(bank, SYNCHRONOUS_OPS_PER_THREAD);
+        journal.close();
+        journal = new Journal(file, true);
+        assertSameAccounts(bank, new BankImpl(N, journal));
+        journal.close();
+    }
+
+    /**
+     * Runs random updates in several threads.
+     */
+    private static void update(final BankImpl bank, final int opsPerThread) throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        bank.makeHot(0);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(JournalBenchmark.updates(bank, N, opsPerThread));
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    private static void assertSameAccounts(Bank expected, Bank actual) {
+        assertEquals(expected.getNumberOfAccounts(), actual.getNumberOfAccounts());
+        for (int i = 0; i < expected.getNumberOfAccounts(); i++)
+            assertEquals(expected.getAmount(i), actual.getAmount(i));
+        assertEquals(expected.getTotalAmount(), actual.getTotalAmount());
+    }
+}
@@ -0,0 +1,130 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests bank that keeps accounts off heap.
+ *
+ * @author <Хорин>
+ */
+public class OffHeapTest extends TestCase {
+    private static final int N = 10;
+    private static final int LARGE_N = 1_000_000;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int TRANSFERS_PER_THREAD = 50_000;
+
+    public void testAccountsAreNotOnHeap() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        new BankImpl(N, new ContentionManager(), 1, true); // loads classes, which are on heap whatever the size
+        long allocated = bean.getThreadAllocatedBytes(threadId);
+        Bank bank = new BankImpl(LARGE_N, new ContentionManager(), 1, true);
+        allocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("Heap bytes per off-heap account: " + (double) allocated / LARGE_N, allocated < LARGE_N / 10);
+        bank.deposit(LARGE_N - 1, 100);
+        bank.transfer(LARGE_N - 1, 0, 40);
+        assertEquals(40, bank.getAmount(0));
+        assertEquals(60, bank.getAmount(LARGE_N - 1));
+        assertEquals(100, bank.getTotalAmount());
+    }
+
+    /**
+     * Operations on all accounts keep the amounts that they acquire off heap too.
+     */
+    public void testApplyToAllIsNotOnHeap() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        BankImpl bank = new BankImpl(LARGE_N, new ContentionManager(), 1, true);
+        bank.deposit(0, 100);
+        bank.applyToAll(amount -> amount + 1);
+        long allocated = bean.getThreadAllocatedBytes(threadId);
+        bank.applyToAll(amount -> amount * 2);
+        allocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("Heap bytes per off-heap account of applyToAll: " + (double) allocated / LARGE_N,
+                allocated < LARGE_N / 10);
+        assertEquals(202, bank.getAmount(0));
+        assertEquals(2, bank.getAmount(LARGE_N - 1));
+        assertEquals(202 + 2L * (LARGE_N - 1), bank.getTotalAmount());
+    }
+
+    /**
+     * Operations on all accounts reuse the slots of the previous ones instead of allocating direct memory.
+     */
+    public void testApplyToAllReusesDirectMemory() {
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct"))
+                direct = pool;
+        }
+        assertNotNull(direct);
+        BankImpl bank = new BankImpl(LARGE_N, new ContentionManager(), 1, true);
+        bank.deposit(0, 100);
+        bank.applyToAll(amount -> amount + 1);
+        long used = direct.getMemoryUsed();
+        for (int i = 0; i < 10; i++) {
+            bank.applyToAll(amount -> amount + 1);
+            assertEquals(102 + i, bank.getAmount(0));
+        }
+        assertTrue("Direct bytes allocated: " + (direct.getMemoryUsed() - used), direct.getMemoryUsed() <= used);
+        assertEquals(100 + 11L * LARGE_N, bank.getTotalAmount());
+    }
+
+    /**
+     * The slots of all accounts must fit into int with the stride, as {@link BankImpl#slot(int)} requires.
+     */
+    public void testTooManyAccounts() {
+        try {
+            new BankImpl(Integer.MAX_VALUE / 8, new ContentionManager(), BankImpl.PADDED, true);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testOpenAccount() {
+        Bank bank = new BankImpl(N, new ContentionManager(), 1, true);
+        bank.deposit(1, 1000);
+        for (int i = 0; i < 3 * N; i++)
+            assertEquals(N + i, bank.openAccount());
+        bank.transfer(1, 4 * N - 1, 400);
+        assertEquals(600, bank.getAmount(1));
+        assertEquals(400, bank.getAmount(4 * N - 1));
+        assertEquals(1000, bank.getAmount(0, 4 * N));
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final Bank bank = new BankImpl(N, new ContentionManager(), BankImpl.PADDED, true);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        if (from != to)
+                            bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,101 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests reuse of transfer and acquire descriptors.
+ *
+ * @author <Хорин>
+ */
+public class RecyclingTest extends TestCase {
+    private static final int N = 10;
+    private static final long MEAN = 1_000_000_000;
+    private static final int TRANSFERS = 200_000;
+    private static final int THREADS = 4;
+    private static final int LARGE_N = 1_000_000;
+
+    public void testTransferDoesNotAllocate() {
+        Bank bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        for (int i = 0; i < TRANSFERS; i++) // warm up
+            bank.transfer(i % N, (i + 1) % N, 1);
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < TRANSFERS; i++)
+            bank.transfer(i % N, (i + 1) % N, 1);
+        allocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("Allocated bytes per transfer: " + (double) allocated / TRANSFERS, allocated < TRANSFERS);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Acquire descriptors are reused by an operation on all accounts, even when the thread has retired many of them
+     * while other threads have held the epoch back.
+     */
+    public void testApplyToAllReusesAcquires() throws InterruptedException {
+        final BankImpl bank = new BankImpl(LARGE_N, new ContentionManager(), 1, true); // amounts of applyToAll are not on heap
+        for (int i = 0; i < LARGE_N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < TRANSFERS / THREADS; i++) {
+                    int from = rnd.nextInt(LARGE_N);
+                    int to = rnd.nextInt(LARGE_N);
+                    if (from != to)
+                        bank.transfer(from, to, 1);
+                }
+            });
+            threads[t].start();
+        }
+        for (int i = 0; i < 10; i++)
+            bank.applyToAll(amount -> amount + 1);
+        for (Thread thread : threads)
+            thread.join();
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = bean.getThreadAllocatedBytes(threadId);
+        bank.applyToAll(amount -> amount - 1);
+        allocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("Allocated bytes per account of applyToAll: " + (double) allocated / LARGE_N,
+                allocated < LARGE_N / 10);
+        assertEquals(LARGE_N * (MEAN + 9), bank.getTotalAmount());
+    }
+
+    public void testConcurrentTransfersWithHelping() throws InterruptedException {
+        final Bank bank = new BankImpl(N, ContentionManager.HELP_IMMEDIATELY);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < TRANSFERS / THREADS; i++) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        if (from != to)
+                            bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+}
@@ -2,6 +2,11 @@ package ru.ifmo.pp;
 
 import ru.ifmo.pp.Bank;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+
 /**
  * Bank implementation.
  * This implementation is not thread-safe.
@@ -12,7 +17,7 @@ class SequentialBank implements Bank {
     /**
      * An array of accounts by index.
      */
-    private final Account[] accounts;
+    private Account[] accounts;
 
     /**
      * Creates new bank instance.
@@ -33,6 +38,17 @@ class SequentialBank implements Bank {
         return accounts.length;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int openAccount() {
+        int n = accounts.length;
+        accounts = Arrays.copyOf(accounts, n + 1);
+        accounts[n] = new Account();
+        return n;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -41,6 +57,32 @@ class SequentialBank implements Bank {
         return accounts[index].amount;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void getAmounts(int[] indices, long[] out) {
+        if (indices.length != out.length)
+            throw new IllegalArgumentException("Different lengths");
+        for (int i = 0; i < indices.length; i++)
+            out[i] = accounts[indices[i]].amount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int fromIndex, int toIndex) {
+        if (fromIndex > toIndex)
+            throw new IllegalArgumentException("fromIndex > toIndex");
+        if (fromIndex < 0 || toIndex > accounts.length)
+            throw new IndexOutOfBoundsException("range " + fromIndex + ".." + toIndex);
+        long sum = 0;
+        for (int i = fromIndex; i < toIndex; i++)
+            sum += accounts[i].amount;
+        return sum;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -100,6 +142,123 @@ class SequentialBank implements Bank {
         to.amount += amount;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            future.complete(deposit(index, amount));
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            future.complete(withdraw(index, amount));
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            transfer(fromIndex, toIndex, amount);
+            future.complete(null);
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transferAll(int[] fromIndices, int[] toIndices, long[] amounts) {
+        int n = amounts.length;
+        if (fromIndices.length != n || toIndices.length != n)
+            throw new IllegalArgumentException("Batch arrays have different lengths");
+        for (int i = 0; i < n; i++) {
+            if (amounts[i] <= 0)
+                throw new IllegalArgumentException("Invalid amount: " + amounts[i]);
+            if (fromIndices[i] == toIndices[i])
+                throw new IllegalArgumentException("fromIndex == toIndex");
+        }
+        long[] updated = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++)
+            updated[i] = accounts[i].amount;
+        for (int i = 0; i < n; i++) {
+            long amount = amounts[i];
+            if (amount > updated[fromIndices[i]])
+                throw new IllegalStateException("Underflow");
+            else if (amount > MAX_AMOUNT || updated[toIndices[i]] + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            updated[fromIndices[i]] -= amount;
+            updated[toIndices[i]] += amount;
+        }
+        for (int i = 0; i < accounts.length; i++)
+            accounts[i].amount = updated[i];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] atomically(int[] indices, Function<long[], long[]> update) {
+        long[] amounts = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            for (int j = 0; j < i; j++)
+                if (indices[i] == indices[j])
+                    throw new IllegalArgumentException("Duplicate account index");
+            amounts[i] = accounts[indices[i]].amount;
+        }
+        long[] results = update.apply(amounts.clone());
+        if (results == null || results.length != indices.length)
+            throw new IllegalArgumentException("Function shall return " + indices.length + " amounts");
+        for (long amount : results) {
+            if (amount < 0)
+                throw new IllegalStateException("Underflow");
+            if (amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+        }
+        for (int i = 0; i < indices.length; i++)
+            accounts[indices[i]].amount = results[i];
+        return amounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void applyToAll(LongUnaryOperator update) {
+        long[] results = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            long amount = update.applyAsLong(accounts[i].amount);
+            if (amount < 0)
+                throw new IllegalStateException("Underflow");
+            if (amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            results[i] = amount;
+        }
+        for (int i = 0; i < accounts.length; i++)
+            accounts[i].amount = results[i];
+    }
+
     /**
      * Private account data structure.
      */
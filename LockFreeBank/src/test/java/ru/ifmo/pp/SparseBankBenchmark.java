@@ -0,0 +1,49 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares transfers between sparse IDs of {@link SparseBank} with transfers between dense indices of {@link BankImpl}.
+ *
+ * <p>It measures only throughput, so it is not a part of the tests and is run by its main method.
+ *
+ * @author <Хорин>
+ */
+public class SparseBankBenchmark {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 200_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        final SparseBank sparse = new SparseBank(N);
+        final BankImpl dense = new BankImpl(N);
+        for (int i = 0; i < N; i++) {
+            sparse.openAccount(SparseBankTest.id(i));
+            sparse.deposit(SparseBankTest.id(i), MEAN);
+            dense.deposit(i, MEAN);
+        }
+        long denseTime = Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = rnd.nextInt(N);
+                if (from != to)
+                    dense.transfer(from, to, 1);
+            }
+        });
+        long sparseTime = Benchmarks.time(THREADS, () -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                int from = rnd.nextInt(N);
+                int to = rnd.nextInt(N);
+                if (from != to)
+                    sparse.transfer(SparseBankTest.id(from), SparseBankTest.id(to), 1);
+            }
+        });
+        Benchmarks.check(sparse.getTotalAmount() == N * MEAN, "Total amount " + sparse.getTotalAmount());
+        System.out.printf(Locale.US, "Nanoseconds per transfer: dense %d, sparse %d%n",
+                denseTime / (THREADS * OPS_PER_THREAD), sparseTime / (THREADS * OPS_PER_THREAD));
+    }
+}
@@ -0,0 +1,97 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SparseBank}.
+ *
+ * @author <Хорин>
+ */
+public class SparseBankTest extends TestCase {
+    private static final int N = 100_000;
+    private static final long MEAN = 1000;
+    private static final int THREADS = 4;
+
+    public void testAccounts() {
+        SparseBank bank = new SparseBank();
+        long[] ids = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40, 42};
+        for (long id : ids) {
+            assertFalse(bank.hasAccount(id));
+            assertTrue(bank.openAccount(id));
+            assertFalse(bank.openAccount(id));
+            assertTrue(bank.hasAccount(id));
+        }
+        assertEquals(ids.length, bank.getNumberOfAccounts());
+        assertEquals(1000, bank.deposit(0, 1000));
+        bank.transfer(0, Long.MIN_VALUE, 300);
+        bank.transfer(Long.MIN_VALUE, Long.MAX_VALUE, 100);
+        assertEquals(50, bank.withdraw(Long.MAX_VALUE, 50));
+        assertEquals(700, bank.getAmount(0));
+        assertEquals(200, bank.getAmount(Long.MIN_VALUE));
+        assertEquals(50, bank.getAmount(Long.MAX_VALUE));
+        assertEquals(0, bank.getAmount(42));
+        assertEquals(950, bank.getTotalAmount());
+        try {
+            bank.deposit(43, 1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.transfer(42, 42, 1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Threads open the same sparse IDs concurrently, so that the table migrates many times while they transfer.
+     */
+    public void testConcurrentOpenAndTransfer() throws InterruptedException {
+        final SparseBank bank = new SparseBank();
+        final AtomicInteger opened = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < N; i++) {
+                        if (bank.openAccount(id(i))) {
+                            opened.incrementAndGet();
+                            bank.deposit(id(i), MEAN);
+                        }
+                        if (i > 0) {
+                            int from = rnd.nextInt(i);
+                            int to = rnd.nextInt(i);
+                            try {
+                                if (from != to && bank.hasAccount(id(from)) && bank.hasAccount(id(to)))
+                                    bank.transfer(id(from), id(to), rnd.nextInt(100) + 1);
+                            } catch (IllegalStateException e) {
+                                // not enough money
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(N, opened.get());
+        assertEquals(N, bank.getNumberOfAccounts());
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(id(i));
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    static long id(int i) {
+        return i * 0x5DEECE66DL + 11;
+    }
+}
@@ -0,0 +1,193 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests subscriptions to updates of {@link BankImpl}.
+ *
+ * @author <Хорин>
+ */
+public class SubscriptionTest extends TestCase {
+    private static final int N = 10;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 50_000;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    public void testTransferIsOneOperation() {
+        BankImpl bank = new BankImpl(N);
+        final List<String> updates = new ArrayList<>();
+        Subscription subscription = bank.subscribe((update, sequence, endOfBatch) -> {
+            synchronized (updates) {
+                updates.add(update.getIndex() + ":" + update.getDelta() + ":" + update.getAmount() + ":"
+                        + update.isEndOfOperation());
+            }
+        }, Subscription.Backpressure.BLOCK);
+        bank.deposit(1, 100);
+        bank.transfer(1, 2, 30);
+        try {
+            bank.withdraw(2, 31);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        awaitSize(updates, 3);
+        subscription.close();
+        assertEquals("[1:100:100:true, 1:-30:70:false, 2:30:30:true]", updates.toString());
+    }
+
+    /**
+     * A subscriber applies updates to its own copy of accounts and checks their resulting amounts.
+     */
+    public void testUpdatesOfAccountAreOrdered() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        bank.makeHot(0);
+        final AtomicLongArray copy = new AtomicLongArray(N);
+        final AtomicReference<String> error = new AtomicReference<>();
+        Subscription subscription = bank.subscribe((update, sequence, endOfBatch) -> {
+            int index = update.getIndex();
+            if (copy.get(index) + update.getDelta() != update.getAmount())
+                error.compareAndSet(null, "Unexpected " + update + " after " + copy.get(index));
+            copy.set(index, update.getAmount());
+        }, Subscription.Backpressure.BLOCK);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    List<CompletableFuture<Long>> deposits = new ArrayList<>();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int from = rnd.nextInt(N);
+                        int to = rnd.nextInt(N);
+                        long amount = rnd.nextInt(1000) + 1;
+                        switch (rnd.nextInt(5)) {
+                            case 0:
+                                bank.deposit(from, amount);
+                                break;
+                            case 1:
+                                bank.withdraw(from, amount);
+                                break;
+                            case 2:
+                                deposits.add(bank.depositAsync(from, amount));
+                                break;
+                            case 3:
+                                if (from != to)
+                                    bank.transferAll(new int[]{from}, new int[]{to}, new long[]{amount});
+                                break;
+                            default:
+                                if (from != to)
+                                    bank.transfer(from, to, amount);
+                        }
+                    }
+                    // the amounts are compared when asynchronous deposits have been applied too
+                    for (CompletableFuture<Long> deposit : deposits)
+                        deposit.join();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (int i = 0; i < N; i++) {
+            while (copy.get(i) != bank.getAmount(i) && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+        }
+        subscription.close();
+        assertNull(error.get());
+        for (int i = 0; i < N; i++)
+            assertEquals(bank.getAmount(i), copy.get(i));
+    }
+
+    public void testOverwrite() throws InterruptedException {
+        BankImpl bank = new BankImpl(N);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong lost = new AtomicLong();
+        Subscription subscription = bank.subscribe(new Subscription.Handler() {
+            @Override
+            public void onUpdate(Subscription.Update update, long sequence, boolean endOfBatch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void onOverrun(long count) {
+                lost.addAndGet(count);
+            }
+        }, Subscription.Backpressure.OVERWRITE);
+        int deposits = 200_000;
+        for (int i = 0; i < deposits; i++)
+            bank.deposit(i % N, 1); // the handler does not stop deposits
+        release.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.get() + lost.get() < deposits && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        subscription.close();
+        assertTrue(lost.get() > 0);
+        assertEquals(deposits, received.get() + lost.get());
+    }
+
+    public void testBlock() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong received = new AtomicLong();
+        Subscription subscription = bank.subscribe((update, sequence, endOfBatch) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            received.incrementAndGet();
+        }, Subscription.Backpressure.BLOCK);
+        final int deposits = 200_000;
+        final AtomicLong done = new AtomicLong();
+        Thread depositor = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < deposits; i++) {
+                    bank.deposit(i % N, 1);
+                    done.incrementAndGet();
+                }
+            }
+        };
+        depositor.start();
+        Thread.sleep(200);
+        assertTrue(depositor.isAlive());
+        assertTrue(done.get() < deposits);
+        release.countDown();
+        depositor.join();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.get() < deposits && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        subscription.close();
+        assertEquals(deposits, received.get());
+    }
+
+    private static void awaitSize(List<String> updates, int size) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (updates) {
+                if (updates.size() >= size)
+                    return;
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests bank total that is kept in totals of thread contexts, and atomic reads of several accounts.
+ *
+ * @author <Хорин>
+ */
+public class TotalAmountTest extends TestCase {
+    private static final int N = 10;
+    private static final int SHORT_LIVED_THREADS = 200;
+    private static final int THREADS = 4;
+    private static final int RANGE = 5; // transfers inside of the range keep its amount
+    private static final long MEAN = 1_000_000_000;
+    private static final int TRANSFERS_PER_THREAD = 50_000;
+
+    public void testShortLivedThreadsReuseTotals() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int t = 0; t < SHORT_LIVED_THREADS; t++) {
+            final int index = t % N;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    bank.deposit(index, 3);
+                    bank.withdraw(index, 1);
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertEquals(2 * SHORT_LIVED_THREADS, bank.getTotalAmount());
+        assertTrue("Too many totals: " + bank.threadTotals(), bank.threadTotals() < SHORT_LIVED_THREADS / 10);
+    }
+
+    public void testConcurrentShortLivedThreads() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        Thread[] threads = new Thread[THREADS];
+        for (int round = 0; round < SHORT_LIVED_THREADS / THREADS; round++) {
+            for (int t = 0; t < THREADS; t++) {
+                final int index = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 100; i++) {
+                            bank.deposit(index, 2);
+                            bank.transfer(index, (index + 1) % N, 1);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+        }
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(2 * 100 * SHORT_LIVED_THREADS, sum);
+        assertEquals(sum, bank.getTotalAmount());
+    }
+
+    public void testTotalGrowsUnderSteadyDeposits() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < TRANSFERS_PER_THREAD; i++)
+                        bank.deposit(index, 1);
+                }
+            };
+            threads[t].start();
+        }
+        long last = 0;
+        boolean alive = true;
+        while (alive) {
+            long total = bank.getTotalAmount();
+            assertTrue("Total decreased from " + last + " to " + total, total >= last);
+            assertTrue("Total is too large: " + total, total <= THREADS * TRANSFERS_PER_THREAD);
+            last = total;
+            alive = false;
+            for (Thread thread : threads)
+                alive |= thread.isAlive();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(THREADS * TRANSFERS_PER_THREAD, bank.getTotalAmount());
+    }
+
+    public void testRangeAndMultiAccountReadsAreAtomic() throws InterruptedException {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                        int from = rnd.nextInt(RANGE);
+                        int to = rnd.nextInt(RANGE);
+                        if (from != to)
+                            bank.transfer(from, to, rnd.nextInt(1000) + 1);
+                        bank.deposit(RANGE + rnd.nextInt(N - RANGE), 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        int[] indices = new int[RANGE];
+        for (int i = 0; i < RANGE; i++)
+            indices[i] = RANGE - 1 - i;
+        long[] out = new long[RANGE];
+        boolean running = true;
+        while (running) {
+            assertEquals(RANGE * MEAN, bank.getAmount(0, RANGE));
+            bank.getAmounts(indices, out);
+            long sum = 0;
+            for (long amount : out)
+                sum += amount;
+            assertEquals(RANGE * MEAN, sum);
+            running = false;
+            for (Thread thread : threads)
+                running |= thread.isAlive();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(N * MEAN + THREADS * TRANSFERS_PER_THREAD, bank.getAmount(0, N));
+    }
+}
@@ -0,0 +1,51 @@
+package ru.ifmo.pp;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares {@link TransferScheduler} with threads that perform parts of the same batch, when half of the transfers
+ * are from or to a hot account.
+ *
+ * <p>The difference shows only when there are at least as many cores as threads, so it is not a part of the tests
+ * and is run by its main method. {@link TransferSchedulerTest} checks the results of the scheduler.
+ *
+ * @author <Хорин>
+ */
+public class TransferSchedulerBenchmark {
+    private static final int TRANSFERS = 200_000;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        Random rnd = new Random(1);
+        final int[] from = new int[TRANSFERS];
+        final int[] to = new int[TRANSFERS];
+        final long[] amounts = new long[TRANSFERS];
+        TransferSchedulerTest.generate(rnd, from, to, amounts, 2);
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            final BankImpl bank = TransferSchedulerTest.newBank();
+            final TransferScheduler scheduler = new TransferScheduler(bank, pool);
+            long scheduled = Benchmarks.time(1, () -> scheduler.transfer(from, to, amounts));
+
+            final BankImpl direct = TransferSchedulerTest.newBank();
+            final AtomicInteger parts = new AtomicInteger();
+            long threaded = Benchmarks.time(THREADS, () -> {
+                for (int i = parts.getAndIncrement(); i < TRANSFERS; i += THREADS) {
+                    try {
+                        direct.transfer(from[i], to[i], amounts[i]);
+                    } catch (IllegalStateException e) {
+                        // not enough money
+                    }
+                }
+            });
+            Benchmarks.check(bank.getTotalAmount() == direct.getTotalAmount(), "Total amounts differ");
+            System.out.printf(Locale.US, "Nanoseconds per transfer with hot account: scheduled %d, threads %d%n",
+                    scheduled / TRANSFERS, threaded / TRANSFERS);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests {@link TransferScheduler}.
+ *
+ * @author <Хорин>
+ */
+public class TransferSchedulerTest extends TestCase {
+    private static final int N = 1000;
+    private static final int TRANSFERS = 200_000;
+    private static final int THREADS = 4;
+
+    public void testSameAsSequential() {
+        checkSameAsSequential(0);
+    }
+
+    /**
+     * Half of the transfers are from or to account 0.
+     */
+    public void testHotAccount() {
+        checkSameAsSequential(2);
+    }
+
+    public void testInvalidBatch() {
+        BankImpl bank = new BankImpl(N);
+        bank.deposit(0, 100);
+        TransferScheduler scheduler = new TransferScheduler(bank);
+        try {
+            scheduler.transfer(new int[]{0, 1}, new int[]{1, 1}, new long[]{10, 10});
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            scheduler.transfer(new int[]{0, 1}, new int[]{1, N}, new long[]{10, 10});
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(100, bank.getAmount(0));
+        assertEquals(0, bank.getAmount(1));
+    }
+
+    private static void checkSameAsSequential(int hotEvery) {
+        Random rnd = new Random(hotEvery);
+        int[] from = new int[TRANSFERS];
+        int[] to = new int[TRANSFERS];
+        long[] amounts = new long[TRANSFERS];
+        generate(rnd, from, to, amounts, hotEvery);
+        Bank expected = new SequentialBank(N);
+        for (int i = 0; i < N; i++)
+            expected.deposit(i, 1000);
+        boolean[] expectedFailures = new boolean[TRANSFERS];
+        for (int i = 0; i < TRANSFERS; i++) {
+            try {
+                expected.transfer(from[i], to[i], amounts[i]);
+            } catch (IllegalStateException e) {
+                expectedFailures[i] = true;
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            BankImpl bank = newBank();
+            IllegalStateException[] failures = new TransferScheduler(bank, pool).transfer(from, to, amounts);
+            for (int i = 0; i < TRANSFERS; i++)
+                assertEquals(expectedFailures[i], failures[i] != null);
+            for (int i = 0; i < N; i++)
+                assertEquals(expected.getAmount(i), bank.getAmount(i));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static BankImpl newBank() {
+        BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, 1000);
+        return bank;
+    }
+
+    /**
+     * Generates random transfers, every hotEvery-th of them is from or to account 0 when hotEvery > 0.
+     */
+    static void generate(Random rnd, int[] from, int[] to, long[] amounts, int hotEvery) {
+        for (int i = 0; i < amounts.length; i++) {
+            do {
+                from[i] = rnd.nextInt(N);
+                to[i] = rnd.nextInt(N);
+                if (hotEvery > 0 && i % hotEvery == 0) {
+                    if (rnd.nextBoolean())
+                        from[i] = 0;
+                    else
+                        to[i] = 0;
+                }
+            } while (from[i] == to[i]);
+            amounts[i] = rnd.nextInt(500) + 1;
+        }
+    }
+}